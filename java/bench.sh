@@ -0,0 +1,29 @@
+#! /bin/bash
+# Benchmarks the menu operations at several data scale factors: for every
+# scale, generates the CSV files, loads them with BulkLoader, runs
+# Benchmark and WaitlistBench, then times SlotGenerator over a quarter
+# and DayCloseOut over the loaded past days.
+# Start the database first (postgresql/startPostgreSQL.sh and
+# createPostgreDB.sh) and compile with compile.sh.
+#
+# Example: SCALES="1 10 100" THREADS=8 ./bench.sh | tee ../bench_output.txt
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+SCALES=${SCALES:-"1 10 50"}
+THREADS=${THREADS:-4}
+WARMUP=${WARMUP:-5}
+SECONDS_PER_OP=${SECONDS_PER_OP:-10}
+DATADIR=/tmp/$USER/bench
+
+for scale in $SCALES; do
+	echo "=== scale $scale ==="
+	java -cp lib/*:bin/ DataGenerator $DATADIR/$scale $scale || exit 1
+	java -cp lib/*:bin/ BulkLoader $DBNAME $PORT $USER $DATADIR/$scale --truncate || exit 1
+	java -cp lib/*:bin/ Benchmark $DBNAME $PORT $USER $THREADS $WARMUP $SECONDS_PER_OP || exit 1
+	java -cp lib/*:bin/ WaitlistBench $DBNAME $PORT $USER 16 500 $THREADS || exit 1
+	java -cp lib/*:bin/ SlotGenerator $DBNAME $PORT $USER 91 || exit 1
+	java -cp lib/*:bin/ DayCloseOut $DBNAME $PORT $USER || exit 1
+	java -cp lib/*:bin/ AsyncFlowBench $DBNAME $PORT $USER 5 10 500 || exit 1
+	rm -rf $DATADIR/$scale
+done
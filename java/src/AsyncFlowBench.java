@@ -0,0 +1,286 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * This class measures how much of the wait in the booking menus
+ * prefetching hides.  The menus run against a local database through a
+ * proxy that delays every chunk of bytes in either direction, as a remote
+ * database would.  Each flow is run with scripted input and a pause
+ * before every answer, the time a user takes to read the list and type;
+ * the wait is the time the flow took minus those pauses.
+ *
+ * Every run starts with empty lookup caches and availability index, as
+ * in a new session.  Flows:
+ *   3 add appointment   hospital, department, doctor, date, time slot
+ *   4 make appointment  patient, hospital, department, doctor, appointment
+ *
+ * The flows write: a doctor is added, an appointment of it is added each
+ * run of flow 3, and the appointments booked by flow 4 are cancelled
+ * again.  Run it against a test database loaded with data/ or
+ * DataGenerator output.
+ *
+ * Usage: java -cp lib/*:bin/ AsyncFlowBench <dbname> <port> <user> [delayMs] [runs] [thinkMs]
+ *
+ */
+
+public class AsyncFlowBench {
+	private static final DateTimeFormatter MENU_DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+
+	private final DBproject _esql;
+	private final int _runs;
+	private final long _thinkMs;
+
+	AsyncFlowBench(DBproject esql, int runs, long thinkMs) {
+		this._esql = esql;
+		this._runs = runs;
+		this._thinkMs = thinkMs;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + AsyncFlowBench.class.getName() +
+				" <dbname> <port> <user> [delayMs] [runs] [thinkMs]");
+			return;
+		}
+		long delayMs = args.length > 3 ? Long.parseLong(args[3]) : 5;
+		int runs = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+		long thinkMs = args.length > 5 ? Long.parseLong(args[5]) : 500;
+
+		Class.forName("org.postgresql.Driver");
+		DelayProxy proxy = new DelayProxy(Integer.parseInt(args[1]), delayMs);
+		proxy.start();
+		DBproject esql = new DBproject(args[0], Integer.toString(proxy.getPort()), args[2], "");
+		try {
+			System.out.printf("%d ms each way, %d runs per flow, %d ms to answer%n", delayMs, runs, thinkMs);
+			new AsyncFlowBench(esql, runs, thinkMs).run();
+		}finally {
+			esql.cleanup();
+			proxy.close();
+		}
+	}
+
+	void run() throws SQLException {
+		//a department with a doctor that has enough upcoming available appointments, and a patient
+		QueryResult sample = _esql.executeQueryForResult(
+			"SELECT Hos.hospital_ID, Hos.name AS hospital, Dep.dept_ID, Dep.name AS department, D.doctor_ID " +
+			"FROM Appointment A, has_appointment H, Doctor D, Department Dep, Hospital Hos " +
+			"WHERE A.status = 'AV' AND A.adate >= CURRENT_DATE AND H.appt_id = A.appnt_ID AND D.doctor_ID = H.doctor_id " +
+			"AND Dep.dept_ID = D.did AND Hos.hospital_ID = Dep.hid " +
+			"GROUP BY Hos.hospital_ID, Hos.name, Dep.dept_ID, Dep.name, D.doctor_ID HAVING COUNT(*) >= ? LIMIT 1",
+			2 * _runs);
+		if (sample.isEmpty()) {
+			throw new SQLException("No doctor with " + 2 * _runs + " upcoming available appointments loaded");
+		}
+		int hospitalID = sample.getInt(0, "hospital_ID");
+		String hospital = sample.getString(0, "hospital").trim();
+		int departmentID = sample.getInt(0, "dept_ID");
+		String department = sample.getString(0, "department").trim();
+		int doctorID = sample.getInt(0, "doctor_ID");
+		QueryResult available = _esql.executeQueryForResult(
+			"SELECT A.appnt_ID FROM Appointment A, has_appointment H " +
+			"WHERE A.status = 'AV' AND A.adate >= CURRENT_DATE AND H.appt_id = A.appnt_ID AND H.doctor_id = ? " +
+			"ORDER BY A.adate LIMIT ?", doctorID, 2 * _runs);
+		int patientID = _esql.executeQueryForResult("SELECT patient_ID FROM Patient LIMIT 1").getInt(0, 0);
+		//the menu picks the first name containing what was typed
+		QueryResult hospitals = _esql.referenceCache().hospitals();
+		QueryResult departments = _esql.referenceCache().departments(hospitalID);
+		if (hospitals.getInt(ReferenceCache.find(hospitals, "name", hospital), "hospital_ID") != hospitalID ||
+				departments.getInt(ReferenceCache.find(departments, "name", department), "dept_ID") != departmentID) {
+			throw new SQLException("The names of hospital " + hospitalID + " and department " + departmentID +
+				" are not unique, pick other data");
+		}
+
+		//a doctor of its own, so the added appointments overlap nothing
+		String specialty = _esql.referenceCache().specialties().getString(0, "specialty").trim();
+		answer(0, DBproject::AddDoctor, "Async Flow", specialty, hospital, department);
+		int newDoctorID = _esql.executeQueryForResult("SELECT MAX(doctor_ID) FROM Doctor WHERE did = ?",
+			departmentID).getInt(0, 0);
+		LocalDate first = LocalDate.now().plusDays(1);
+		String slot = TimeSlot.OFFERED.get(0).toString();
+
+		long[][] add = new long[2][_runs];
+		long[][] make = new long[2][_runs];
+		for (int run = 0; run < _runs; run++) {
+			for (int mode = 0; mode < 2; mode++) {
+				_esql.setPrefetch(mode == 1);
+				int day = 2 * run + mode;
+				int appointmentID = available.getInt(day, "appnt_ID");
+				add[mode][run] = answer(_thinkMs, DBproject::AddAppointment, hospital, department,
+					Integer.toString(newDoctorID), first.plusDays(day).format(MENU_DATE), slot);
+				make[mode][run] = answer(_thinkMs, DBproject::MakeAppointment, Integer.toString(patientID), hospital,
+					department, Integer.toString(doctorID), Integer.toString(appointmentID));
+				HospitalService.cancelAppointment(_esql, patientID, appointmentID);
+			}
+		}
+		report("3 add appointment", add);
+		report("4 make appointment", make);
+	}
+
+	//milliseconds the flow waited for the database, the pauses left out
+	private long answer(long thinkMs, Consumer<DBproject> flow, String... input) {
+		_esql.referenceCache().invalidateAll();
+		_esql.availability().invalidate();
+		PrintStream stdout = System.out;
+		BufferedReader stdin = DBproject.in;
+		System.setOut(new PrintStream(new ByteArrayOutputStream(), true));
+		DBproject.in = new ScriptedInput(thinkMs, input);
+		long start = System.nanoTime();
+		try {
+			flow.accept(_esql);
+		}finally {
+			System.setOut(stdout);
+			DBproject.in = stdin;
+		}
+		return (System.nanoTime() - start) / 1000000 - input.length * thinkMs;
+	}
+
+	private static void report(String label, long[][] waits) {
+		long off = median(waits[0]);
+		long on = median(waits[1]);
+		System.out.printf("%-20s %6d ms without prefetch, %6d ms with (median), %3.0f%% less%n", label, off, on,
+			off == 0 ? 0.0 : 100.0 * (off - on) / off);
+	}
+
+	private static long median(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	/**
+	 * This class feeds the scripted lines to the menu, each after a pause.
+	 *
+	 */
+	private static final class ScriptedInput extends BufferedReader {
+		private final long _thinkMs;
+		private final String[] _lines;
+		private int _next = 0;
+
+		ScriptedInput(long thinkMs, String... lines) {
+			super(new StringReader(""));
+			this._thinkMs = thinkMs;
+			this._lines = lines;
+		}
+
+		@Override
+		public String readLine() {
+			if (_next >= _lines.length) {
+				//unchecked, the menus ask again after an IOException
+				throw new IllegalStateException("asked for more input than " + Arrays.toString(_lines));
+			}
+			try {
+				Thread.sleep(_thinkMs);
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return _lines[_next++];
+		}
+	}
+
+	/**
+	 * This class forwards connections to the local database and holds
+	 * every chunk read for a fixed delay before writing it on.  Chunks stay
+	 * in order; a chunk read while an earlier one waits is not delayed
+	 * further, as on a network link.
+	 *
+	 */
+	static final class DelayProxy implements AutoCloseable {
+		private final ServerSocket _server;
+		private final int _targetPort;
+		private final long _delayNanos;
+
+		DelayProxy(int targetPort, long delayMs) throws IOException {
+			this._server = new ServerSocket(0);
+			this._targetPort = targetPort;
+			this._delayNanos = delayMs * 1000000;
+		}
+
+		int getPort() {
+			return _server.getLocalPort();
+		}
+
+		void start() {
+			daemon("delay-proxy", () -> {
+				try {
+					while (true) {
+						Socket client = _server.accept();
+						Socket database = new Socket("localhost", _targetPort);
+						client.setTcpNoDelay(true);
+						database.setTcpNoDelay(true);
+						forward(client, database);
+						forward(database, client);
+					}
+				}catch (IOException e) {
+					//closed
+				}
+			});
+		}
+
+		private void forward(Socket from, Socket to) throws IOException {
+			InputStream in = from.getInputStream();
+			OutputStream out = to.getOutputStream();
+			BlockingQueue<Object[]> chunks = new LinkedBlockingQueue<Object[]>();
+			daemon("delay-proxy-read", () -> {
+				byte[] buffer = new byte[65536];
+				try {
+					int read;
+					while ((read = in.read(buffer)) > 0) {
+						chunks.put(new Object[] {System.nanoTime() + _delayNanos, Arrays.copyOf(buffer, read)});
+					}
+				}catch (IOException | InterruptedException e) {
+					//the other side went away
+				}
+				chunks.add(new Object[0]);
+			});
+			daemon("delay-proxy-write", () -> {
+				try {
+					while (true) {
+						Object[] chunk = chunks.take();
+						if (chunk.length == 0) {
+							break;
+						}
+						long wait = (Long) chunk[0] - System.nanoTime();
+						if (wait > 0) {
+							Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+						}
+						out.write((byte[]) chunk[1]);
+						out.flush();
+					}
+				}catch (IOException | InterruptedException e) {
+					//the other side went away
+				}
+				try {
+					from.close();
+					to.close();
+				}catch (IOException e) {
+					//already closed
+				}
+			});
+		}
+
+		private static void daemon(String name, Runnable task) {
+			Thread thread = new Thread(task, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void close() throws IOException {
+			_server.close();
+		}
+	}
+}
@@ -0,0 +1,386 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps the available (AV) appointments in memory, keyed by
+ * department, then doctor, then date, each date holding its appointment IDs
+ * in a primitive int set.  It answers the available-slot lookups of the
+ * menu without a round trip to the database.
+ *
+ * The index is read from the database on first use and kept current by
+ * the writes of this process (HospitalService.addAppointment and
+ * bookAppointment) and, through ChangeListener, by refresh() for the
+ * writes of other sessions.  verify() compares the index with the database.
+ *
+ */
+
+public class AvailabilityIndex {
+	private static final int NONE = -1;
+
+	private final DBproject _esql;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	private boolean _loaded = false;
+
+	//department -> doctor -> epoch day -> appointment IDs
+	private Map<Integer, Map<Integer, TreeMap<Integer, IntHashSet>>> _departments;
+	//appointment -> doctor, appointment -> epoch day, doctor -> department
+	private IntIntHashMap _appointmentDoctor;
+	private IntIntHashMap _appointmentDay;
+	private IntIntHashMap _doctorDepartment;
+
+	public AvailabilityIndex(DBproject esql) {
+		this._esql = esql;
+		clear();
+	}
+
+	/**
+	 * Method to (re)build the index from the available appointments in the
+	 * database.
+	 *
+	 * @return the number of available appointments indexed
+	 * @throws java.sql.SQLException when the appointments could not be read
+	 */
+	public int reload() throws SQLException {
+		AvailabilityIndex fresh = read();
+		_lock.writeLock().lock();
+		try {
+			_departments = fresh._departments;
+			_appointmentDoctor = fresh._appointmentDoctor;
+			_appointmentDay = fresh._appointmentDay;
+			_doctorDepartment = fresh._doctorDepartment;
+			_loaded = true;
+			return _appointmentDoctor.size();
+		}finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to drop the index, it is read again on next use.
+	 */
+	public void invalidate() {
+		_lock.writeLock().lock();
+		try {
+			clear();
+			_loaded = false;
+		}finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to record a new available appointment.
+	 *
+	 * @param departmentID the department of the doctor
+	 * @param doctorID the doctor the appointment belongs to
+	 * @param date the date of the appointment
+	 * @param appointmentID the appointment
+	 */
+	public void add(int departmentID, int doctorID, LocalDate date, int appointmentID) {
+		_lock.writeLock().lock();
+		try {
+			if (_loaded) {
+				unindex(appointmentID);
+				put(departmentID, doctorID, (int) date.toEpochDay(), appointmentID);
+			}
+		}finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to drop an appointment that is not available anymore.
+	 *
+	 * @param appointmentID the appointment
+	 * @return true when the appointment was in the index
+	 */
+	public boolean remove(int appointmentID) {
+		_lock.writeLock().lock();
+		try {
+			return unindex(appointmentID);
+		}finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to re-read one appointment from the database, after another
+	 * session changed it: it is indexed when it is available and dropped
+	 * otherwise.  Nothing is read while the index is not loaded.
+	 *
+	 * @param appointmentID the appointment
+	 * @throws java.sql.SQLException when the appointment could not be read
+	 */
+	public void refresh(int appointmentID) throws SQLException {
+		if (!isLoaded()) {
+			return;
+		}
+		QueryResult result = _esql.executeQueryForResult(Queries.AVAILABLE_APPOINTMENT_BY_ID, appointmentID);
+		_lock.writeLock().lock();
+		try {
+			if (!_loaded) {
+				return;
+			}
+			unindex(appointmentID);
+			if (!result.isEmpty()) {
+				put(result.getInt(0, "did"), result.getInt(0, "doctor_id"),
+					(int) result.getDate(0, "adate").toEpochDay(), appointmentID);
+			}
+		}finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	public boolean isLoaded() {
+		_lock.readLock().lock();
+		try {
+			return _loaded;
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param departmentID the department
+	 * @return the dates with at least one available appointment, ascending
+	 * @throws java.sql.SQLException when the index had to be loaded and could not be
+	 */
+	public List<LocalDate> datesOfDepartment(int departmentID) throws SQLException {
+		lockForRead();
+		try {
+			TreeSet<Integer> days = new TreeSet<Integer>();
+			Map<Integer, TreeMap<Integer, IntHashSet>> doctors = _departments.get(departmentID);
+			if (doctors != null) {
+				for (TreeMap<Integer, IntHashSet> doctorDays : doctors.values()) {
+					days.addAll(doctorDays.keySet());
+				}
+			}
+			List<LocalDate> dates = new ArrayList<LocalDate>(days.size());
+			for (int day : days) {
+				dates.add(LocalDate.ofEpochDay(day));
+			}
+			return dates;
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param departmentID the department
+	 * @param date the date
+	 * @return the available appointments of the department on the date, as
+	 *         {appointment ID, doctor ID} pairs ordered by doctor and appointment
+	 * @throws java.sql.SQLException when the index had to be loaded and could not be
+	 */
+	public List<int[]> appointmentsOfDepartment(int departmentID, LocalDate date) throws SQLException {
+		lockForRead();
+		try {
+			List<int[]> appointments = new ArrayList<int[]>();
+			Map<Integer, TreeMap<Integer, IntHashSet>> doctors = _departments.get(departmentID);
+			if (doctors != null) {
+				for (int doctorID : new TreeSet<Integer>(doctors.keySet())) {
+					IntHashSet ids = doctors.get(doctorID).get((int) date.toEpochDay());
+					if (ids != null) {
+						for (int id : ids.toSortedArray()) {
+							appointments.add(new int[] {id, doctorID});
+						}
+					}
+				}
+			}
+			return appointments;
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param doctorID the doctor
+	 * @return the available appointments of the doctor with their dates, ordered by date
+	 * @throws java.sql.SQLException when the index had to be loaded and could not be
+	 */
+	public TreeMap<LocalDate, int[]> appointmentsOfDoctor(int doctorID) throws SQLException {
+		lockForRead();
+		try {
+			TreeMap<LocalDate, int[]> appointments = new TreeMap<LocalDate, int[]>();
+			TreeMap<Integer, IntHashSet> days = doctorDays(doctorID);
+			if (days != null) {
+				for (Map.Entry<Integer, IntHashSet> day : days.entrySet()) {
+					appointments.put(LocalDate.ofEpochDay(day.getKey()), day.getValue().toSortedArray());
+				}
+			}
+			return appointments;
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param doctorID the doctor
+	 * @return true when the doctor has at least one available appointment
+	 * @throws java.sql.SQLException when the index had to be loaded and could not be
+	 */
+	public boolean hasAvailable(int doctorID) throws SQLException {
+		lockForRead();
+		try {
+			TreeMap<Integer, IntHashSet> days = doctorDays(doctorID);
+			return days != null && !days.isEmpty();
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param appointmentID the appointment
+	 * @return the doctor of the appointment when it is available, -1 otherwise
+	 * @throws java.sql.SQLException when the index had to be loaded and could not be
+	 */
+	public int doctorOfAvailable(int appointmentID) throws SQLException {
+		lockForRead();
+		try {
+			return _appointmentDoctor.get(appointmentID, NONE);
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param appointmentID the appointment
+	 * @return {doctor ID, department ID, epoch day} of the appointment when
+	 *         it is available, null otherwise
+	 * @throws java.sql.SQLException when the index had to be loaded and could not be
+	 */
+	public int[] locateAvailable(int appointmentID) throws SQLException {
+		lockForRead();
+		try {
+			int doctorID = _appointmentDoctor.get(appointmentID, NONE);
+			return doctorID == NONE ? null : new int[] {doctorID, _doctorDepartment.get(doctorID, NONE),
+				_appointmentDay.get(appointmentID, NONE)};
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	public int size() {
+		_lock.readLock().lock();
+		try {
+			return _appointmentDoctor.size();
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to compare the index with the available appointments in the
+	 * database.
+	 *
+	 * @return one line per appointment that differs, empty when consistent
+	 * @throws java.sql.SQLException when the appointments could not be read
+	 */
+	public List<String> verify() throws SQLException {
+		AvailabilityIndex db = read();
+		List<String> differences = new ArrayList<String>();
+		lockForRead();
+		try {
+			compare(this, db, "missing from the database", differences);
+			compare(db, this, "missing from the index", differences);
+		}finally {
+			_lock.readLock().unlock();
+		}
+		return differences;
+	}
+
+	/*
+	 * Lists the appointments of a that are not in b with the same doctor,
+	 * department and date.
+	 */
+	private static void compare(AvailabilityIndex a, AvailabilityIndex b, String label, List<String> differences) {
+		for (Map.Entry<Integer, Map<Integer, TreeMap<Integer, IntHashSet>>> department : a._departments.entrySet()) {
+			for (Map.Entry<Integer, TreeMap<Integer, IntHashSet>> doctor : department.getValue().entrySet()) {
+				for (Map.Entry<Integer, IntHashSet> day : doctor.getValue().entrySet()) {
+					for (int id : day.getValue().toSortedArray()) {
+						if (b._appointmentDoctor.get(id, NONE) != doctor.getKey()
+								|| b._appointmentDay.get(id, NONE) != day.getKey()
+								|| b._doctorDepartment.get(doctor.getKey(), NONE) != department.getKey()) {
+							differences.add("appointment " + id + " (doctor " + doctor.getKey() + ", department " +
+								department.getKey() + ", " + LocalDate.ofEpochDay(day.getKey()) + ") " + label);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private AvailabilityIndex read() throws SQLException {
+		QueryResult result = _esql.executeQueryForResult(Queries.AVAILABLE_APPOINTMENTS);
+		AvailabilityIndex fresh = new AvailabilityIndex(_esql);
+		int department = result.findColumn("did");
+		int doctor = result.findColumn("doctor_id");
+		int date = result.findColumn("adate");
+		int appointment = result.findColumn("appnt_id");
+		for (int i = 0; i < result.size(); i++) {
+			fresh.put(result.getInt(i, department), result.getInt(i, doctor),
+				(int) result.getDate(i, date).toEpochDay(), result.getInt(i, appointment));
+		}
+		return fresh;
+	}
+
+	private void put(int departmentID, int doctorID, int day, int appointmentID) {
+		_departments.computeIfAbsent(departmentID, k -> new HashMap<Integer, TreeMap<Integer, IntHashSet>>())
+			.computeIfAbsent(doctorID, k -> new TreeMap<Integer, IntHashSet>())
+			.computeIfAbsent(day, k -> new IntHashSet())
+			.add(appointmentID);
+		_appointmentDoctor.put(appointmentID, doctorID);
+		_appointmentDay.put(appointmentID, day);
+		_doctorDepartment.put(doctorID, departmentID);
+	}
+
+	private boolean unindex(int appointmentID) {
+		int doctorID = _appointmentDoctor.remove(appointmentID, NONE);
+		if (doctorID == NONE) {
+			return false;
+		}
+		int day = _appointmentDay.remove(appointmentID, NONE);
+		TreeMap<Integer, IntHashSet> days = doctorDays(doctorID);
+		IntHashSet appointments = days.get(day);
+		appointments.remove(appointmentID);
+		if (appointments.isEmpty()) {
+			days.remove(day);
+		}
+		return true;
+	}
+
+	private TreeMap<Integer, IntHashSet> doctorDays(int doctorID) {
+		Map<Integer, TreeMap<Integer, IntHashSet>> doctors = _departments.get(_doctorDepartment.get(doctorID, NONE));
+		return doctors == null ? null : doctors.get(doctorID);
+	}
+
+	/*
+	 * Takes the read lock, loading the index first when it is not loaded.
+	 */
+	private void lockForRead() throws SQLException {
+		_lock.readLock().lock();
+		if (!_loaded) {
+			_lock.readLock().unlock();
+			synchronized (this) {
+				if (!_loaded) {
+					reload();
+				}
+			}
+			_lock.readLock().lock();
+		}
+	}
+
+	private void clear() {
+		_departments = new HashMap<Integer, Map<Integer, TreeMap<Integer, IntHashSet>>>();
+		_appointmentDoctor = new IntIntHashMap();
+		_appointmentDay = new IntIntHashMap();
+		_doctorDepartment = new IntIntHashMap();
+	}
+}
@@ -0,0 +1,410 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs the write operations of the menu non-interactively, from
+ * a file or standard input holding one command per line, either as CSV or
+ * as a JSON object:
+ *
+ *   add-doctor,<name>,<specialty>,<dept_ID>
+ *   add-patient,<name>,<M|F>,<age>,<address>
+ *   add-appointment,<doctor_ID>,<date>,<time_slot>[,<status>]
+ *   book,<patient_ID>,<doctor_ID>,<appnt_ID>,<hospital_ID>
+ *
+ *   {"cmd": "add-doctor", "name": .., "specialty": .., "department": ..}
+ *   {"cmd": "add-patient", "name": .., "gender": .., "age": .., "address": ..}
+ *   {"cmd": "add-appointment", "doctor": .., "date": .., "time_slot": .., "status": ..}
+ *   {"cmd": "book", "patient": .., "doctor": .., "appointment": .., "hospital": ..}
+ *
+ * Blank lines and lines starting with '#' are skipped.  New IDs come from
+ * the ID allocators, an appointment's status defaults to AV.
+ *
+ * Commands are run in chunks, each chunk in one transaction with one JDBC
+ * batch per statement.  When a batch fails the chunk is rolled back and
+ * run again row by row, so only the failing rows are lost; every failure
+ * is reported with its line number.
+ *
+ * Usage: java -cp lib/*:bin/ BatchRunner <dbname> <port> <user> <file|-> [chunkSize]
+ *
+ */
+
+public class BatchRunner {
+	static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("batch.chunkSize", 1000);
+	//failures printed in the report, the rest are only counted
+	static final int MAX_REPORTED_FAILURES = 50;
+
+	static final String ADD_DOCTOR = "add-doctor";
+	static final String ADD_PATIENT = "add-patient";
+	static final String ADD_APPOINTMENT = "add-appointment";
+	static final String BOOK = "book";
+	//command, then its fields in CSV order; the order the batches of a chunk run in
+	static final String[][] COMMANDS = {
+		{ADD_DOCTOR, "name", "specialty", "department"},
+		{ADD_PATIENT, "name", "gender", "age", "address"},
+		{ADD_APPOINTMENT, "doctor", "date", "time_slot", "status"},
+		{BOOK, "patient", "doctor", "appointment", "hospital"},
+	};
+
+	private final DBproject _esql;
+	private final int _chunkSize;
+	private final PrintStream _out;
+
+	public BatchRunner(DBproject esql, int chunkSize, PrintStream out) {
+		this._esql = esql;
+		this._chunkSize = Math.max(1, chunkSize);
+		this._out = out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java [-classpath <classpath>] " + BatchRunner.class.getName() +
+				" <dbname> <port> <user> <file|-> [chunkSize]");
+			return;
+		}
+		int chunkSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_CHUNK_SIZE;
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		int failed;
+		try {
+			BufferedReader reader = args[3].equals("-")
+				? new BufferedReader(new InputStreamReader(System.in))
+				: new BufferedReader(new FileReader(args[3]));
+			try {
+				failed = new BatchRunner(esql, chunkSize, System.out).run(reader).failed;
+			}finally {
+				reader.close();
+			}
+		}finally {
+			esql.cleanup();
+		}
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Method to run every command read from the reader and print a report.
+	 *
+	 * @param reader the commands, one per line
+	 * @return the counts of the run
+	 * @throws java.io.IOException when the commands could not be read
+	 */
+	public Report run(BufferedReader reader) throws IOException {
+		Report report = new Report();
+		long start = System.nanoTime();
+		//the own writes come back through the change feed, cheaper to read the index again afterwards
+		_esql.availability().invalidate();
+
+		List<Command> chunk = new ArrayList<Command>(_chunkSize);
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			String text = line.trim();
+			if (text.isEmpty() || text.startsWith("#")) {
+				continue;
+			}
+			report.read++;
+			try {
+				chunk.add(parse(lineNumber, text));
+			}catch (Exception e) {
+				report.fail(lineNumber, e.getMessage());
+				continue;
+			}
+			if (chunk.size() == _chunkSize) {
+				runChunk(chunk, report);
+				chunk.clear();
+				progress(report, start);
+			}
+		}
+		if (!chunk.isEmpty()) {
+			runChunk(chunk, report);
+		}
+
+		if (report.doctors > 0) {
+			_esql.referenceCache().invalidateSpecialties();
+		}
+		if (report.patients > 0) {
+			_esql.patientIndex().invalidate();
+		}
+		_esql.availability().invalidate();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		for (String failure : report.failures) {
+			_out.println(failure);
+		}
+		if (report.failed > report.failures.size()) {
+			_out.println("... " + (report.failed - report.failures.size()) + " more failures");
+		}
+		_out.printf("%d commands: %d ok, %d failed, %d chunks redone row by row, %.2f s (%.0f commands/s)%n",
+			report.read, report.ok, report.failed, report.fallbacks, seconds, report.read / Math.max(seconds, 1e-9));
+		return report;
+	}
+
+	private void progress(Report report, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		_out.printf("  %d commands, %d failed, %.0f commands/s%n", report.read, report.failed, report.read / seconds);
+	}
+
+	private void runChunk(List<Command> chunk, Report report) {
+		try {
+			List<String> misses = _esql.executeInTransaction(conn -> execute(conn, chunk));
+			report.succeed(chunk.size() - misses.size(), chunk);
+			for (String miss : misses) {
+				report.addFailure(miss);
+			}
+		}catch (SQLException e) {
+			//one bad row fails the whole batch, find it
+			report.fallbacks++;
+			for (Command command : chunk) {
+				List<Command> single = Arrays.asList(command);
+				try {
+					List<String> misses = _esql.executeInTransaction(conn -> execute(conn, single));
+					report.succeed(1 - misses.size(), single);
+					for (String miss : misses) {
+						report.addFailure(miss);
+					}
+				}catch (SQLException rowError) {
+					report.fail(command.line, rowError.getMessage());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Runs the commands on one connection, one batch per statement in
+	 * dependency order.  Returns the bookings that found their appointment
+	 * not available.
+	 */
+	private static List<String> execute(ConnectionPool.PooledConnection conn, List<Command> commands) throws SQLException {
+		List<String> misses = new ArrayList<String>();
+		batch(conn, commands, ADD_DOCTOR, Queries.INSERT_DOCTOR, c -> new Object[] {c.id, c.values[0], c.values[1], c.values[2]});
+		batch(conn, commands, ADD_PATIENT, Queries.INSERT_PATIENT, c -> new Object[] {c.id, c.values[0], c.values[1], c.values[2], c.values[3]});
+		batch(conn, commands, ADD_APPOINTMENT, Queries.INSERT_APPOINTMENT, c -> new Object[] {c.id, c.values[1],
+			((TimeSlot) c.values[2]).getStart(), ((TimeSlot) c.values[2]).getEnd(), c.values[3], c.values[0]});
+		batch(conn, commands, ADD_APPOINTMENT, Queries.INSERT_HAS_APPOINTMENT, c -> new Object[] {c.id, c.values[0]});
+		List<Command> bookings = new ArrayList<Command>();
+		int[] counts = batch(conn, commands, BOOK, Queries.BOOK_APPOINTMENT, c -> {
+			bookings.add(c);
+			return new Object[] {c.values[2], c.values[1], c.values[3], c.values[0], c.values[0]};
+		});
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0) {
+				misses.add(failure(bookings.get(i).line, "appointment " + bookings.get(i).values[2] +
+					" is not available for doctor " + bookings.get(i).values[1]));
+			}
+		}
+		return misses;
+	}
+
+	private static int[] batch(ConnectionPool.PooledConnection conn, List<Command> commands, String type, String sql,
+			Binder binder) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			for (Command command : commands) {
+				if (command.type.equals(type)) {
+					stmt = conn.prepare(sql, binder.bind(command));
+					stmt.addBatch();
+				}
+			}
+			return stmt == null ? new int[0] : stmt.executeBatch();
+		}finally {
+			if (stmt != null) {
+				stmt.clearBatch();
+			}
+		}
+	}
+
+	/*
+	 * Parses and checks one line; new rows get their ID here.
+	 */
+	private Command parse(int line, String text) throws SQLException {
+		String type;
+		String[] fields;
+		if (text.startsWith("{")) {
+			Map<String, Object> json = Json.parseObject(text);
+			type = String.valueOf(json.get("cmd"));
+			String[] names = fieldsOf(type);
+			fields = new String[names.length];
+			for (int i = 0; i < names.length; i++) {
+				Object value = json.get(names[i]);
+				fields[i] = value == null ? null : value.toString();
+			}
+		}else {
+			List<String> csv = splitCsv(text);
+			type = csv.get(0);
+			String[] names = fieldsOf(type);
+			fields = new String[names.length];
+			for (int i = 0; i < names.length && i + 1 < csv.size(); i++) {
+				fields[i] = csv.get(i + 1);
+			}
+		}
+
+		Object[] values;
+		int id = -1;
+		switch (type) {
+			case ADD_DOCTOR:
+				values = new Object[] {required(fields, 0, "name"), required(fields, 1, "specialty"), integer(fields, 2, "department")};
+				id = _esql.doctorIds().nextId();
+				break;
+			case ADD_PATIENT:
+				String gender = required(fields, 1, "gender");
+				if (!(gender.equals("M") || gender.equals("F"))) {
+					throw new IllegalArgumentException("gender must be M or F");
+				}
+				int age = integer(fields, 2, "age");
+				if (age < 0 || age > 130) {
+					throw new IllegalArgumentException("age must be in range: 0 - 130");
+				}
+				values = new Object[] {required(fields, 0, "name"), gender, age, fields[3]};
+				id = _esql.patientIds().nextId();
+				break;
+			case ADD_APPOINTMENT:
+				LocalDate date = DBproject.parseDate(required(fields, 1, "date"));
+				if (date == null) {
+					throw new IllegalArgumentException("invalid date " + fields[1]);
+				}
+				String status = fields[3] == null || fields[3].isEmpty() ? "AV" : fields[3];
+				if (!Arrays.asList("PA", "AC", "AV", "WL").contains(status)) {
+					throw new IllegalArgumentException("status must be PA, AC, AV or WL");
+				}
+				TimeSlot slot = TimeSlot.parse(required(fields, 2, "time_slot"));
+				if (slot == null) {
+					throw new IllegalArgumentException("time_slot must be H:MM-H:MM: " + fields[2]);
+				}
+				values = new Object[] {integer(fields, 0, "doctor"), date, slot, status};
+				id = _esql.appointmentIds().nextId();
+				break;
+			default:
+				values = new Object[] {integer(fields, 0, "patient"), integer(fields, 1, "doctor"),
+					integer(fields, 2, "appointment"), integer(fields, 3, "hospital")};
+		}
+		return new Command(line, type, id, values);
+	}
+
+	private static String[] fieldsOf(String type) {
+		for (String[] command : COMMANDS) {
+			if (command[0].equals(type)) {
+				return Arrays.copyOfRange(command, 1, command.length);
+			}
+		}
+		throw new IllegalArgumentException("unknown command " + type);
+	}
+
+	private static String required(String[] fields, int i, String name) {
+		if (fields[i] == null || fields[i].isEmpty()) {
+			throw new IllegalArgumentException(name + " is missing");
+		}
+		return fields[i];
+	}
+
+	private static int integer(String[] fields, int i, String name) {
+		try {
+			return Integer.parseInt(required(fields, i, name).trim());
+		}catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be an integer: " + fields[i]);
+		}
+	}
+
+	/*
+	 * Splits a CSV line; fields may be quoted with '"', a doubled quote
+	 * inside stands for one quote.
+	 */
+	static List<String> splitCsv(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				}else if (c == '"') {
+					quoted = false;
+				}else {
+					field.append(c);
+				}
+			}else if (c == '"') {
+				quoted = true;
+			}else if (c == ',') {
+				fields.add(field.toString().trim());
+				field.setLength(0);
+			}else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString().trim());
+		return fields;
+	}
+
+	private static String failure(int line, String message) {
+		return "line " + line + ": " + message;
+	}
+
+	/**
+	 * One parsed command, values in the order of its fields.
+	 */
+	static class Command {
+		final int line;
+		final String type;
+		final int id;
+		final Object[] values;
+
+		Command(int line, String type, int id, Object[] values) {
+			this.line = line;
+			this.type = type;
+			this.id = id;
+			this.values = values;
+		}
+	}
+
+	interface Binder {
+		Object[] bind(Command command);
+	}
+
+	/**
+	 * The counts of one run and the first failures.
+	 */
+	public static class Report {
+		public int read = 0;
+		public int ok = 0;
+		public int failed = 0;
+		public int fallbacks = 0;
+		public int doctors = 0;
+		public int patients = 0;
+		final List<String> failures = new ArrayList<String>();
+
+		void succeed(int count, List<Command> commands) {
+			ok += count;
+			for (Command command : commands) {
+				if (command.type.equals(ADD_DOCTOR)) {
+					doctors++;
+				}else if (command.type.equals(ADD_PATIENT)) {
+					patients++;
+				}
+			}
+		}
+
+		void fail(int line, String message) {
+			addFailure(failure(line, message));
+		}
+
+		void addFailure(String failure) {
+			failed++;
+			if (failures.size() < MAX_REPORTED_FAILURES) {
+				failures.add(failure);
+			}
+		}
+	}
+}
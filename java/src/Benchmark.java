@@ -0,0 +1,327 @@
+import java.sql.Array;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class benchmarks the DBproject operations behind the menu against a
+ * live database: doctor lookup, available dates and slots of a department
+ * (from the database and from the AvailabilityIndex), the date range
+ * listing of a doctor, the two per-doctor status reports, patient search
+ * by name (LIKE in the database and the PatientIndex) and booking.
+ * Every operation is run by several threads for a warmup period,
+ * then measured for a fixed time; throughput and p50/p90/p99 latency are
+ * reported per operation.
+ *
+ * Parameters are drawn at random from the loaded data.  Booking works on a
+ * fixture of fresh available appointments that is removed at the end.
+ * bench.sh runs it against generated datasets of several scale factors.
+ *
+ * Usage: java -cp lib/*:bin/ Benchmark <dbname> <port> <user> [threads] [warmupSeconds] [seconds] [operation]
+ *
+ */
+
+public class Benchmark {
+	//fixture size, booking stops early when it is used up
+	static final int BOOKING_SLOTS = Integer.getInteger("bench.bookingSlots", 50000);
+	//length of the date range listed by the range operation
+	static final int RANGE_DAYS = 90;
+	static final String[] STATUSES = {"PA", "AC", "AV", "WL"};
+	//patient search without the PatientIndex
+	static final String PATIENTS_WITH_NAME_LIKE =
+		"SELECT patient_ID, name, address FROM Patient WHERE LOWER(name) LIKE LOWER(?) LIMIT 10";
+
+	private final DBproject _esql;
+	private final int _threads;
+	private int[] _doctorIDs;
+	private int[] _patientIDs;
+	private int[] _departmentIDs;
+	//a word of the names of some patients
+	private String[] _nameTerms;
+	//department and date pairs that have available appointments
+	private int[] _slotDepartments;
+	private String[] _slotDates;
+	private LocalDate _firstDate;
+	private int _dateSpan;
+	//booking fixture
+	private int[] _fixtureIDs = new int[0];
+	private int[] _fixtureDoctors;
+	private int[] _fixtureHospitals;
+	private final AtomicInteger _nextFixture = new AtomicInteger();
+
+	Benchmark(DBproject esql, int threads) {
+		this._esql = esql;
+		this._threads = threads;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + Benchmark.class.getName() +
+				" <dbname> <port> <user> [threads] [warmupSeconds] [seconds] [operation]");
+			return;
+		}
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		int warmup = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+		int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+		String only = args.length > 6 ? args[6] : null;
+		System.setProperty("pool.maxSize", Integer.toString(threads + 1));
+		//the booking writes would otherwise be fed back into the index being measured
+		System.setProperty("changes.listen", "false");
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		Benchmark benchmark = new Benchmark(esql, threads);
+		try {
+			benchmark.sample();
+			benchmark.createBookingFixture();
+			System.out.printf("%-30s %10s %10s %10s %10s %10s %10s%n",
+				"operation", "ops", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+			for (Operation op : benchmark.operations()) {
+				if (only == null || only.equals(op.name)) {
+					benchmark.run(op, warmup, seconds);
+				}
+			}
+			System.out.println(esql.getConnectionPool());
+		}finally {
+			try {
+				benchmark.dropBookingFixture();
+			}finally {
+				esql.cleanup();
+			}
+		}
+	}
+
+	List<Operation> operations() {
+		List<Operation> ops = new ArrayList<Operation>();
+		ops.add(query("doctor-lookup", r ->
+			_esql.executeQueryForResult(Queries.DOCTOR_BY_ID, pick(r, _doctorIDs))));
+		ops.add(query("department-available-dates", r ->
+			_esql.executeQueryForResult(Queries.AVAILABLE_DATES_OF_DEPARTMENT, pick(r, _departmentIDs))));
+		ops.add(query("department-slots-on-date", r -> {
+			int i = r.nextInt(_slotDepartments.length);
+			_esql.executeQueryForResult(Queries.AVAILABLE_APPOINTMENTS_OF_DEPARTMENT_ON_DATE, _slotDates[i], _slotDepartments[i]);
+		}));
+		ops.add(query("index-department-slots-on-date", r -> {
+			int i = r.nextInt(_slotDepartments.length);
+			_esql.availability().appointmentsOfDepartment(_slotDepartments[i], LocalDate.parse(_slotDates[i]));
+		}));
+		ops.add(query("doctor-date-range", r -> {
+			LocalDate from = _firstDate.plusDays(r.nextInt(_dateSpan + 1));
+			_esql.executeQueryForResult(Queries.ACTIVE_AND_AVAILABLE_OF_DOCTOR_IN_RANGE,
+				pick(r, _doctorIDs), from.toString(), from.plusDays(RANGE_DAYS).toString());
+		}));
+		ops.add(query("status-types-per-doctor", r ->
+			_esql.executeQueryForResult(Queries.STATUS_TYPES_PER_DOCTOR)));
+		ops.add(query("patients-per-doctor-status", r ->
+			_esql.executeQueryForResult(Queries.PATIENTS_PER_DOCTOR_WITH_STATUS, STATUSES[r.nextInt(STATUSES.length)])));
+		ops.add(query("patient-name-like", r ->
+			_esql.executeQueryForResult(PATIENTS_WITH_NAME_LIKE, "%" + pick(r, _nameTerms) + "%")));
+		ops.add(query("index-patient-search", r ->
+			_esql.patientIndex().search(pick(r, _nameTerms), PatientIndex.DEFAULT_LIMIT)));
+		ops.add(new Operation("book-appointment", r -> {
+			int i = _nextFixture.getAndIncrement();
+			if (i >= _fixtureIDs.length) {
+				return false;
+			}
+			HospitalService.bookAppointment(_esql, pick(r, _patientIDs), _fixtureDoctors[i], _fixtureIDs[i], _fixtureHospitals[i]);
+			return true;
+		}));
+		return ops;
+	}
+
+	/*
+	 * Draws the random parameters from the loaded data.
+	 */
+	void sample() throws SQLException {
+		_doctorIDs = column("SELECT DISTINCT doctor_id FROM has_appointment ORDER BY 1 LIMIT 100000");
+		_patientIDs = column("SELECT patient_ID FROM Patient ORDER BY 1 LIMIT 100000");
+		_departmentIDs = column("SELECT DISTINCT did FROM Doctor ORDER BY 1");
+		if (_doctorIDs.length == 0 || _patientIDs.length == 0 || _departmentIDs.length == 0) {
+			throw new SQLException("No data loaded, nothing to benchmark");
+		}
+		QueryResult slots = _esql.executeQueryForResult(
+			"SELECT DISTINCT D.did, A.adate FROM Appointment A, Doctor D, has_appointment H " +
+			"WHERE A.status = 'AV' AND H.appt_id = A.appnt_ID AND H.doctor_id = D.doctor_ID LIMIT 10000");
+		if (slots.isEmpty()) {
+			throw new SQLException("No available appointments loaded, nothing to benchmark");
+		}
+		_slotDepartments = new int[slots.size()];
+		_slotDates = new String[slots.size()];
+		for (int i = 0; i < slots.size(); i++) {
+			_slotDepartments[i] = slots.getInt(i, 0);
+			_slotDates[i] = slots.getDate(i, 1).toString();
+		}
+		QueryResult names = _esql.executeQueryForResult("SELECT name FROM Patient ORDER BY patient_ID LIMIT 1000");
+		_nameTerms = new String[names.size()];
+		for (int i = 0; i < names.size(); i++) {
+			String[] words = names.getString(i, 0).trim().split("\\s+");
+			_nameTerms[i] = words[words.length - 1];
+		}
+		//read outside the measurement
+		_esql.patientIndex().reload();
+		QueryResult dates = _esql.executeQueryForResult("SELECT MIN(adate), MAX(adate) FROM Appointment");
+		_firstDate = dates.getDate(0, 0);
+		_dateSpan = (int) Math.max(0, dates.getDate(0, 1).toEpochDay() - _firstDate.toEpochDay() - RANGE_DAYS);
+		System.out.printf("sampled %d doctors, %d patients, %d departments, %d department dates%n",
+			_doctorIDs.length, _patientIDs.length, _departmentIDs.length, _slotDates.length);
+	}
+
+	/*
+	 * Inserts BOOKING_SLOTS available appointments spread over the sampled
+	 * doctors, dated far in the future so no menu listing of real dates
+	 * shows them.
+	 */
+	void createBookingFixture() throws SQLException {
+		QueryResult doctors = _esql.executeQueryForResult(
+			"SELECT D.doctor_ID, Dep.hid FROM Doctor D, Department Dep WHERE D.did = Dep.dept_ID ORDER BY 1 LIMIT 1000");
+		int[] ids = new int[BOOKING_SLOTS];
+		int[] doctorIDs = new int[BOOKING_SLOTS];
+		int[] hospitalIDs = new int[BOOKING_SLOTS];
+		for (int i = 0; i < BOOKING_SLOTS; i++) {
+			ids[i] = _esql.appointmentIds().nextId();
+			doctorIDs[i] = doctors.getInt(i % doctors.size(), 0);
+			hospitalIDs[i] = doctors.getInt(i % doctors.size(), 1);
+		}
+		_esql.executeInTransaction(conn -> {
+			Array appointments = conn.getConnection().createArrayOf("integer", boxed(ids));
+			Array appointmentDoctors = conn.getConnection().createArrayOf("integer", boxed(doctorIDs));
+			conn.prepare("INSERT INTO Appointment (appnt_ID, adate, time_slot, status, doctor_id) " +
+				"SELECT S.id, CAST('2099-01-01' AS DATE), '8:00-10:00', 'AV', S.doctor_id FROM unnest(?, ?) AS S(id, doctor_id)",
+				appointments, appointmentDoctors).executeUpdate();
+			conn.prepare("INSERT INTO has_appointment (appt_id, doctor_id) SELECT * FROM unnest(?, ?)",
+				appointments, appointmentDoctors).executeUpdate();
+			return null;
+		});
+		_fixtureIDs = ids;
+		_fixtureDoctors = doctorIDs;
+		_fixtureHospitals = hospitalIDs;
+	}
+
+	/*
+	 * Removes the booking fixture and takes its bookings off the patients'
+	 * appointment counts.
+	 */
+	void dropBookingFixture() throws SQLException {
+		if (_fixtureIDs.length == 0) {
+			return;
+		}
+		final int[] ids = _fixtureIDs;
+		_esql.executeInTransaction(conn -> {
+			Array appointments = conn.getConnection().createArrayOf("integer", boxed(ids));
+			conn.prepare("UPDATE Patient P SET number_of_appts = P.number_of_appts - S.n " +
+				"FROM (SELECT pid, COUNT(*) AS n FROM searches WHERE aid = ANY(?) GROUP BY pid) S " +
+				"WHERE P.patient_ID = S.pid", appointments).executeUpdate();
+			conn.prepare("DELETE FROM searches WHERE aid = ANY(?)", appointments).executeUpdate();
+			conn.prepare("DELETE FROM has_appointment WHERE appt_id = ANY(?)", appointments).executeUpdate();
+			conn.prepare("DELETE FROM Appointment WHERE appnt_ID = ANY(?)", appointments).executeUpdate();
+			return null;
+		});
+		_fixtureIDs = new int[0];
+	}
+
+	/*
+	 * Runs one operation on all threads, first for the warmup period, then
+	 * for the measured period, and prints its line of the report.
+	 */
+	void run(Operation op, int warmupSeconds, int seconds) throws InterruptedException {
+		LatencyHistogram histogram = new LatencyHistogram();
+		AtomicLong errors = new AtomicLong();
+		drive(op, warmupSeconds, histogram, errors);
+		histogram.reset();
+		errors.set(0);
+		long elapsed = drive(op, seconds, histogram, errors);
+		double measured = elapsed / 1e9;
+		System.out.printf("%-30s %10d %10.1f %10.3f %10.3f %10.3f %10.3f%s%n", op.name, histogram.getCount(),
+			histogram.getCount() / measured, histogram.getPercentileNanos(50) / 1e6, histogram.getPercentileNanos(90) / 1e6,
+			histogram.getPercentileNanos(99) / 1e6, histogram.getMaxNanos() / 1e6,
+			errors.get() == 0 ? "" : "  errors=" + errors.get());
+	}
+
+	private long drive(Operation op, int seconds, LatencyHistogram histogram, AtomicLong errors) throws InterruptedException {
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(_threads);
+		long start = System.nanoTime();
+		for (int t = 0; t < _threads; t++) {
+			new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				try {
+					while (System.nanoTime() < deadline) {
+						long begin = System.nanoTime();
+						try {
+							if (!op.body.run(random)) {
+								return;
+							}
+						}catch (SQLException e) {
+							errors.incrementAndGet();
+							continue;
+						}
+						histogram.record(System.nanoTime() - begin);
+					}
+				}finally {
+					done.countDown();
+				}
+			}, "bench-" + op.name + "-" + t).start();
+		}
+		done.await();
+		return System.nanoTime() - start;
+	}
+
+	private int[] column(String query) throws SQLException {
+		QueryResult result = _esql.executeQueryForResult(query);
+		int[] values = new int[result.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = result.getInt(i, 0);
+		}
+		return values;
+	}
+
+	private static Operation query(String name, Query query) {
+		return new Operation(name, r -> {
+			query.run(r);
+			return true;
+		});
+	}
+
+	private static int pick(ThreadLocalRandom random, int[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private static String pick(ThreadLocalRandom random, String[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private static Integer[] boxed(int[] values) {
+		Integer[] boxed = new Integer[values.length];
+		for (int i = 0; i < values.length; i++) {
+			boxed[i] = values[i];
+		}
+		return boxed;
+	}
+
+	/**
+	 * One benchmarked operation.  The body returns false when it cannot run
+	 * any more, e.g. the booking fixture is used up.
+	 */
+	static class Operation {
+		final String name;
+		final Body body;
+
+		Operation(String name, Body body) {
+			this.name = name;
+			this.body = body;
+		}
+	}
+
+	interface Body {
+		boolean run(ThreadLocalRandom random) throws SQLException;
+	}
+
+	interface Query {
+		void run(ThreadLocalRandom random) throws SQLException;
+	}
+}
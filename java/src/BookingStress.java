@@ -0,0 +1,134 @@
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs a concurrent booking stress check against a live
+ * database.  It creates a set of fresh available appointments for one
+ * doctor, lets N threads try to book every one of them in a different
+ * order, then checks that each appointment was booked exactly once and is
+ * marked active in the database.  The rows it created are removed at the end.
+ *
+ * Usage: java -cp lib/*:bin/ BookingStress <dbname> <port> <user> [threads] [slots]
+ *
+ */
+
+public class BookingStress {
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + BookingStress.class.getName() +
+				" <dbname> <port> <user> [threads] [slots]");
+			return;
+		}
+		final int threads = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		final int slots = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+		//one connection per booker
+		System.setProperty("pool.maxSize", Integer.toString(threads + 1));
+
+		Class.forName("org.postgresql.Driver");
+		final DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			final int doctorID = esql.executeQueryForResult("SELECT doctor_ID FROM Doctor ORDER BY doctor_ID LIMIT 1").getInt(0, 0);
+			final int hospitalID = esql.executeQueryForResult("SELECT hospital_ID FROM Hospital ORDER BY hospital_ID LIMIT 1").getInt(0, 0);
+			final int patientID = esql.executeQueryForResult("SELECT patient_ID FROM Patient ORDER BY patient_ID LIMIT 1").getInt(0, 0);
+			QueryResult patient = esql.executeQueryForResult(Queries.PATIENT_BY_ID, patientID);
+			Integer appointmentsBefore = patient.isNull(0, patient.findColumn("number_of_appts"))
+				? null : patient.getInt(0, "number_of_appts");
+
+			//fixture: fresh available slots for the doctor
+			final List<Integer> ids = new ArrayList<Integer>();
+			for (int i = 0; i < slots; i++) {
+				int id = esql.appointmentIds().nextId();
+				esql.executeUpdate(Queries.INSERT_APPOINTMENT, id, "01/01/2099", LocalTime.of(8, 0), LocalTime.of(10, 0), "AV",
+					doctorID);
+				esql.executeUpdate(Queries.INSERT_HAS_APPOINTMENT, id, doctorID);
+				ids.add(id);
+			}
+
+			final AtomicIntegerArray booked = new AtomicIntegerArray(slots);
+			final AtomicLong attempts = new AtomicLong();
+			final AtomicLong errors = new AtomicLong();
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(threads);
+			for (int t = 0; t < threads; t++) {
+				final long seed = t;
+				new Thread(() -> {
+					List<Integer> order = new ArrayList<Integer>();
+					for (int i = 0; i < slots; i++) {
+						order.add(i);
+					}
+					Collections.shuffle(order, new Random(seed));
+					try {
+						start.await();
+						for (int i : order) {
+							attempts.incrementAndGet();
+							try {
+								if (HospitalService.bookAppointment(esql, patientID, doctorID, ids.get(i), hospitalID)) {
+									booked.incrementAndGet(i);
+								}
+							}catch (Exception e) {
+								errors.incrementAndGet();
+							}
+						}
+					}catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}finally {
+						done.countDown();
+					}
+				}, "booker-" + t).start();
+			}
+
+			long begin = System.nanoTime();
+			start.countDown();
+			done.await();
+			double seconds = (System.nanoTime() - begin) / 1e9;
+
+			int doubleBooked = 0;
+			int unbooked = 0;
+			for (int i = 0; i < slots; i++) {
+				if (booked.get(i) > 1) {
+					doubleBooked++;
+				}else if (booked.get(i) == 0) {
+					unbooked++;
+				}
+			}
+			int notActive = 0;
+			for (int id : ids) {
+				if (!"AC".equals(esql.executeQueryForResult(Queries.APPOINTMENT_BY_ID, id).getString(0, "status"))) {
+					notActive++;
+				}
+			}
+
+			System.out.printf("threads=%d slots=%d attempts=%d errors=%d time=%.2f s%n",
+				threads, slots, attempts.get(), errors.get(), seconds);
+			System.out.printf("throughput: %.0f attempts/s, %.0f bookings/s%n",
+				attempts.get() / seconds, (slots - unbooked) / seconds);
+			System.out.printf("double-booked=%d unbooked=%d not-active-in-db=%d%n", doubleBooked, unbooked, notActive);
+			System.out.println(esql.getConnectionPool());
+			boolean ok = doubleBooked == 0 && unbooked == 0 && notActive == 0 && errors.get() == 0;
+			System.out.println(ok ? "PASS" : "FAIL");
+
+			//remove the fixture
+			esql.executeInTransaction(conn -> {
+				for (int id : ids) {
+					conn.prepare("DELETE FROM searches WHERE aid = ?", id).executeUpdate();
+					conn.prepare("DELETE FROM has_appointment WHERE appt_id = ?", id).executeUpdate();
+					conn.prepare("DELETE FROM Appointment WHERE appnt_ID = ?", id).executeUpdate();
+				}
+				conn.prepare("UPDATE Patient SET number_of_appts = ? WHERE patient_ID = ?",
+					appointmentsBefore, patientID).executeUpdate();
+				return null;
+			});
+			if (!ok) {
+				System.exit(1);
+			}
+		}finally {
+			esql.cleanup();
+		}
+	}
+}
@@ -0,0 +1,403 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class loads the ten CSV files of a data directory (data/ or the
+ * output of DataGenerator) from the client through the PostgreSQL COPY
+ * protocol, so the files do not have to be on the database host and no
+ * superuser is needed.
+ *
+ * Tables are loaded level by level in foreign key order, the tables of one
+ * level in parallel on separate pooled connections.  Secondary indexes are
+ * dropped before the load and rebuilt afterwards, also when the load
+ * fails, and the indexes restored are reported.  Every COPY commits on
+ * its own: a failed load leaves the rows copied so far, run it again with
+ * --truncate.  The IDs of the loaded appointments are registered in
+ * appointment_ids (migration 003) before the tables referencing them are
+ * loaded, and their doctor is copied from has_appointment (migration 004)
+ * after the last table.  The ID sequences are
+ * reseeded past the loaded data and appointments of months that have no
+ * partition yet are moved into new ones.  The change triggers are disabled
+ * during the load and a single reload notice is sent on the change feed
+ * instead.  Progress is reported in rows per second.
+ *
+ * Usage: java -cp lib/*:bin/ BulkLoader <dbname> <port> <user> <csvDir> [--truncate]
+ *
+ */
+
+public class BulkLoader {
+	//time between two progress lines
+	static final int PROGRESS_INTERVAL_MS = 2000;
+
+	static final Table APPOINTMENT = new Table("Appointment", "appnt_ID, adate, time_slot, status", "appointment.csv");
+
+	/*
+	 * Tables grouped by foreign key dependencies: every table only
+	 * references tables of earlier levels.
+	 */
+	static final Table[][] LEVELS = {
+		{new Table("Hospital", "hospital_ID, name", "hospital.csv"),
+		 new Table("Patient", "patient_ID, name, gtype, age, address, number_of_appts", "patient.csv"),
+		 APPOINTMENT},
+		{new Table("Department", "dept_ID, name, hid", "department.csv"),
+		 new Table("Staff", "staff_ID, name, hid", "staff.csv"),
+		 new Table("searches", "hid, pid, aid", "searches.csv")},
+		{new Table("Doctor", "doctor_ID, name, specialty, did", "doctor.csv"),
+		 new Table("schedules", "appt_id, staff_id", "schedules.csv")},
+		{new Table("request_maintenance", "patient_per_hour, dept_name, time_slot, did, sid", "request_maintenance.csv"),
+		 new Table("has_appointment", "appt_id, doctor_id", "has_appointment.csv")},
+	};
+
+	private final DBproject _esql;
+	private final File _dir;
+
+	public BulkLoader(DBproject esql, File dir) {
+		this._esql = esql;
+		this._dir = dir;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java [-classpath <classpath>] " + BulkLoader.class.getName() +
+				" <dbname> <port> <user> <csvDir> [--truncate]");
+			return;
+		}
+		boolean truncate = args.length > 4 && args[4].equals("--truncate");
+		System.setProperty("changes.listen", "false");
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			new BulkLoader(esql, new File(args[3])).load(truncate);
+		}finally {
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Method to load every CSV file of the directory.
+	 *
+	 * @param truncate empty all ten tables first
+	 * @return the number of rows loaded
+	 * @throws java.sql.SQLException when a COPY or an index rebuild failed
+	 * @throws java.io.IOException when a file is missing or unreadable
+	 */
+	public long load(boolean truncate) throws SQLException, IOException {
+		for (Table[] level : LEVELS) {
+			for (Table table : level) {
+				File file = new File(_dir, table.file);
+				if (!file.canRead()) {
+					throw new IOException("Cannot read " + file);
+				}
+				table.rows.set(0);
+			}
+		}
+		long start = System.nanoTime();
+
+		boolean registry = _esql.executeQuery(Queries.APPOINTMENT_IDS_REGISTERED) > 0;
+		boolean doctors = _esql.executeQuery(Queries.APPOINTMENT_HAS_DOCTOR) > 0;
+		if (truncate) {
+			System.out.println("Truncating tables...");
+			StringBuilder names = new StringBuilder();
+			for (Table[] level : LEVELS) {
+				for (Table table : level) {
+					names.append(names.length() == 0 ? "" : ", ").append(table.name);
+				}
+			}
+			if (registry) {
+				names.append(", appointment_ids");
+			}
+			_esql.executeUpdate("TRUNCATE " + names + " CASCADE");
+		}
+
+		//name and definition of every dropped index
+		List<String[]> indexes = new ArrayList<String[]>();
+		ExecutorService pool = Executors.newFixedThreadPool(maxLevelWidth());
+		List<Table> all = new ArrayList<Table>();
+		Thread progress = null;
+		boolean loaded = false;
+		try {
+			dropSecondaryIndexes(indexes);
+			//no change notification per loaded row, one reload notice at the end
+			setUserTriggers(false);
+			for (Table[] level : LEVELS) {
+				for (Table table : level) {
+					all.add(table);
+				}
+			}
+			progress = startProgress(all, start);
+			for (Table[] level : LEVELS) {
+				List<Future<Long>> copies = new ArrayList<Future<Long>>();
+				for (Table table : level) {
+					copies.add(pool.submit(() -> copy(table)));
+				}
+				waitFor(copies);
+				if (registry && Arrays.asList(level).contains(APPOINTMENT)) {
+					//the registry trigger is off with the others, the next levels reference it
+					_esql.executeQueryForResult(Queries.REGISTER_APPOINTMENT_IDS);
+				}
+			}
+			if (doctors) {
+				//still without triggers and the GiST index
+				_esql.executeUpdate(Queries.FILL_APPOINTMENT_DOCTORS);
+			}
+			loaded = true;
+		}finally {
+			if (progress != null) {
+				progress.interrupt();
+			}
+			pool.shutdownNow();
+			if (!loaded) {
+				System.out.println("Load failed, the tables keep the rows copied so far");
+			}
+			try {
+				setUserTriggers(true);
+			}finally {
+				restoreIndexes(indexes, loaded);
+			}
+		}
+
+		_esql.executeQueryForResult(registry ? Queries.RESEED_ID_SEQUENCES_WITH_REGISTRY : Queries.RESEED_ID_SEQUENCES);
+		//the counting triggers were off too
+		_esql.executeQueryForResult(Queries.REBUILD_STATUS_COUNTS);
+		//months without a partition were loaded into the default one
+		PartitionMaintenance partitions = new PartitionMaintenance(_esql, System.out);
+		if (partitions.isPartitioned()) {
+			partitions.splitDefault();
+		}
+		_esql.executeUpdate("ANALYZE");
+		_esql.referenceCache().invalidateAll();
+		_esql.availability().invalidate();
+		_esql.patientIndex().invalidate();
+		_esql.executeQueryForResult(Queries.NOTIFY, ChangeListener.CHANNEL, "{\"table\": \"*\", \"op\": \"LOAD\"}");
+
+		long rows = 0;
+		for (Table table : all) {
+			rows += table.rows.get();
+			System.out.printf("  %-20s %,12d rows%n", table.name, table.rows.get());
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Loaded %,d rows in %.1f s (%,.0f rows/s)%n", rows, seconds, rows / seconds);
+		return rows;
+	}
+
+	private long copy(Table table) throws SQLException, IOException {
+		ConnectionPool.PooledConnection conn = _esql.getConnectionPool().borrow();
+		try (InputStream in = new CountingInputStream(
+				new BufferedInputStream(new FileInputStream(new File(_dir, table.file)), 1 << 16), table.rows)) {
+			PGConnection pg = conn.getConnection().unwrap(PGConnection.class);
+			String sql = "COPY " + table.name + " (" + table.columns + ") FROM STDIN WITH DELIMITER ','";
+			long copied = pg.getCopyAPI().copyIn(sql, in, 1 << 16);
+			table.rows.set(copied);
+			return copied;
+		}catch (SQLException e) {
+			conn.checkBroken(e);
+			throw e;
+		}finally {
+			_esql.getConnectionPool().release(conn);
+		}
+	}
+
+	/*
+	 * Drops the indexes of the loaded tables that do not back a primary key
+	 * or unique constraint.  The name and definition of each is added to
+	 * dropped before it is dropped, so a failure halfway still restores the
+	 * ones gone.
+	 */
+	private void dropSecondaryIndexes(List<String[]> dropped) throws SQLException {
+		StringBuilder tables = new StringBuilder();
+		for (Table[] level : LEVELS) {
+			for (Table table : level) {
+				tables.append(tables.length() == 0 ? "" : ", ").append("'").append(table.name.toLowerCase()).append("'");
+			}
+		}
+		QueryResult result = _esql.executeQueryForResult(
+			"SELECT I.indexname, I.indexdef FROM pg_indexes I WHERE I.schemaname = 'public' " +
+			"AND I.tablename IN (" + tables + ") " +
+			"AND NOT EXISTS (SELECT 1 FROM pg_constraint C WHERE C.conname = I.indexname)");
+		for (int i = 0; i < result.size(); i++) {
+			String name = result.getString(i, "indexname");
+			dropped.add(new String[] {name, result.getString(i, "indexdef")});
+			_esql.executeUpdate("DROP INDEX IF EXISTS " + name);
+		}
+	}
+
+	/*
+	 * Recreates the dropped indexes in parallel and reports which were
+	 * restored.  After a successful load a failed rebuild is thrown; after
+	 * a failed load it is only reported, so the load error is the one
+	 * thrown.
+	 */
+	private void restoreIndexes(List<String[]> dropped, boolean loaded) throws SQLException {
+		if (dropped.isEmpty()) {
+			return;
+		}
+		System.out.println("Rebuilding " + dropped.size() + " indexes...");
+		ExecutorService pool = Executors.newFixedThreadPool(maxLevelWidth());
+		List<Future<Long>> builds = new ArrayList<Future<Long>>();
+		try {
+			for (String[] index : dropped) {
+				//a drop that failed left the index in place; ON ONLY would not build the partitions
+				String definition = index[1].replaceFirst("^CREATE (UNIQUE )?INDEX ", "CREATE $1INDEX IF NOT EXISTS ")
+					.replaceFirst(" ON ONLY ", " ON ");
+				builds.add(pool.submit(() -> (long) _esql.executeUpdate(definition)));
+			}
+			List<String> restored = new ArrayList<String>();
+			List<String> failed = new ArrayList<String>();
+			SQLException error = null;
+			for (int i = 0; i < builds.size(); i++) {
+				try {
+					waitFor(builds.subList(i, i + 1));
+					restored.add(dropped.get(i)[0]);
+				}catch (SQLException | IOException | RuntimeException e) {
+					failed.add(dropped.get(i)[1]);
+					if (error == null) {
+						error = new SQLException("Could not rebuild " + dropped.get(i)[0] + ": " + e.getMessage(), e);
+					}
+				}
+			}
+			System.out.println("Restored " + restored.size() + " of " + dropped.size() + " indexes: " +
+				String.join(", ", restored));
+			for (String definition : failed) {
+				System.err.println("Not restored, recreate by hand: " + definition);
+			}
+			if (error != null && loaded) {
+				throw error;
+			}
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void setUserTriggers(boolean enabled) throws SQLException {
+		for (Table[] level : LEVELS) {
+			for (Table table : level) {
+				_esql.executeUpdate("ALTER TABLE " + table.name + (enabled ? " ENABLE" : " DISABLE") + " TRIGGER USER");
+			}
+		}
+	}
+
+	private Thread startProgress(List<Table> tables, long start) {
+		Thread progress = new Thread(() -> {
+			long lastRows = 0;
+			long lastTime = System.nanoTime();
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					Thread.sleep(PROGRESS_INTERVAL_MS);
+				}catch (InterruptedException e) {
+					return;
+				}
+				long rows = 0;
+				StringBuilder active = new StringBuilder();
+				for (Table table : tables) {
+					rows += table.rows.get();
+					if (table.rows.get() > 0) {
+						active.append(' ').append(table.name).append('=').append(table.rows.get());
+					}
+				}
+				long now = System.nanoTime();
+				System.out.printf("  %,d rows, %,.0f rows/s (%,.0f rows/s overall)%s%n", rows,
+					(rows - lastRows) / ((now - lastTime) / 1e9), rows / ((now - start) / 1e9), active);
+				lastRows = rows;
+				lastTime = now;
+			}
+		}, "bulk-load-progress");
+		progress.setDaemon(true);
+		progress.start();
+		return progress;
+	}
+
+	private static int maxLevelWidth() {
+		int width = 1;
+		for (Table[] level : LEVELS) {
+			width = Math.max(width, level.length);
+		}
+		return width;
+	}
+
+	private static void waitFor(List<Future<Long>> futures) throws SQLException, IOException {
+		for (Future<Long> future : futures) {
+			try {
+				future.get();
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted during bulk load");
+			}catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof SQLException) {
+					throw (SQLException) cause;
+				}
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
+	/**
+	 * A table, its CSV columns and file name, and the rows copied so far.
+	 */
+	static class Table {
+		final String name;
+		final String columns;
+		final String file;
+		final AtomicLong rows = new AtomicLong();
+
+		Table(String name, String columns, String file) {
+			this.name = name;
+			this.columns = columns;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Counts the lines read through it, one per CSV row.
+	 */
+	static class CountingInputStream extends FilterInputStream {
+		private final AtomicLong _lines;
+
+		CountingInputStream(InputStream in, AtomicLong lines) {
+			super(in);
+			this._lines = lines;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b == '\n') {
+				_lines.incrementAndGet();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+			int lines = 0;
+			for (int i = offset; i < offset + n; i++) {
+				if (buffer[i] == '\n') {
+					lines++;
+				}
+			}
+			if (lines > 0) {
+				_lines.addAndGet(lines);
+			}
+			return n;
+		}
+	}
+}
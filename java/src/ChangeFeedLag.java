@@ -0,0 +1,120 @@
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures how long a change made by one client takes to reach
+ * the caches of another through the hospital_changes feed.  Writer threads
+ * flip the status of a set of fresh appointments between AV and WL as fast
+ * as they can; the ChangeListener of this process receives the resulting
+ * notifications and records the lag from the trigger to the applied change.
+ * The appointments it created are removed at the end.
+ *
+ * Usage: java -cp lib/*:bin/ ChangeFeedLag <dbname> <port> <user> [writers] [seconds] [slots]
+ *
+ */
+
+public class ChangeFeedLag {
+	//longest wait for the last notifications once the writers stopped
+	static final long DRAIN_TIMEOUT_MS = 10000;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + ChangeFeedLag.class.getName() +
+				" <dbname> <port> <user> [writers] [seconds] [slots]");
+			return;
+		}
+		final int writers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		final int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+		final int slots = args.length > 5 ? Integer.parseInt(args[5]) : 200;
+		System.setProperty("pool.maxSize", Integer.toString(writers + 2));
+		System.setProperty("changes.listen", "true");
+
+		Class.forName("org.postgresql.Driver");
+		final DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			ChangeListener listener = esql.changeListener();
+			if (listener == null) {
+				System.err.println("The change listener did not start");
+				System.exit(1);
+			}
+			//the index is loaded so every notification costs a refresh, as in the menu
+			esql.availability().reload();
+
+			final int doctorID = esql.executeQueryForResult("SELECT doctor_ID FROM Doctor ORDER BY doctor_ID LIMIT 1").getInt(0, 0);
+			final List<Integer> ids = new ArrayList<Integer>();
+			for (int i = 0; i < slots; i++) {
+				int id = esql.appointmentIds().nextId();
+				esql.executeUpdate(Queries.INSERT_APPOINTMENT, id, "01/01/2099", LocalTime.of(8, 0), LocalTime.of(10, 0), "AV",
+					doctorID);
+				esql.executeUpdate(Queries.INSERT_HAS_APPOINTMENT, id, doctorID);
+				ids.add(id);
+			}
+			//let the fixture's own notifications pass before measuring
+			waitForDrain(listener, listener.getReceived() + 2L * slots);
+			listener.getLag().reset();
+			long receivedBefore = listener.getReceived();
+
+			final AtomicLong writes = new AtomicLong();
+			final AtomicLong errors = new AtomicLong();
+			final long deadline = System.nanoTime() + seconds * 1000000000L;
+			final CountDownLatch done = new CountDownLatch(writers);
+			long begin = System.nanoTime();
+			for (int t = 0; t < writers; t++) {
+				new Thread(() -> {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					try {
+						while (System.nanoTime() < deadline) {
+							try {
+								esql.executeUpdate("UPDATE Appointment SET status = CASE WHEN status = 'AV' THEN 'WL' ELSE 'AV' END " +
+									"WHERE appnt_ID = ?", ids.get(random.nextInt(ids.size())));
+								writes.incrementAndGet();
+							}catch (Exception e) {
+								errors.incrementAndGet();
+							}
+						}
+					}finally {
+						done.countDown();
+					}
+				}, "writer-" + t).start();
+			}
+			done.await();
+			double elapsed = (System.nanoTime() - begin) / 1e9;
+			boolean drained = waitForDrain(listener, receivedBefore + writes.get());
+
+			System.out.printf("writers=%d slots=%d writes=%d errors=%d time=%.2f s (%.0f writes/s)%n",
+				writers, slots, writes.get(), errors.get(), elapsed, writes.get() / elapsed);
+			System.out.printf("received %d of %d notifications%s%n", listener.getReceived() - receivedBefore,
+				writes.get(), drained ? "" : " (gave up waiting)");
+			System.out.println("propagation lag: " + listener.getLag());
+
+			//remove the fixture
+			esql.executeInTransaction(conn -> {
+				for (int id : ids) {
+					conn.prepare("DELETE FROM has_appointment WHERE appt_id = ?", id).executeUpdate();
+					conn.prepare("DELETE FROM Appointment WHERE appnt_ID = ?", id).executeUpdate();
+				}
+				return null;
+			});
+			for (int id : ids) {
+				esql.availability().remove(id);
+			}
+		}finally {
+			esql.cleanup();
+		}
+	}
+
+	private static boolean waitForDrain(ChangeListener listener, long expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+		while (listener.getReceived() < expected) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(20);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,210 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class listens on the hospital_changes channel filled by the
+ * notify_change() triggers of create.sql and applies each change to the
+ * caches of this client, so several front-ends can run against one
+ * database without serving each other stale data:
+ *
+ *   Appointment, has_appointment  refresh the appointment in the AvailabilityIndex,
+ *                                 then offer it to the Waitlist when it is available
+ *   Doctor                        drop the cached specialties (and the index on updates)
+ *   Department                    drop the cached departments of the hospital
+ *   Patient                       index the new name and address in the PatientIndex
+ *   "*" (after bulk writes)       drop everything, then offer the available slots
+ *                                 to the Waitlist
+ *
+ * The listener holds a dedicated connection, LISTEN being session state.
+ * When the connection is lost, everything is dropped, since changes may
+ * have been missed, and the listener reconnects.  The lag from the trigger
+ * to the applied change is recorded in a histogram.
+ *
+ */
+
+public class ChangeListener {
+	static final String CHANNEL = "hospital_changes";
+	//longest wait for notifications before checking for shutdown
+	static final int POLL_TIMEOUT_MS = 500;
+	static final long RECONNECT_DELAY_MS = 2000;
+
+	private final DBproject _esql;
+	private volatile boolean _running = false;
+	private Thread _thread;
+	private Connection _connection;
+
+	private final LatencyHistogram _lag = new LatencyHistogram();
+	private final AtomicLong _received = new AtomicLong();
+	private final AtomicLong _errors = new AtomicLong();
+	private final AtomicLong _reconnects = new AtomicLong();
+
+	public ChangeListener(DBproject esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to start listening on a background thread.
+	 *
+	 * @throws java.sql.SQLException when the first connection or LISTEN failed
+	 */
+	public synchronized void start() throws SQLException {
+		if (_running) {
+			return;
+		}
+		connect();
+		_running = true;
+		_thread = new Thread(this::run, "change-listener");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Method to stop listening and close the connection.
+	 */
+	public synchronized void stop() {
+		_running = false;
+		if (_thread != null) {
+			try {
+				_thread.join(POLL_TIMEOUT_MS * 4L);
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			_thread = null;
+		}
+		disconnect();
+	}
+
+	/**
+	 * @return the lag from the trigger to the applied change
+	 */
+	public LatencyHistogram getLag() {
+		return _lag;
+	}
+
+	public long getReceived() {
+		return _received.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("change feed: received=%d errors=%d reconnects=%d lag %s",
+			_received.get(), _errors.get(), _reconnects.get(), _lag);
+	}
+
+	private void run() {
+		while (_running) {
+			try {
+				if (_connection == null) {
+					connect();
+					_reconnects.incrementAndGet();
+					//changes made while disconnected were missed
+					invalidateAll();
+				}
+				PGNotification[] notifications = _connection.unwrap(PGConnection.class).getNotifications(POLL_TIMEOUT_MS);
+				if (notifications != null) {
+					for (PGNotification notification : notifications) {
+						apply(notification.getParameter());
+					}
+				}
+			}catch (SQLException e) {
+				if (!_running) {
+					break;
+				}
+				_errors.incrementAndGet();
+				System.err.println("Change listener: " + e.getMessage());
+				disconnect();
+				try {
+					Thread.sleep(RECONNECT_DELAY_MS);
+				}catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Applies one change, see notify_change() in create.sql for the payload.
+	 */
+	@SuppressWarnings("unchecked")
+	void apply(String payload) throws SQLException {
+		_received.incrementAndGet();
+		Map<String, Object> change;
+		try {
+			change = Json.parseObject(payload);
+		}catch (IllegalArgumentException e) {
+			_errors.incrementAndGet();
+			System.err.println("Change listener: " + e.getMessage());
+			return;
+		}
+		String table = String.valueOf(change.get("table"));
+		Map<String, Object> row = change.get("row") instanceof Map ? (Map<String, Object>) change.get("row") : null;
+		if (row == null || table.equals("*")) {
+			invalidateAll();
+			//many slots may have become available at once
+			_esql.waitlist().offerAvailable();
+		}else if (table.equals("appointment") || table.equals("has_appointment")) {
+			_esql.availability().refresh(intOf(row.get("id")));
+			_esql.waitlist().offer(intOf(row.get("id")));
+		}else if (table.equals("doctor")) {
+			_esql.referenceCache().invalidateSpecialties();
+			if ("UPDATE".equals(change.get("op"))) {
+				//the doctor may have moved to another department
+				_esql.availability().invalidate();
+			}
+		}else if (table.equals("patient")) {
+			_esql.patientIndex().add(intOf(row.get("patient")), String.valueOf(row.get("name")),
+				row.get("address") == null ? null : String.valueOf(row.get("address")));
+		}else if (table.equals("department")) {
+			_esql.referenceCache().invalidateDepartments(intOf(row.get("hid")));
+			if (row.get("old_hid") != null) {
+				_esql.referenceCache().invalidateDepartments(intOf(row.get("old_hid")));
+			}
+		}
+		if (change.get("ts") instanceof Number) {
+			_lag.record((System.currentTimeMillis() - ((Number) change.get("ts")).longValue()) * 1000000L);
+		}
+	}
+
+	private void invalidateAll() {
+		_esql.referenceCache().invalidateAll();
+		_esql.availability().invalidate();
+		_esql.patientIndex().invalidate();
+	}
+
+	private void connect() throws SQLException {
+		Connection connection = _esql.getConnectionPool().openDedicated();
+		try {
+			Statement stmt = connection.createStatement();
+			try {
+				stmt.execute("LISTEN " + CHANNEL);
+			}finally {
+				stmt.close();
+			}
+		}catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+		_connection = connection;
+	}
+
+	private void disconnect() {
+		if (_connection != null) {
+			try {
+				_connection.close();
+			}catch (SQLException e) {
+				// ignored.
+			}
+			_connection = null;
+		}
+	}
+
+	private static int intOf(Object value) {
+		return ((Number) value).intValue();
+	}
+}
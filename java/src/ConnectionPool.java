@@ -0,0 +1,507 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class defines a bounded pool of physical connections to the
+ * database.  Callers borrow a connection for the duration of one operation
+ * and release it afterwards, so several sessions can share one JVM.
+ *
+ * Idle connections above the minimum size are closed after the idle
+ * timeout, connections idle for longer than the validation interval are
+ * checked before they are handed out, and connections held for longer than
+ * the leak threshold are reported together with the stack of the borrower.
+ * Capturing that stack costs every borrow, so leak tracking is meant for
+ * debugging and is off with a threshold of 0.
+ *
+ */
+
+public class ConnectionPool {
+	private final String _url;
+	private final Properties _props;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _acquireTimeoutMs;
+	private final long _idleTimeoutMs;
+	private final long _validationIntervalMs;
+	private final long _leakThresholdMs;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _available = _lock.newCondition();
+	//most recently released connection is reused first
+	private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private final Set<PooledConnection> _borrowed =
+		Collections.newSetFromMap(new IdentityHashMap<PooledConnection, Boolean>());
+	//idle + borrowed + connections being opened
+	private int _total = 0;
+	private boolean _closed = false;
+	private final ScheduledExecutorService _housekeeper;
+
+	//metrics, guarded by _lock
+	private long _borrows = 0;
+	private long _waits = 0;
+	private long _timeouts = 0;
+	private long _totalWaitNanos = 0;
+	private long _maxWaitNanos = 0;
+	private long _created = 0;
+	private long _evicted = 0;
+	private long _invalid = 0;
+	private long _leaks = 0;
+	private int _peakBorrowed = 0;
+
+	public ConnectionPool(String url, Properties props, int minSize, int maxSize,
+			long acquireTimeoutMs, long idleTimeoutMs, long validationIntervalMs, long leakThresholdMs)
+			throws SQLException {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+			throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+		}
+		this._url = url;
+		this._props = props;
+		this._minSize = minSize;
+		this._maxSize = maxSize;
+		this._acquireTimeoutMs = acquireTimeoutMs;
+		this._idleTimeoutMs = idleTimeoutMs;
+		this._validationIntervalMs = validationIntervalMs;
+		this._leakThresholdMs = leakThresholdMs;
+
+		//open the minimum number of connections up front so a bad URL fails fast
+		for (int i = 0; i < minSize; i++) {
+			PooledConnection conn = open();
+			_lock.lock();
+			try {
+				_total++;
+				_idle.push(conn);
+			}finally {
+				_lock.unlock();
+			}
+		}
+
+		this._housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "connection-pool-housekeeper");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000, (leakThresholdMs > 0 ? Math.min(idleTimeoutMs, leakThresholdMs) : idleTimeoutMs) / 2);
+		this._housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to borrow a connection from the pool.  Waits up to the acquire
+	 * timeout when every connection is in use and the pool is at its
+	 * maximum size.
+	 *
+	 * @return a validated connection, to be given back with release()
+	 * @throws java.sql.SQLException when no connection could be obtained in time
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(_acquireTimeoutMs);
+		boolean waited = false;
+		while (true) {
+			PooledConnection conn = null;
+			boolean create = false;
+			_lock.lock();
+			try {
+				while (true) {
+					if (_closed) {
+						throw new SQLException("Connection pool is closed");
+					}
+					if (!_idle.isEmpty()) {
+						conn = _idle.pop();
+						break;
+					}
+					if (_total < _maxSize) {
+						_total++;
+						create = true;
+						break;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						_timeouts++;
+						throw new SQLException("Timed out after " + _acquireTimeoutMs +
+							" ms waiting for a database connection (" + _maxSize + " in use)");
+					}
+					if (!waited) {
+						waited = true;
+						_waits++;
+					}
+					try {
+						_available.awaitNanos(remaining);
+					}catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection");
+					}
+				}
+			}finally {
+				_lock.unlock();
+			}
+
+			if (create) {
+				try {
+					conn = open();
+				}catch (SQLException e) {
+					discard(null);
+					throw e;
+				}
+			}else if (!validate(conn)) {
+				discard(conn);
+				continue;
+			}
+
+			long waitNanos = System.nanoTime() - start;
+			_lock.lock();
+			try {
+				_borrows++;
+				_totalWaitNanos += waitNanos;
+				_maxWaitNanos = Math.max(_maxWaitNanos, waitNanos);
+				_borrowed.add(conn);
+				_peakBorrowed = Math.max(_peakBorrowed, _borrowed.size());
+			}finally {
+				_lock.unlock();
+			}
+			conn.onBorrow(_leakThresholdMs > 0);
+			return conn;
+		}
+	}
+
+	/**
+	 * Method to give a borrowed connection back to the pool.  Connections
+	 * left inside a transaction are rolled back, broken ones are closed.
+	 *
+	 * @param conn the connection returned by borrow()
+	 */
+	public void release(PooledConnection conn) {
+		if (conn == null) {
+			return;
+		}
+		boolean healthy = !conn.isBroken();
+		if (healthy) {
+			try {
+				if (conn.getConnection().isClosed()) {
+					healthy = false;
+				}else if (!conn.getConnection().getAutoCommit()) {
+					conn.getConnection().rollback();
+					conn.getConnection().setAutoCommit(true);
+				}
+			}catch (SQLException e) {
+				healthy = false;
+			}
+		}
+		_lock.lock();
+		try {
+			if (!_borrowed.remove(conn)) {
+				return;
+			}
+			if (healthy && !_closed) {
+				conn.onRelease();
+				_idle.push(conn);
+				_available.signal();
+				return;
+			}
+		}finally {
+			_lock.unlock();
+		}
+		discard(conn);
+	}
+
+	/**
+	 * Method to close every connection of the pool.  Borrowed connections
+	 * are closed when they are released.
+	 */
+	public void close() {
+		List<PooledConnection> idle;
+		_lock.lock();
+		try {
+			_closed = true;
+			idle = new ArrayList<PooledConnection>(_idle);
+			_total -= _idle.size();
+			_idle.clear();
+			_available.signalAll();
+		}finally {
+			_lock.unlock();
+		}
+		_housekeeper.shutdownNow();
+		for (PooledConnection conn : idle) {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Method to open a physical connection with the settings of the pool
+	 * that is not part of the pool, for a session that keeps state of its
+	 * own (e.g. LISTEN).  The caller closes it.
+	 *
+	 * @return a new connection
+	 * @throws java.sql.SQLException when the connection could not be opened
+	 */
+	public Connection openDedicated() throws SQLException {
+		return DriverManager.getConnection(_url, _props);
+	}
+
+	private PooledConnection open() throws SQLException {
+		Connection physical = DriverManager.getConnection(_url, _props);
+		_lock.lock();
+		try {
+			_created++;
+		}finally {
+			_lock.unlock();
+		}
+		return new PooledConnection(physical);
+	}
+
+	private boolean validate(PooledConnection conn) {
+		if (System.currentTimeMillis() - conn.getLastUsed() < _validationIntervalMs) {
+			return true;
+		}
+		try {
+			if (conn.getConnection().isValid(5)) {
+				return true;
+			}
+		}catch (SQLException e) {
+			// treated as invalid.
+		}
+		_lock.lock();
+		try {
+			_invalid++;
+		}finally {
+			_lock.unlock();
+		}
+		return false;
+	}
+
+	//closes a connection that is no longer counted as idle or borrowed
+	private void discard(PooledConnection conn) {
+		_lock.lock();
+		try {
+			_total--;
+			_available.signal();
+		}finally {
+			_lock.unlock();
+		}
+		if (conn != null) {
+			conn.close();
+		}
+	}
+
+	private void housekeep() {
+		List<PooledConnection> expired = new ArrayList<PooledConnection>();
+		List<PooledConnection> leaked = new ArrayList<PooledConnection>();
+		int missing;
+		long now = System.currentTimeMillis();
+		_lock.lock();
+		try {
+			if (_closed) {
+				return;
+			}
+			//the oldest idle connections sit at the tail of the deque
+			while (_total - expired.size() > _minSize && !_idle.isEmpty()
+					&& now - _idle.peekLast().getLastUsed() > _idleTimeoutMs) {
+				expired.add(_idle.pollLast());
+			}
+			_total -= expired.size();
+			_evicted += expired.size();
+			if (_leakThresholdMs > 0) {
+				for (PooledConnection conn : _borrowed) {
+					if (!conn.isLeakReported() && now - conn.getBorrowedAt() > _leakThresholdMs) {
+						conn.setLeakReported();
+						leaked.add(conn);
+						_leaks++;
+					}
+				}
+			}
+			missing = _minSize - _total;
+			_total += Math.max(0, missing);
+		}finally {
+			_lock.unlock();
+		}
+
+		for (PooledConnection conn : expired) {
+			conn.close();
+		}
+		for (PooledConnection conn : leaked) {
+			System.err.println("Connection pool: connection held for more than " + _leakThresholdMs +
+				" ms, possible leak. Borrowed at:");
+			if (conn.getBorrowStack() != null) {
+				conn.getBorrowStack().printStackTrace();
+			}
+		}
+		for (int i = 0; i < missing; i++) {
+			try {
+				PooledConnection conn = open();
+				_lock.lock();
+				try {
+					_idle.addLast(conn);
+					_available.signal();
+				}finally {
+					_lock.unlock();
+				}
+			}catch (SQLException e) {
+				discard(null);
+			}
+		}
+	}
+
+	public int getMaxSize() {
+		return _maxSize;
+	}
+
+	@Override
+	public String toString() {
+		_lock.lock();
+		try {
+			double avgWaitMs = _borrows == 0 ? 0.0 : _totalWaitNanos / 1e6 / _borrows;
+			double saturation = _borrows == 0 ? 0.0 : (100.0 * _waits) / _borrows;
+			return String.format(
+				"size=%d idle=%d in-use=%d peak-in-use=%d max=%d | borrows=%d waited=%d (%.1f%% saturated) " +
+				"timeouts=%d avg-wait=%.3f ms max-wait=%.3f ms | created=%d evicted=%d invalid=%d leaks=%d",
+				_total, _idle.size(), _borrowed.size(), _peakBorrowed, _maxSize, _borrows, _waits, saturation,
+				_timeouts, avgWaitMs, _maxWaitNanos / 1e6, _created, _evicted, _invalid, _leaks);
+		}finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * This class wraps one physical connection of the pool together with its
+	 * prepared statement cache.
+	 *
+	 */
+	public static class PooledConnection {
+		private final Connection _connection;
+		private final StatementCache _statementCache;
+		private volatile long _lastUsed = System.currentTimeMillis();
+		private volatile long _borrowedAt = 0;
+		private volatile Throwable _borrowStack = null;
+		private volatile boolean _leakReported = false;
+		private volatile boolean _broken = false;
+		//SQL prepared since startTrace(), names a transaction in the query statistics
+		private List<String> _trace = null;
+
+		PooledConnection(Connection connection) {
+			this._connection = connection;
+			this._statementCache = new StatementCache(connection, DBproject.STATEMENT_CACHE_SIZE);
+		}
+
+		public Connection getConnection() {
+			return _connection;
+		}
+
+		public StatementCache getStatementCache() {
+			return _statementCache;
+		}
+
+		/**
+		 * Method to fetch the cached prepared statement for a SQL template and
+		 * bind the given values to it.
+		 *
+		 * @param sql the SQL template with '?' placeholders
+		 * @param params the values bound to the placeholders, in order
+		 * @return the bound prepared statement
+		 * @throws java.sql.SQLException when the statement cannot be prepared
+		 */
+		public PreparedStatement prepare(String sql, Object... params) throws SQLException {
+			PreparedStatement stmt = _statementCache.prepare(sql);
+			if (_trace != null) {
+				_trace.add(sql);
+			}
+			stmt.clearParameters();
+			for (int i = 0; i < params.length; i++) {
+				Object value = params[i];
+				if (value instanceof Integer) {
+					stmt.setInt(i + 1, (Integer) value);
+				}else if (value instanceof Long) {
+					stmt.setLong(i + 1, (Long) value);
+				}else if (value instanceof String) {
+					stmt.setString(i + 1, (String) value);
+				}else {
+					stmt.setObject(i + 1, value);
+				}
+			}
+			return stmt;
+		}
+
+		/**
+		 * Method to flag the connection as unusable when an error says the
+		 * session is gone (SQL state class 08), so release() closes it.
+		 *
+		 * @param e the error raised while using the connection
+		 */
+		public void checkBroken(SQLException e) {
+			String state = e.getSQLState();
+			if (state != null && state.startsWith("08")) {
+				_broken = true;
+			}
+		}
+
+		void startTrace() {
+			_trace = new ArrayList<String>();
+		}
+
+		/*
+		 * Every statement prepared since startTrace(), in order, repeats
+		 * included.
+		 */
+		List<String> endTrace() {
+			List<String> statements = _trace == null ? Collections.<String>emptyList() : _trace;
+			_trace = null;
+			return statements;
+		}
+
+		boolean isBroken() {
+			return _broken;
+		}
+
+		void onBorrow(boolean captureStack) {
+			_borrowedAt = System.currentTimeMillis();
+			_leakReported = false;
+			_borrowStack = captureStack ? new Exception("borrowed by " + Thread.currentThread().getName()) : null;
+		}
+
+		void onRelease() {
+			_lastUsed = System.currentTimeMillis();
+			_borrowStack = null;
+		}
+
+		long getLastUsed() {
+			return _lastUsed;
+		}
+
+		long getBorrowedAt() {
+			return _borrowedAt;
+		}
+
+		Throwable getBorrowStack() {
+			return _borrowStack;
+		}
+
+		boolean isLeakReported() {
+			return _leakReported;
+		}
+
+		void setLeakReported() {
+			_leakReported = true;
+		}
+
+		void close() {
+			_statementCache.clear();
+			try {
+				_connection.close();
+			}catch (SQLException e) {
+				// ignored.
+			}
+		}
+	}
+}
@@ -11,18 +11,28 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.Properties;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.time.LocalDate;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,8 +41,58 @@ import java.util.ArrayList;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//number of prepared statements kept per connection
+	static final int STATEMENT_CACHE_SIZE = 64;
+
+	//connection pool settings, overridable with -Dpool.<name>=<value>
+	static final int POOL_MIN_SIZE = Integer.getInteger("pool.minSize", 1);
+	static final int POOL_MAX_SIZE = Integer.getInteger("pool.maxSize", 8);
+	static final long POOL_ACQUIRE_TIMEOUT_MS = Long.getLong("pool.acquireTimeoutMs", 10000L);
+	static final long POOL_IDLE_TIMEOUT_MS = Long.getLong("pool.idleTimeoutMs", 300000L);
+	static final long POOL_VALIDATION_INTERVAL_MS = Long.getLong("pool.validationIntervalMs", 1000L);
+	//0 turns leak tracking off, it captures the stack of every borrower
+	static final long POOL_LEAK_THRESHOLD_MS = Long.getLong("pool.leakThresholdMs", 0L);
+
+	//threads running the asynchronous queries, one connection of the pool is left to the menu
+	static final int ASYNC_THREADS = Integer.getInteger("query.asyncThreads", Math.max(1, POOL_MAX_SIZE - 1));
+	//read what the menu lists next while the user types, -Dquery.prefetch=false to turn off
+	static final boolean PREFETCH = !"false".equals(System.getProperty("query.prefetch"));
+
+	//rows fetched per round trip when printing a result
+	static final int DEFAULT_FETCH_SIZE = Integer.getInteger("query.fetchSize", 1000);
+
+	//follow the hospital_changes feed to keep the caches current, -Dchanges.listen=false to turn off
+	static final boolean LISTEN_FOR_CHANGES = !"false".equals(System.getProperty("changes.listen"));
+	//promote waitlisted patients as slots free up, -Dwaitlist.promote=false to turn off
+	static final boolean PROMOTE_WAITLIST = !"false".equals(System.getProperty("waitlist.promote"));
+
+	//pool of physical database connections
+	private ConnectionPool _pool = null;
+	private volatile int _fetchSize = DEFAULT_FETCH_SIZE;
+	//runs the asynchronous queries, each over a connection of the pool
+	private final ExecutorService _async = Executors.newFixedThreadPool(ASYNC_THREADS, r -> {
+		Thread t = new Thread(r, "query-async");
+		t.setDaemon(true);
+		return t;
+	});
+	private volatile boolean _prefetch = PREFETCH;
+	//block allocators for new primary keys
+	private final IdAllocator _doctorIds = new IdAllocator(this, "doctor_id_seq");
+	private final IdAllocator _patientIds = new IdAllocator(this, "patient_id_seq");
+	private final IdAllocator _appointmentIds = new IdAllocator(this, "appointment_id_seq");
+	//available appointments by department, doctor and date
+	private final AvailabilityIndex _availability = new AvailabilityIndex(this);
+	//patients by name and address
+	private final PatientIndex _patientIndex = new PatientIndex(this);
+	//hospitals, departments and specialties listed by the menu
+	private final ReferenceCache _referenceCache = new ReferenceCache(this, ReferenceCache.DEFAULT_TTL_MS);
+	//applies the changes made by other clients to the caches above
+	private ChangeListener _changeListener = null;
+	//books freed appointments for the waiting requests of the waitlist
+	private final Waitlist _waitlist = new Waitlist(this);
+	//latency of every statement run through the methods below
+	private final QueryStats _queryStats = new QueryStats();
+	private static final Object[] NO_PARAMS = new Object[0];
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
@@ -42,9 +102,35 @@ public class DBproject{
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// server-side prepare from the first execution of a cached statement
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			props.setProperty("prepareThreshold", "1");
+			// one multi-row INSERT per JDBC batch instead of one statement per row
+			props.setProperty("reWriteBatchedInserts", "true");
+
+			// obtain the pool of physical connections
+	        this._pool = new ConnectionPool(url, props, POOL_MIN_SIZE, POOL_MAX_SIZE, POOL_ACQUIRE_TIMEOUT_MS,
+	        	POOL_IDLE_TIMEOUT_MS, POOL_VALIDATION_INTERVAL_MS, POOL_LEAK_THRESHOLD_MS);
 	        System.out.println("Done");
+
+	        if (LISTEN_FOR_CHANGES) {
+	        	ChangeListener listener = new ChangeListener(this);
+	        	try {
+	        		listener.start();
+	        		this._changeListener = listener;
+	        	}catch (SQLException e) {
+	        		System.out.println("Not following database changes, caches may go stale: " + e.getMessage());
+	        	}
+	        }
+	        if (PROMOTE_WAITLIST) {
+	        	try {
+	        		this._waitlist.start();
+	        	}catch (SQLException e) {
+	        		System.out.println("Not promoting the waitlist (apply sql/migrations/005_waitlist.sql): " + e.getMessage());
+	        	}
+	        }
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
 	        System.out.println("Make sure you started postgres on this machine");
@@ -54,63 +140,83 @@ public class DBproject{
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
-	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.  The statement is
+	 * prepared once and reused from the statement cache.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with '?' placeholders for values
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows affected
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		QueryEvent event = new QueryEvent ();
+		event.begin ();
+		long start = System.nanoTime ();
+		int rows = -1;
+		ConnectionPool.PooledConnection conn = this._pool.borrow ();
+		try {
+			rows = conn.prepare (sql, params).executeUpdate ();
+			return rows;
+		}catch (SQLException e) {
+			conn.checkBroken (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			this._queryStats.record (sql, params, start, rows, event);
+		}
 	}//end executeUpdate
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * standard out.  The rows are fetched through a server-side cursor in
+	 * batches of the fetch size and printed as they arrive, so large
+	 * reports run in constant memory.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with '?' placeholders for values
+	 * @param params the values bound to the placeholders, in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		QueryEvent event = new QueryEvent ();
+		event.begin ();
+		long start = System.nanoTime ();
+		int rowCount = -1;
+		ConnectionPool.PooledConnection conn = this._pool.borrow ();
+		try {
+			//the driver only uses a cursor outside of autocommit
+			conn.getConnection ().setAutoCommit (false);
+			PreparedStatement stmt = conn.prepare (query, params);
+			stmt.setFetchSize (this._fetchSize);
+			ResultSet rs = stmt.executeQuery ();
+			int printed;
+			try {
+				printed = new ResultPrinter (System.out).print (rs);
+			}finally {
+				rs.close ();
+			}
+			conn.getConnection ().commit ();
+			conn.getConnection ().setAutoCommit (true);
+			rowCount = printed;
+			return rowCount;
+		}catch (SQLException e) {
+			conn.checkBroken (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			this._queryStats.record (query, params, start, rowCount, event);
+		}
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to set how many rows executeQueryAndPrintResult fetches from
+	 * the server per round trip.
+	 * 
+	 * @param fetchSize rows per fetch, 0 lets the driver read the whole result
+	 */
+	public void setFetchSize (int fetchSize) {
+		this._fetchSize = fetchSize;
 	}
 	
 	/**
@@ -118,27 +224,44 @@ public class DBproject{
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with '?' placeholders for values
+	 * @param params the values bound to the placeholders, in order
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		QueryEvent event = new QueryEvent ();
+		event.begin ();
+		long start = System.nanoTime ();
+		int rows = -1;
+		ConnectionPool.PooledConnection conn = this._pool.borrow ();
+		try {
+			ResultSet rs = conn.prepare (query, params).executeQuery (); 
+			try {
+				List<List<String>> result = collectResult (rs);
+				rows = result.size ();
+				return result;
+			}finally {
+				rs.close ();
+			}
+		}catch (SQLException e) {
+			conn.checkBroken (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			this._queryStats.record (query, params, start, rows, event);
+		}
+	}//end executeQueryAndReturnResult
+
+	private static List<List<String>> collectResult (ResultSet rs) throws SQLException {
 		/*
 		 * obtains the metadata object for the returned result set.  The metadata 
 		 * contains row and column info. 
 		*/ 
 		ResultSetMetaData rsmd = rs.getMetaData (); 
 		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
 	 
 		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
 		List<List<String>> result  = new ArrayList<List<String>>(); 
 		while (rs.next()){
 			List<String> record = new ArrayList<String>(); 
@@ -146,39 +269,232 @@ public class DBproject{
 				record.add(rs.getString (i)); 
 			result.add(record); 
 		}//end while 
-		stmt.close (); 
-		return result; 
-	}//end executeQueryAndReturnResult
+		return result;
+	}
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results stored
+	 * column by column, with typed accessors by column name.
+	 * 
+	 * @param query the input query string, with '?' placeholders for values
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public QueryResult executeQueryForResult (String query, Object... params) throws SQLException {
+		QueryEvent event = new QueryEvent ();
+		event.begin ();
+		long start = System.nanoTime ();
+		int rows = -1;
+		ConnectionPool.PooledConnection conn = this._pool.borrow ();
+		try {
+			ResultSet rs = conn.prepare (query, params).executeQuery ();
+			try {
+				QueryResult result = QueryResult.read (rs);
+				rows = result.size ();
+				return result;
+			}finally {
+				rs.close ();
+			}
+		}catch (SQLException e) {
+			conn.checkBroken (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			this._queryStats.record (query, params, start, rows, event);
+		}
+	}
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
+	 * (0 or 1, only the first row is fetched)
 	 * 
-	 * @param query the input query string
-	 * @return the number of rows returned
+	 * @param query the input query string, with '?' placeholders for values
+	 * @param params the values bound to the placeholders, in order
+	 * @return 1 when the query returned at least one row, 0 otherwise
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		QueryEvent event = new QueryEvent ();
+		event.begin ();
+		long start = System.nanoTime ();
+		int rows = -1;
+		ConnectionPool.PooledConnection conn = this._pool.borrow ();
+		try {
+			ResultSet rs = conn.prepare (query, params).executeQuery ();
+			try {
+				rows = rs.next() ? 1 : 0;
+				return rows;
+			}finally {
+				rs.close ();
+			}
+		}catch (SQLException e) {
+			conn.checkBroken (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+			this._queryStats.record (query, params, start, rows, event);
+		}
+	}
+
+	/**
+	 * Method to run several statements on one pooled connection inside a
+	 * single transaction.  The transaction is committed when the work
+	 * returns and rolled back when it throws.
+	 * 
+	 * @param work the statements to run, given the borrowed connection
+	 * @return the value returned by the work
+	 * @throws java.sql.SQLException when a statement or the commit failed
+	 */
+	public <T> T executeInTransaction (Transaction<T> work) throws SQLException {
+		QueryEvent event = new QueryEvent ();
+		event.begin ();
+		long start = System.nanoTime ();
+		int rows = -1;
+		ConnectionPool.PooledConnection conn = this._pool.borrow ();
+		try {
+			conn.getConnection ().setAutoCommit (false);
+			conn.startTrace ();
+			T value = work.run (conn);
+			conn.getConnection ().commit ();
+			conn.getConnection ().setAutoCommit (true);
+			rows = 0;
+			return value;
+		}catch (SQLException e) {
+			conn.checkBroken (e);
+			throw e;
+		}finally {
+			//named by the distinct statements it ran, e.g. BEGIN; INSERT ...; INSERT ...; COMMIT,
+			//and counted with repeats
+			List<String> trace = conn.endTrace ();
+			String statements = "BEGIN; " + String.join ("; ", new LinkedHashSet<String> (trace)) + "; COMMIT";
+			//release() rolls back whatever was left uncommitted
+			this._pool.release (conn);
+			this._queryStats.record (statements, NO_PARAMS, start, rows, trace.size (), event);
+		}
+	}
+
+	/**
+	 * Unit of work run by executeInTransaction.
+	 */
+	public interface Transaction<T> {
+		T run (ConnectionPool.PooledConnection conn) throws SQLException;
+	}
+
+	/**
+	 * Method to execute a query on the asynchronous executor, over a
+	 * connection of the pool, and return the result as a list of records.
+	 * Independent queries started one after the other run concurrently
+	 * instead of each waiting for the round trip of the one before.
+	 *
+	 * @param query the input query string, with '?' placeholders for values
+	 * @param params the values bound to the placeholders, in order
+	 * @return the future result, completed exceptionally with the
+	 *         SQLException when the query failed
+	 */
+	public CompletableFuture<List<List<String>>> executeQueryAndReturnResultAsync (String query, Object... params) {
+		return executeAsync (() -> executeQueryAndReturnResult (query, params));
+	}
+
+	/**
+	 * Method to execute a query on the asynchronous executor, like
+	 * executeQueryAndReturnResultAsync, and return the result stored column
+	 * by column.
+	 *
+	 * @param query the input query string, with '?' placeholders for values
+	 * @param params the values bound to the placeholders, in order
+	 * @return the future result, completed exceptionally with the
+	 *         SQLException when the query failed
+	 */
+	public CompletableFuture<QueryResult> executeQueryForResultAsync (String query, Object... params) {
+		return executeAsync (() -> executeQueryForResult (query, params));
+	}
+
+	/**
+	 * Method to run any work with queries on the asynchronous executor,
+	 * e.g. a lookup through one of the caches.
+	 *
+	 * @param work the work to run
+	 * @return the future value of the work, completed exceptionally with
+	 *         the exception the work failed with
+	 */
+	public <T> CompletableFuture<T> executeAsync (Work<T> work) {
+		CompletableFuture<T> future = new CompletableFuture<T> ();
+		try {
+			this._async.execute (() -> {
+				try {
+					future.complete (work.run ());
+				}catch (Throwable e) {
+					future.completeExceptionally (e);
+				}
+			});
+		}catch (RejectedExecutionException e) {
+			future.completeExceptionally (e);
+		}
+		return future;
+	}
+
+	/**
+	 * Method to wait for the value of an asynchronous query.
+	 *
+	 * @param future the future returned by one of the async methods
+	 * @return the value
+	 * @throws java.sql.SQLException the exception the query failed with
+	 */
+	public static <T> T await (CompletableFuture<T> future) throws SQLException {
+		try {
+			return future.get ();
+		}catch (InterruptedException e) {
+			Thread.currentThread ().interrupt ();
+			throw new SQLException ("Interrupted while waiting for a query");
+		}catch (ExecutionException e) {
+			Throwable cause = e.getCause ();
+			if (cause instanceof SQLException) {
+				throw (SQLException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new SQLException (cause);
+		}
+	}
+
+	/**
+	 * Unit of work run by executeAsync.
+	 */
+	public interface Work<T> {
+		T run () throws SQLException;
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * @param prefetch true to let the menu read ahead what it lists next
+	 */
+	public void setPrefetch (boolean prefetch) {
+		this._prefetch = prefetch;
+	}
 
-		int rowCount = 0;
+	public boolean isPrefetching () {
+		return this._prefetch;
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * @return the connection pool backing this object (wait and saturation metrics)
+	 */
+	public ConnectionPool getConnectionPool() {
+		return this._pool;
 	}
 	
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys.  currval is local to
+	 * a session, so this only sees nextval calls made on the same pooled
+	 * connection.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -186,24 +502,87 @@ public class DBproject{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		ConnectionPool.PooledConnection conn = this._pool.borrow ();
+		try {
+			Statement stmt = conn.getConnection ().createStatement ();
+			try {
+				ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+				if (rs.next()) return rs.getInt(1);
+				return -1;
+			}finally {
+				stmt.close ();
+			}
+		}catch (SQLException e) {
+			conn.checkBroken (e);
+			throw e;
+		}finally {
+			this._pool.release (conn);
+		}
+	}
+
+	/**
+	 * Method to advance a sequence. This method issues the query to the
+	 * DBMS and returns the next value of the sequence.
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return next value of the sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int getNextSeqVal(String sequence) throws SQLException {
+		return executeQueryForResult (Queries.NEXT_SEQUENCE_VALUE, sequence).getInt (0, 0);
+	}
+
+	public IdAllocator doctorIds() {
+		return this._doctorIds;
+	}
+
+	public IdAllocator patientIds() {
+		return this._patientIds;
+	}
+
+	public IdAllocator appointmentIds() {
+		return this._appointmentIds;
+	}
+
+	public AvailabilityIndex availability() {
+		return this._availability;
+	}
+
+	public PatientIndex patientIndex() {
+		return this._patientIndex;
+	}
+
+	public ReferenceCache referenceCache() {
+		return this._referenceCache;
+	}
+
+	/**
+	 * @return the listener of the change feed, null when not listening
+	 */
+	public ChangeListener changeListener() {
+		return this._changeListener;
+	}
+
+	public QueryStats queryStats() {
+		return this._queryStats;
+	}
+
+	public Waitlist waitlist() {
+		return this._waitlist;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the physical connections if they are open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		if (this._changeListener != null){
+			this._changeListener.stop ();
+		}//end if
+		this._waitlist.stop ();
+		this._async.shutdownNow ();
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -253,6 +632,17 @@ public class DBproject{
 				System.out.println("7. List total number of different types of appointments per doctor in descending order");
 				System.out.println("8. Find total number of patients per doctor with a given status");
 				System.out.println("9. < EXIT");
+				System.out.println("10. Bulk load CSV data from a directory");
+				System.out.println("11. Check the availability index against the database");
+				System.out.println("12. Run commands from a batch file");
+				System.out.println("13. Maintain the appointment partitions");
+				System.out.println("14. Show query statistics");
+				System.out.println("15. Add a patient to the waitlist");
+				System.out.println("16. Generate appointment slots from the maintenance requests");
+				System.out.println("17. Cancel an appointment");
+				System.out.println("18. Reschedule an appointment");
+				System.out.println("19. Close out the past days");
+				System.out.println("20. Search patients by name or address");
 				
 				switch (readChoice()){
 					case 1: AddDoctor(esql); break;
@@ -264,6 +654,17 @@ public class DBproject{
 					case 7: ListStatusNumberOfAppointmentsPerDoctor(esql); break;
 					case 8: FindPatientsCountWithStatus(esql); break;
 					case 9: keepon = false; break;
+					case 10: BulkLoad(esql); break;
+					case 11: CheckAvailabilityIndex(esql); break;
+					case 12: RunBatchFile(esql); break;
+					case 13: MaintainPartitions(esql); break;
+					case 14: ShowQueryStats(esql); break;
+					case 15: JoinWaitlist(esql); break;
+					case 16: GenerateSlots(esql); break;
+					case 17: CancelAppointment(esql); break;
+					case 18: RescheduleAppointment(esql); break;
+					case 19: CloseOutDays(esql); break;
+					case 20: SearchPatients(esql); break;
 				}
 			}
 		}catch(Exception e){
@@ -271,6 +672,13 @@ public class DBproject{
 		}finally{
 			try{
 				if(esql != null) {
+					System.out.println(esql.referenceCache());
+					if (esql.changeListener() != null) {
+						System.out.println(esql.changeListener());
+					}
+					if (esql.waitlist().isRunning()) {
+						System.out.println(esql.waitlist());
+					}
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -297,6 +705,26 @@ public class DBproject{
 		return input;
 	}//end readChoice
 
+	/**
+	 * Method to parse a date typed at the menu, as MM/DD/YYYY, MM/DD/YY
+	 * (20YY) or YYYY-MM-DD.
+	 *
+	 * @param text the typed date
+	 * @return the date, or null when the text is not a valid date
+	 */
+	public static LocalDate parseDate(String text) {
+		try {
+			String[] parts = text.trim().split("/");
+			if (parts.length == 3) {
+				int year = Integer.parseInt(parts[2]);
+				return LocalDate.of(year < 100 ? 2000 + year : year, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+			}
+			return LocalDate.parse(text.trim());
+		}catch (Exception e) {
+			return null;
+		}
+	}
+
 	public static void AddDoctor(DBproject esql) {//1
 		int docID;
 		String dname;
@@ -306,16 +734,13 @@ public class DBproject{
 		String hospitalName;
 		int hosID;
 		String departmentName;
-		List<List<String>> result;
-		List<String> record;
+		QueryResult result;
+		int row;
 
 		//Create doctorID
 		do {
 			try {
-				query = "SELECT COUNT(doctor_ID) FROM Doctor";
-				record = esql.executeQueryAndReturnResult(query).get(0);
-				docID = Integer.parseInt(record.get(0));
-				docID++;
+				docID = esql.doctorIds().nextId();
 				break;
 			}catch (Exception e) {
 				System.out.println(e.getMessage());
@@ -338,8 +763,7 @@ public class DBproject{
 		//Get specialty
 		System.out.println("========== Specialties ==========");
 		try {
-			query = "SELECT DISTINCT specialty FROM Doctor";
-			esql.executeQueryAndPrintResult(query);
+			new ResultPrinter(System.out).print(esql.referenceCache().specialties(), "specialty");
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -350,16 +774,15 @@ public class DBproject{
 				System.out.print("Please enter a specialty: ");
 				special = in.readLine();
 
-				query = "SELECT * FROM Doctor WHERE LOWER(specialty) LIKE LOWER('%" + special + "%')";
-				result = esql.executeQueryAndReturnResult(query);
+				result = esql.referenceCache().specialties();
+				row = ReferenceCache.find(result, "specialty", special);
 
-				if (result.isEmpty()) {
+				if (row < 0) {
 					System.out.println("Specialty not listed.");
 					continue;
 				}
 
-				record = result.get(0);
-				System.out.println("Selected Record: " + record);
+				System.out.println("Selected Record: " + result.getRecord(row));
 
 				break;
 			}catch(Exception e) {
@@ -371,8 +794,7 @@ public class DBproject{
 		//Get hospital name
 		System.out.println("========== Hospital List ==========");
 		try {
-			query = "SELECT name FROM Hospital";
-			esql.executeQueryAndPrintResult(query);
+			new ResultPrinter(System.out).print(esql.referenceCache().hospitals(), "name");
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -383,17 +805,16 @@ public class DBproject{
 				System.out.print("Please enter the hospital name: ");
 				hospitalName = in.readLine();
 
-				query = "SELECT * FROM Hospital WHERE LOWER(name) LIKE LOWER('%" + hospitalName + "%')";
-				result = esql.executeQueryAndReturnResult(query);
+				result = esql.referenceCache().hospitals();
+				row = ReferenceCache.find(result, "name", hospitalName);
 
-				if (result.isEmpty()) {
+				if (row < 0) {
 					System.out.println("Did not find a hospital with that name.");
 					continue;
 				}
 
-				record = result.get(0);
-				System.out.println("Selected Record: " + record);
-				hosID = Integer.parseInt(record.get(0));
+				System.out.println("Selected Record: " + result.getRecord(row));
+				hosID = result.getInt(row, "hospital_ID");
 
 				break;
 			}catch(Exception e) {
@@ -405,8 +826,7 @@ public class DBproject{
 		//Get department name
 		System.out.println("========== Department List ==========");
 		try {
-			query = "SELECT name FROM Department WHERE hid = " + hosID;
-			esql.executeQueryAndPrintResult(query);
+			new ResultPrinter(System.out).print(esql.referenceCache().departments(hosID), "name");
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -416,28 +836,16 @@ public class DBproject{
 			try {
 				System.out.print("Please enter a departnment name: ");
 				departmentName = in.readLine();
-				query = String.format("SELECT * FROM Department WHERE hid = %s AND LOWER(name) LIKE ", hosID);
-				query += "LOWER('%" + departmentName + "%')";
-
-				result = esql.executeQueryAndReturnResult(query);
+				result = esql.referenceCache().departments(hosID);
+				row = ReferenceCache.find(result, "name", departmentName);
 
-				if (result.isEmpty()) {
+				if (row < 0) {
 					System.out.println("Department not found.");
 					continue;
 				}
-				//get department ID
-				query = String.format("SELECT dept_ID FROM Department WHERE hid = %s AND LOWER(name) LIKE ", hosID);
-				query += "LOWER('%" + departmentName + "%')";
-				result = esql.executeQueryAndReturnResult(query);
-
-				if (result.isEmpty()) {
-					System.out.println("Could not find department ID");
-					continue;
-				}
 
-				record = result.get(0);
-				System.out.println("Selected Record: " + record);
-				depID = Integer.parseInt(record.get(0));
+				System.out.println("Selected Record: " + result.getRecord(row));
+				depID = result.getInt(row, "dept_ID");
 
 				break;
 			}catch(Exception e) {
@@ -446,23 +854,13 @@ public class DBproject{
 			}
 		}while(true);
 
-		//Add doctor
-		try {
-			query = "INSERT INTO Doctor (doctor_ID, name, specialty, did) VALUES ";
-      query += String.format("('%2d', '%s', '%s', '%2d')", docID, dname, special, depID);
-      esql.executeUpdate(query);
-  	}catch(Exception e) {
-          System.out.println("Insert Doctor Query Failed");
-    }
-
-		//output new doctor
+		//Add doctor, the new row comes back from the insert
 		try {
-			query = "SELECT * FROM Doctor WHERE doctor_ID = " + docID;
-			result = esql.executeQueryAndReturnResult(query);
-			record = result.get(0);
-			System.out.println("Inserted Record: " + record);
+			result = esql.executeQueryForResult(Queries.INSERT_DOCTOR_RETURNING, docID, dname, special, depID);
+			esql.referenceCache().invalidateSpecialties();
+			System.out.println("Inserted Record: " + result.getRecord(0));
 		}catch(Exception e) {
-			System.out.println(e.getMessage());
+			System.out.println("Insert Doctor Query Failed " + e.getMessage());
 		}
 	}
 
@@ -479,11 +877,7 @@ public class DBproject{
 			//System.out.print("Please enter the patient id: ");
 			try {
 				//id = Integer.parseInt(in.readLine());
-				query = "SELECT COUNT(patient_ID) FROM Patient";
-				List<String> record = esql.executeQueryAndReturnResult(query).get(0);
-				int rows = Integer.parseInt(record.get(0));
-				//System.out.println("Num record: " + rows);
-				id = rows + 1;
+				id = esql.patientIds().nextId();
 				break;
 			}catch (Exception e) {
 				System.out.println(e.getMessage());
@@ -546,29 +940,21 @@ public class DBproject{
 			}
 		}while(true);
 
+		//the new row comes back from the insert
 		try {
-			query = "INSERT INTO Patient (patient_ID, name, gtype, age, address) VALUES ";
-			query += String.format("('%2d', '%s', '%s', '%2d', '%s')", id, name, gender, age, address); 
-			esql.executeUpdate(query);
+			QueryResult result = esql.executeQueryForResult(Queries.INSERT_PATIENT_RETURNING, id, name, gender, age, address);
+			System.out.println("Inserted Record: " + result.getRecord(0));
+			esql.patientIndex().add(id, name, address);
 		}catch(Exception e) {
 			System.out.println("Insert Patient Query Failed" + e.getMessage());
 		}
-
-		try {
-			query = "SELECT * FROM Patient WHERE patient_ID = " + id;
-			List<List<String>> result = esql.executeQueryAndReturnResult(query);
-			List<String> record = result.get(0);
-			System.out.println("Inserted Record: " + record);
-		}catch(Exception e) {
-			System.out.println(e.getMessage());
-		}
 	}
 
 	public static void AddAppointment(DBproject esql) {//3
 		int appID;
-		String appDate;
+		LocalDate appDate;
 		String dname;
-		String time;
+		TimeSlot time;
 		String stat = "AC";
 
 		int docID;
@@ -578,16 +964,17 @@ public class DBproject{
 		int departmentID;
 
 		String query;
-		List<List<String>> result;
-		List<String> record;
+		QueryResult result;
+		QueryResult doctors;
+		int row;
+
+		//listed first, read while the ID is allocated
+		Prefetch<QueryResult> hospitals = Prefetch.start(esql, () -> esql.referenceCache().hospitals());
 
 		//Create appointment ID
 		do {
 			try {
-				query = "SELECT COUNT(appnt_ID) FROM Appointment";
-				record = esql.executeQueryAndReturnResult(query).get(0);
-				appID = Integer.parseInt(record.get(0));
-				appID++;
+				appID = esql.appointmentIds().nextId();
 				break;
 			}catch (Exception e) {
 				System.out.println(e.getMessage());
@@ -598,29 +985,28 @@ public class DBproject{
 		//Get Hospital
 		System.out.println("========== Hospital List ==========");
 		try {
-			query = "SELECT name FROM Hospital";
-			esql.executeQueryAndPrintResult(query);
+			new ResultPrinter(System.out).print(hospitals.get(), "name");
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
 		System.out.println("===================================");
+		Map<Integer, Prefetch<QueryResult>> departmentsAhead = prefetchDepartments(esql);
 
 		do {
 			try {
 				System.out.print("Please enter the hospital name: ");
 				hospitalName = in.readLine();
 
-				query = "SELECT * FROM Hospital WHERE LOWER(name) LIKE LOWER('%" + hospitalName + "%')";
-				result = esql.executeQueryAndReturnResult(query);
+				result = esql.referenceCache().hospitals();
+				row = ReferenceCache.find(result, "name", hospitalName);
 
-				if (result.isEmpty()) {
+				if (row < 0) {
 					System.out.println("Did not find a hospital with that name.");
 					continue;
 				}
 
-				record = result.get(0);
-				System.out.println("Selected Record: " + record);
-				hosID = Integer.parseInt(record.get(0));
+				System.out.println("Selected Record: " + result.getRecord(row));
+				hosID = result.getInt(row, "hospital_ID");
 
 				break;
 			}catch(Exception e) {
@@ -632,31 +1018,28 @@ public class DBproject{
 		//Get Department
 		System.out.println("========== Department List ==========");
 		try {
-			query = "SELECT name FROM Department WHERE hid = " + hosID;
-			esql.executeQueryAndPrintResult(query);
+			new ResultPrinter(System.out).print(departmentsOf(esql, departmentsAhead, hosID), "name");
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
 		System.out.println("=====================================");
+		Prefetch<QueryResult> doctorsAhead = prefetchDoctors(esql, hosID);
 
 		do {
 			try {
 				System.out.print("Please enter a departnment name: ");
 				departmentName = in.readLine();
 
-				query = String.format("SELECT * FROM Department WHERE hid = %s AND LOWER(name) LIKE ", hosID);
-				query += "LOWER('%" + departmentName + "%')";
+				result = esql.referenceCache().departments(hosID);
+				row = ReferenceCache.find(result, "name", departmentName);
 
-				result = esql.executeQueryAndReturnResult(query);
-
-				if (result.isEmpty()) {
+				if (row < 0) {
 					System.out.println("Did not find a department with that name.");
 					continue;
 				}
 
-				record = result.get(0);
-				System.out.println("Selected Record: " + record);
-				departmentID = Integer.parseInt(record.get(0));
+				System.out.println("Selected Record: " + result.getRecord(row));
+				departmentID = result.getInt(row, "dept_ID");
 
 				break;
 			}catch(Exception e) {
@@ -668,15 +1051,15 @@ public class DBproject{
 		//Get Doctor
 		System.out.println("================= Doctor List ================");
 		try {
-			query = "SELECT Doc.doctor_ID, Doc.name, Dep.name as department FROM Doctor Doc, Department Dep WHERE Doc.did = Dep.dept_ID ";
-			query += String.format("AND Dep.hid = %2d AND Dep.dept_ID = %2d", hosID, departmentID);
-			if (esql.executeQuery(query) < 1) {
-				System.out.println("There are no doctors in this department");
-				return;
-			}
-			esql.executeQueryAndPrintResult(query);
+			//listed and kept to check the ID typed below, one execution
+			doctors = doctorsOf(esql, doctorsAhead, hosID, departmentID);
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
+			return;
+		}
+		if (new ResultPrinter(System.out).print(doctors, "doctor_id", "name", "department") == 0) {
+			System.out.println("There are no doctors in this department");
+			return;
 		}
 		System.out.println("===================================");
 
@@ -685,10 +1068,9 @@ public class DBproject{
 				System.out.print("Please enter the doctor's ID: ");
 				docID = Integer.parseInt(in.readLine());
 
-				query = "SELECT * FROM Doctor WHERE doctor_ID = " + docID;
-				int rows = esql.executeQuery(query);
-				if (rows != 1) {
-					System.out.println("That doctor does not exist!");
+				//one of the doctors listed above, no need to ask the database
+				if (doctors.find("doctor_id", docID) < 0) {
+					System.out.println("That doctor is not in this department!");
 					continue;
 				}
 				break;
@@ -701,11 +1083,9 @@ public class DBproject{
 		//Set Appointment time
 		System.out.println("========== Current Appointments ==========");
 		try {
-			query = "SELECT D.doctor_ID, D.name, D.specialty, A.appnt_id, A.status, A.adate, A.time_slot FROM Appointment A, Doctor D, has_appointment H WHERE H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID ";
-			query += String.format("AND D.doctor_ID = %2d", docID);
-			result = esql.executeQueryAndReturnResult(query);
+			result = esql.executeQueryForResult(Queries.APPOINTMENTS_OF_DOCTOR, docID);
 
-			if(result.isEmpty()) {
+			if (new ResultPrinter(System.out).print(result, "appnt_id", "adate", "time_slot", "status") == 0) {
 				System.out.println("There are currently no appointments");
 			}
 		}catch(Exception e) {
@@ -717,7 +1097,11 @@ public class DBproject{
 		do{
 			try{
 				System.out.print("Set an appointment date(MM/DD/YY): ");
-				appDate = in.readLine();
+				appDate = parseDate(in.readLine());
+				if (appDate == null) {
+					System.out.println("Please enter the date as MM/DD/YYYY.");
+					continue;
+				}
 				break;
 			}catch(Exception e) {
 				System.out.println(e.getMessage());
@@ -728,8 +1112,12 @@ public class DBproject{
 		//get appointment
 		try {
 			System.out.println("========== Time Slot Options ==========");
-			query = "SELECT DISTINCT time_slot FROM Appointment";
-			esql.executeQueryAndPrintResult(query);
+			//the slots accepted below, no need to scan Appointment for them
+			List<String[]> rows = new ArrayList<String[]>();
+			for (TimeSlot offered : TimeSlot.OFFERED) {
+				rows.add(new String[] {offered.toString()});
+			}
+			new ResultPrinter(System.out).print(new String[] {"time_slot"}, rows);
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -738,20 +1126,19 @@ public class DBproject{
 		do{
 			System.out.print("Choose a time_slot: ");
 			try{
-				time = in.readLine();
-				String a = "10:00-17:00";
-				String b = "8:00-10:00";
-				String c = "10:00-15:00";
-				String d = "8:00-10:30";
-				String e = "13:00-15:00";
-				String f = "14:00-16:00";
-				String g = "8:00-17:00";
-				String h = "8:00-10:50";
-
-				if(!(time.equals(a) || time.equals(b) || time.equals(c) || time.equals(d) || time.equals(e) || time.equals(f) || time.equals(g) || time.equals(h))) {
+				time = TimeSlot.parse(in.readLine());
+				if (time == null || !time.isOffered()) {
 					System.out.println("Enter one of the listed time slot options");
 					continue;
 				}
+
+				//the doctor cannot be in two places at once
+				result = HospitalService.appointmentsOverlapping(esql, docID, time.startOn(appDate), time.endOn(appDate));
+				if (!result.isEmpty()) {
+					System.out.println("The doctor already has an appointment at that time:");
+					new ResultPrinter(System.out).print(result, "appnt_id", "adate", "time_slot", "status");
+					continue;
+				}
 				break;
 			}catch(Exception e) {
 				System.out.println(e.getMessage());
@@ -761,25 +1148,11 @@ public class DBproject{
 
 		//instert new appointment
 		try {
-			query = "INSERT INTO Appointment (appnt_ID, adate, time_slot, status) VALUES ";
-			query += String.format("('%2d', '%s', '%s', '%s')", appID, appDate, time, stat);
-			esql.executeUpdate(query);
-
-			query = "INSERT INTO has_appointment (appt_ID, doctor_id) VALUES ";
-			query += String.format("('%2d', '%2d')", appID, docID);
-			esql.executeUpdate(query);
+			result = HospitalService.addAppointment(esql, appID, departmentID, docID, appDate, time, stat);
+			System.out.println("Inserted Record: " + result.getRecord(0));
 		}catch(Exception e) {
 			System.out.println("Insert Appointment Query Failed" + e.getMessage());
 		}
-
-		try {
-			query = "SELECT * FROM Appointment WHERE appnt_ID = " + appID;
-			result = esql.executeQueryAndReturnResult(query);
-			record = result.get(0);
-			System.out.println("Inserted Record: " + record);
-		}catch(Exception e) {
-			System.out.println(e.getMessage());
-		}
 	}
 
 
@@ -794,17 +1167,27 @@ public class DBproject{
 		int hospitalID;
 		int departmentID;
 
-		List<List<String>> result;
-		List<String> record;
+		QueryResult result;
+		QueryResult doctors;
+		int row;
+
+		//read while the patient ID is typed
+		Prefetch<QueryResult> hospitals = Prefetch.start(esql, () -> esql.referenceCache().hospitals());
+		Prefetch<Integer> availability = Prefetch.start(esql,
+			() -> esql.availability().isLoaded() ? 0 : esql.availability().reload());
 
 		//#region Get Patient ID
 		do {
 			try {
-				System.out.print("Please enter the patient ID: ");
-				patientID = Integer.parseInt(in.readLine());
+				System.out.print("Please enter the patient ID (or a name or address to search): ");
+				String input = in.readLine().trim();
+				if (!input.matches("\\d+")) {
+					printPatientMatches(esql, input);
+					continue;
+				}
+				patientID = Integer.parseInt(input);
 
-				query = "SELECT * FROM Patient WHERE patient_ID = " + patientID;
-				int rows = esql.executeQuery(query);
+				int rows = esql.executeQuery(Queries.PATIENT_BY_ID, patientID);
 				if (rows != 1) {
 					System.out.println("That patient does not exist!");
 					continue;
@@ -820,12 +1203,12 @@ public class DBproject{
 		//#region Print list of hospitals and get hospital name
 		System.out.println("========== Hospital List ==========");
 		try {
-			query = "SELECT name FROM Hospital";
-			esql.executeQueryAndPrintResult(query);
+			new ResultPrinter(System.out).print(hospitals.get(), "name");
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
 		System.out.println("===================================");
+		Map<Integer, Prefetch<QueryResult>> departmentsAhead = prefetchDepartments(esql);
 
 		// Get a hospital name (keyword such as UCLA, USC) that is valid
 		do {
@@ -833,17 +1216,16 @@ public class DBproject{
 				System.out.print("Please enter the hospital name: ");
 				hospitalName = in.readLine();
 
-				query = "SELECT * FROM Hospital WHERE LOWER(name) LIKE LOWER('%" + hospitalName + "%')"; 
-				result = esql.executeQueryAndReturnResult(query);
+				result = esql.referenceCache().hospitals();
+				row = ReferenceCache.find(result, "name", hospitalName);
 
-				if (result.isEmpty()) {
+				if (row < 0) {
 					System.out.println("Did not find a hospital with that name.");
 					continue;
 				}
 
-				record = result.get(0);
-				System.out.println("Selected Record: " + record);
-				hospitalID = Integer.parseInt(record.get(0));
+				System.out.println("Selected Record: " + result.getRecord(row));
+				hospitalID = result.getInt(row, "hospital_ID");
 
 				break;
 			}catch(Exception e) {
@@ -857,12 +1239,12 @@ public class DBproject{
 		System.out.println("========== Department List ==========");
 		// Print out list of departments for that hospital
 		try {
-			query = "SELECT name FROM Department WHERE hid = " + hospitalID;
-			esql.executeQueryAndPrintResult(query);
+			new ResultPrinter(System.out).print(departmentsOf(esql, departmentsAhead, hospitalID), "name");
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
 		System.out.println("=====================================");
+		Prefetch<QueryResult> doctorsAhead = prefetchDoctors(esql, hospitalID);
 
 		// Get valid department name for chosen hospital
 		do {
@@ -870,20 +1252,16 @@ public class DBproject{
 				System.out.print("Please enter a departnment name: ");
 				departmentName = in.readLine();
 
-				query = String.format("SELECT * FROM Department WHERE hid = %s AND LOWER(name) LIKE ", hospitalID);
-				query += "LOWER('%" + departmentName + "%')";
-
-				//System.out.println("Query = " + query);
-				result = esql.executeQueryAndReturnResult(query);
+				result = esql.referenceCache().departments(hospitalID);
+				row = ReferenceCache.find(result, "name", departmentName);
 
-				if (result.isEmpty()) {
+				if (row < 0) {
 					System.out.println("Did not find a department with that name.");
 					continue;
 				}
 
-				record = result.get(0);
-				System.out.println("Selected Record: " + record);
-				departmentID = Integer.parseInt(record.get(0));
+				System.out.println("Selected Record: " + result.getRecord(row));
+				departmentID = result.getInt(row, "dept_ID");
 
 				break;
 			}catch(Exception e) {
@@ -896,15 +1274,15 @@ public class DBproject{
 		//#region Print out doctor list for that department and get doctor id
 		System.out.println("================= Doctor List ================");
 		try {
-			query = "SELECT Doc.doctor_ID, Doc.name, Dep.name FROM Doctor Doc, Department Dep WHERE Doc.did = Dep.dept_ID ";
-			query += String.format("AND Dep.hid = %2d AND Dep.dept_ID = %2d", hospitalID, departmentID);
-			if (esql.executeQuery(query) < 1) {
-				System.out.println("There are no doctors in this department");
-				return;
-			}
-			esql.executeQueryAndPrintResult(query);
+			//listed and kept to check the ID typed below, one execution
+			doctors = doctorsOf(esql, doctorsAhead, hospitalID, departmentID);
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
+			return;
+		}
+		if (new ResultPrinter(System.out).print(doctors, "doctor_id", "name", "department") == 0) {
+			System.out.println("There are no doctors in this department");
+			return;
 		}
 		System.out.println("===================================");
 
@@ -914,10 +1292,9 @@ public class DBproject{
 				System.out.print("Please enter the doctor ID: ");
 				doctorID = Integer.parseInt(in.readLine());	
 
-				query = "SELECT * FROM Doctor WHERE doctor_ID = " + doctorID;
-				int rows = esql.executeQuery(query);
-				if (rows != 1) {
-					System.out.println("That doctor does not exist!");
+				//one of the doctors listed above, no need to ask the database
+				if (doctors.find("doctor_id", doctorID) < 0) {
+					System.out.println("That doctor is not in this department!");
 					continue;
 				}
 				break;
@@ -931,9 +1308,14 @@ public class DBproject{
 		//#region Print list of that doctor's available appointments 
 		System.out.println("========== Available Appointments ==========");
 		try {
-			query = "SELECT A.appnt_ID, A.adate FROM Appointment A, has_appointment H WHERE H.appt_id = A.appnt_ID AND A.status = 'AV' ";
-			query += String.format("AND H.doctor_id = %2d", doctorID);
-			esql.executeQueryAndPrintResult(query);
+			availability.get();
+			List<String[]> rows = new ArrayList<String[]>();
+			for (Map.Entry<LocalDate, int[]> day : esql.availability().appointmentsOfDoctor(doctorID).entrySet()) {
+				for (int id : day.getValue()) {
+					rows.add(new String[] {Integer.toString(id), day.getKey().toString()});
+				}
+			}
+			new ResultPrinter(System.out).print(new String[] {"appnt_id", "adate"}, rows);
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -943,37 +1325,34 @@ public class DBproject{
 		do {
 			try {
 				// Check if that doc has any at all
-				query = "SELECT * FROM Appointment A, has_appointment H WHERE A.appnt_ID = H.appt_id AND A.status = 'AV' ";
-				query += String.format("AND H.doctor_id = %2d", doctorID);
-				if (esql.executeQuery(query) < 1) {
+				if (!esql.availability().hasAvailable(doctorID)) {
 					System.out.println("This doctor has no appointments available!");
 					return;
 				}
 
 				System.out.print("Please enter the appointment ID: " );
 				appointmentID = Integer.parseInt(in.readLine());
+
+				// An available appointment of the doctor, no need to ask the database
+				if (esql.availability().doctorOfAvailable(appointmentID) == doctorID) {
+					break;
+				}
 				
-				// Check if appointment exists in has_appointment
-				query = "SELECT * FROM has_appointment WHERE appt_ID = " + appointmentID;
-				result = esql.executeQueryAndReturnResult(query);
+				// Check that the appointment exists, belongs to the doctor and is available, in one query
+				result = esql.executeQueryForResult(Queries.DOCTOR_AND_STATUS_OF_APPOINTMENT, appointmentID);
 				if (result.isEmpty()) {
 					System.out.println("The appointment number does not exist!");
 					continue;
 				}
-				record = result.get(0);
 
 				// Check if Doctor ID matches for given appointment
-				if (doctorID != Integer.parseInt(record.get(1))) {
+				if (doctorID != result.getInt(0, "doctor_id")) {
 					System.out.println("The appointment does not correspond to the doctor!");
 					continue;
 				}
 
 				// Check if appointment is available
-				query = "SELECT * FROM Appointment WHERE appnt_ID = " + appointmentID;
-				result = esql.executeQueryAndReturnResult(query);
-				record = result.get(0);
-
-				if (!record.get(3).equals("AV")) {
+				if (!"AV".equals(result.getString(0, "status"))) {
 					System.out.println("Appointment is not available!");
 					continue;
 				}
@@ -984,19 +1363,20 @@ public class DBproject{
 		}while(true);
 		//#endregion
 
-		// execute update here
+		// book it, the status is re-checked atomically in case another session took it meanwhile
 		try {
-			query = "UPDATE Appointment SET status = 'AC' WHERE appnt_ID = " + appointmentID;
-			esql.executeUpdate(query);
+			if (!HospitalService.bookAppointment(esql, patientID, doctorID, appointmentID, hospitalID)) {
+				System.out.println("The appointment was booked by someone else or is past, please choose another one.");
+				return;
+			}
 		}catch(Exception e) {
 			System.out.println("Here I cry: " + e.getMessage());
+			return;
 		}
 
 		try {
-			query = "SELECT * FROM Appointment WHERE appnt_ID = " + appointmentID;
-			result = esql.executeQueryAndReturnResult(query);
-			record = result.get(0);
-			System.out.println("Updated Record: " + record);
+			result = esql.executeQueryForResult(Queries.APPOINTMENT_BY_ID, appointmentID);
+			System.out.println("Updated Record: " + result.getRecord(0));
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -1007,27 +1387,24 @@ public class DBproject{
 	public static void ListAppointmentsOfDoctor(DBproject esql) {//5
 		// For a doctor ID and a date range, find the list of active and available appointments of the doctor
 		int docID;
-		String date1;
-		String date2;
+		LocalDate date1;
+		LocalDate date2;
 		String query;
 
-		List<List<String>> result;
-		List<String> record;
+		QueryResult result;
 		//Get Doctor
 		do {
 			try {
 				System.out.print("Please enter the doctor's ID: ");
 				docID = Integer.parseInt(in.readLine());
 
-				query = "SELECT * FROM Doctor WHERE doctor_ID = " + docID;
-				result = esql.executeQueryAndReturnResult(query);
+				result = esql.executeQueryForResult(Queries.DOCTOR_BY_ID, docID);
 				if (result.isEmpty()) {
 					System.out.println("That doctor does not exist!");
 					continue;
 				}
 
-				record = result.get(0);
-				System.out.println("Selected Record: " + record);
+				System.out.println("Selected Record: " + result.getRecord(0));
 
 				break;
 			}catch(Exception e) {
@@ -1040,7 +1417,11 @@ public class DBproject{
 		do {
 			try {
 				System.out.print("Please enter the first date(MM/DD/YY): ");
-				date1 = in.readLine();
+				date1 = parseDate(in.readLine());
+				if (date1 == null) {
+					System.out.println("Please enter the date as MM/DD/YYYY.");
+					continue;
+				}
 
 				break;
 			}catch(Exception e) {
@@ -1052,7 +1433,11 @@ public class DBproject{
 		do {
 			try {
 				System.out.print("Please enter the second date(MM/DD/YY): ");
-				date2 = in.readLine();
+				date2 = parseDate(in.readLine());
+				if (date2 == null) {
+					System.out.println("Please enter the date as MM/DD/YYYY.");
+					continue;
+				}
 
 				break;
 			}catch(Exception e) {
@@ -1064,15 +1449,7 @@ public class DBproject{
 	  //Find appointments given dates
 		System.out.println("========== Active and Available Appointments ==========");
 		try {
-			query = "WITH ActAva AS (SELECT D1.doctor_ID, D1.name, D1.specialty, A1.appnt_id, A1.status, A1.adate, A1.time_slot ";
-			query += "FROM Appointment A1, Doctor D1, has_appointment H1 WHERE H1.doctor_id = D1.doctor_ID AND H1.appt_id = A1.appnt_ID AND A1.status = 'AV' ";
-			query += "UNION SELECT D.doctor_ID, D.name, D.specialty, A.appnt_id, A.status, A.adate, A.time_slot ";
-			query += "FROM Appointment A, Doctor D, has_appointment H WHERE H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID AND A.status = 'AC') ";
-			query += "SELECT * FROM ActAva R WHERE R.doctor_ID = " + docID;
-			query += " AND R.adate BETWEEN '" + date1;
-			query += "' AND '" + date2;
-			query += "'";
-			esql.executeQueryAndPrintResult(query);
+			esql.executeQueryAndPrintResult(Queries.ACTIVE_AND_AVAILABLE_OF_DOCTOR_IN_RANGE, docID, date1, date2);
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -1086,17 +1463,16 @@ public class DBproject{
 		int hospitalID;
 		String departmentName;
 		int departmentID;
-		String date;
+		LocalDate date;
 		String query;
 
-		List<List<String>> result;
-		List<String> record;
+		QueryResult result;
+		int row;
 
 		// Print out list of hospitals
 		System.out.println("========== Hospital List ==========");
 		try {
-			query = "SELECT name FROM Hospital";
-			esql.executeQueryAndPrintResult(query);
+			new ResultPrinter(System.out).print(esql.referenceCache().hospitals(), "name");
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -1108,17 +1484,16 @@ public class DBproject{
 				System.out.print("Please enter the hospital name: ");
 				hospitalName = in.readLine();
 
-				query = "SELECT * FROM Hospital WHERE LOWER(name) LIKE LOWER('%" + hospitalName + "%')"; 
-				result = esql.executeQueryAndReturnResult(query);
+				result = esql.referenceCache().hospitals();
+				row = ReferenceCache.find(result, "name", hospitalName);
 
-				if (result.isEmpty()) {
+				if (row < 0) {
 					System.out.println("Did not find a hospital with that name.");
 					continue;
 				}
 
-				record = result.get(0);
-				System.out.println("Selected Record: " + record);
-				hospitalID = Integer.parseInt(record.get(0));
+				System.out.println("Selected Record: " + result.getRecord(row));
+				hospitalID = result.getInt(row, "hospital_ID");
 
 				break;
 			}catch(Exception e) {
@@ -1130,8 +1505,7 @@ public class DBproject{
 		System.out.println("========== Department List ==========");
 		// Print out list of departments for that hospital
 		try {
-			query = "SELECT name FROM Department WHERE hid = " + hospitalID;
-			esql.executeQueryAndPrintResult(query);
+			new ResultPrinter(System.out).print(esql.referenceCache().departments(hospitalID), "name");
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -1143,20 +1517,16 @@ public class DBproject{
 				System.out.print("Please enter a departnment name: ");
 				departmentName = in.readLine();
 
-				query = String.format("SELECT * FROM Department WHERE hid = %s AND LOWER(name) LIKE ", hospitalID);
-				query += "LOWER('%" + departmentName + "%')";
-
-				//System.out.println("Query = " + query);
-				result = esql.executeQueryAndReturnResult(query);
+				result = esql.referenceCache().departments(hospitalID);
+				row = ReferenceCache.find(result, "name", departmentName);
 
-				if (result.isEmpty()) {
+				if (row < 0) {
 					System.out.println("Did not find a department with that name.");
 					continue;
 				}
 
-				record = result.get(0);
-				System.out.println("Selected Record: " + record);
-				departmentID = Integer.parseInt(record.get(0));
+				System.out.println("Selected Record: " + result.getRecord(row));
+				departmentID = result.getInt(row, "dept_ID");
 
 				break;
 			}catch(Exception e) {
@@ -1168,13 +1538,16 @@ public class DBproject{
 		// Display available dates for that department
 		System.out.println("========== Available Dates List ==========");
 		try {
-			query = "SELECT A.adate FROM Appointment A, Doctor D, has_appointment H WHERE A.status = 'AV' ";
-			query += String.format("AND D.did = %2d AND H.doctor_id = D.doctor_ID and H.appt_id = A.appnt_ID", departmentID);
-			if (esql.executeQuery(query) < 1) {
+			List<LocalDate> dates = esql.availability().datesOfDepartment(departmentID);
+			if (dates.isEmpty()) {
 				System.out.println("There are no available dates.");
 				return;
 			}
-			esql.executeQueryAndPrintResult(query);
+			List<String[]> rows = new ArrayList<String[]>();
+			for (LocalDate available : dates) {
+				rows.add(new String[] {available.toString()});
+			}
+			new ResultPrinter(System.out).print(new String[] {"adate"}, rows);
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -1184,7 +1557,11 @@ public class DBproject{
 		do {
 			try {
 				System.out.print("Please enter the data. MM/DD/YY: ");
-				date = in.readLine();
+				date = parseDate(in.readLine());
+				if (date == null) {
+					System.out.println("Please enter the date as MM/DD/YYYY.");
+					continue;
+				}
 
 				break;
 			}catch(Exception e) {
@@ -1195,9 +1572,13 @@ public class DBproject{
 
 		// Query
 		try {
-			query = "SELECT * FROM Appointment A, Doctor D, has_appointment H WHERE A.status = 'AV' AND A.adate = '" + date + "' ";
-			query += String.format("AND D.did = %2d AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID", departmentID);
-			esql.executeQueryAndPrintResult(query);
+			List<String[]> rows = new ArrayList<String[]>();
+			for (int[] appointment : esql.availability().appointmentsOfDepartment(departmentID, date)) {
+				rows.add(new String[] {Integer.toString(appointment[0]), date.toString(), Integer.toString(appointment[1])});
+			}
+			if (new ResultPrinter(System.out).print(new String[] {"appnt_id", "adate", "doctor_id"}, rows) == 0) {
+				System.out.println("There are no available appointments on that date.");
+			}
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -1206,14 +1587,9 @@ public class DBproject{
 	public static void ListStatusNumberOfAppointmentsPerDoctor(DBproject esql) {//7
 		// Count number of different types of appointments per doctors and list them in descending order
 		String query;
-		List<List<String>> results;
-		List<String> record;
 
 		try {
-			query = "WITH Stat AS (SELECT DISTINCT A.status, D.name FROM Doctor D, has_appointment H, Appointment A WHERE D.doctor_ID = H.doctor_id AND H.appt_id = A.appnt_id ";
-			query += "GROUP BY A.status, D.name ORDER BY D.name DESC)";
-			query += "SELECT Stat.name, COUNT(*) as appointmentTypes FROM Stat GROUP BY Stat.name ORDER BY Stat.name DESC";
-			esql.executeQueryAndPrintResult(query);
+			esql.executeQueryAndPrintResult(Queries.STATUS_TYPES_PER_DOCTOR);
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
 		}
@@ -1225,8 +1601,6 @@ public class DBproject{
 		String status;
 		String query;
 
-		List<List<String>> results;
-		List<String> record;
 
 		// Get the status
 		do {
@@ -1246,13 +1620,519 @@ public class DBproject{
 
 		// Query
 		try {
-			query = "SELECT D.name, COUNT(A.appnt_ID) AS num_patients FROM Appointment A, Doctor D, has_appointment H ";
-			query += "WHERE D.doctor_ID = H.doctor_id AND H.appt_id = A.appnt_ID AND A.status = '" + status + "' ";
-			query += "GROUP BY D.name, D.did ORDER BY num_patients DESC";
-			//System.out.println("query: " + query);
-			esql.executeQueryAndPrintResult(query);
+			esql.executeQueryAndPrintResult(Queries.PATIENTS_PER_DOCTOR_WITH_STATUS, status);
+		}catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	public static void BulkLoad(DBproject esql) {//10
+		// Load the ten CSV files of a directory (data/ or DataGenerator output) through COPY FROM STDIN
+		String directory;
+		boolean truncate;
+
+		do {
+			try {
+				System.out.print("Please enter the CSV directory: ");
+				directory = in.readLine().trim();
+				if (!new File(directory).isDirectory()) {
+					System.out.println("That directory does not exist!");
+					continue;
+				}
+				break;
+			}catch(Exception e) {
+				System.out.println(e.getMessage());
+				continue;
+			}
+		}while(true);
+
+		do {
+			try {
+				System.out.print("Empty the tables before loading? (y/n): ");
+				String answer = in.readLine().trim();
+				if (!(answer.equals("y") || answer.equals("n"))) {
+					System.out.println("Please enter y or n.");
+					continue;
+				}
+				truncate = answer.equals("y");
+				break;
+			}catch(Exception e) {
+				System.out.println(e.getMessage());
+				continue;
+			}
+		}while(true);
+
+		try {
+			new BulkLoader(esql, new File(directory)).load(truncate);
+		}catch(Exception e) {
+			System.out.println("Bulk load failed: " + e.getMessage());
+		}
+	}
+
+	public static void CheckAvailabilityIndex(DBproject esql) {//11
+		// Compare the in-memory available appointments with the database and reload the index when they differ
+		try {
+			List<String> differences = esql.availability().verify();
+			for (int i = 0; i < Math.min(differences.size(), 20); i++) {
+				System.out.println(differences.get(i));
+			}
+			if (differences.isEmpty()) {
+				System.out.println("The index matches the database: " + esql.availability().size() + " available appointments.");
+				return;
+			}
+			System.out.println(differences.size() + " differences, reloading the index...");
+			System.out.println("Indexed " + esql.availability().reload() + " available appointments.");
+		}catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	public static void RunBatchFile(DBproject esql) {//12
+		// Run add-doctor, add-patient, add-appointment and book commands from a CSV or JSON lines file
+		String file;
+
+		do {
+			try {
+				System.out.print("Please enter the batch file: ");
+				file = in.readLine().trim();
+				if (!new File(file).canRead()) {
+					System.out.println("Cannot read that file!");
+					continue;
+				}
+				break;
+			}catch(Exception e) {
+				System.out.println(e.getMessage());
+				continue;
+			}
+		}while(true);
+
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				new BatchRunner(esql, BatchRunner.DEFAULT_CHUNK_SIZE, System.out).run(reader);
+			}finally {
+				reader.close();
+			}
+		}catch(Exception e) {
+			System.out.println("Batch failed: " + e.getMessage());
+		}
+	}
+
+	public static void MaintainPartitions(DBproject esql) {//13
+		// Split the default partition, create the coming months and archive the old ones
+		int retainMonths;
+
+		do {
+			try {
+				System.out.print("Archive months older than how many months? (0 keeps all): ");
+				retainMonths = Integer.parseInt(in.readLine().trim());
+				if (retainMonths < 0) {
+					System.out.println("Please enter 0 or more.");
+					continue;
+				}
+				break;
+			}catch(Exception e) {
+				System.out.println("Your input must be an integer.");
+				continue;
+			}
+		}while(true);
+
+		try {
+			new PartitionMaintenance(esql, System.out).run(PartitionMaintenance.DEFAULT_MONTHS_AHEAD, retainMonths);
+		}catch(Exception e) {
+			System.out.println("Partition maintenance failed: " + e.getMessage());
+		}
+	}
+
+	public static void ShowQueryStats(DBproject esql) {//14
+		// Show the busiest statements since the start or the last reset
+		esql.queryStats().dump(System.out, 20);
+
+		try {
+			System.out.print("Reset the statistics? (y/n): ");
+			String answer = in.readLine();
+			if (answer != null && answer.trim().equalsIgnoreCase("y")) {
+				esql.queryStats().reset();
+			}
+		}catch(Exception e) {
+			System.out.println("Your input is invalid!");
+		}
+	}
+
+	public static void JoinWaitlist(DBproject esql) {//15
+		// Put a patient on the waitlist of a department, or of one doctor of it
+		int patientID;
+		String hospitalName;
+		int hospitalID;
+		String departmentName;
+		int departmentID;
+		int doctorID;
+
+		QueryResult result;
+		QueryResult doctors;
+		int row;
+
+		do {
+			try {
+				System.out.print("Please enter the patient ID: ");
+				patientID = Integer.parseInt(in.readLine());
+
+				if (esql.executeQuery(Queries.PATIENT_BY_ID, patientID) != 1) {
+					System.out.println("That patient does not exist!");
+					continue;
+				}
+				break;
+			}catch(Exception e) {
+				System.out.println("Input is invalid. " + e.getMessage());
+				continue;
+			}
+		}while(true);
+
+		System.out.println("========== Hospital List ==========");
+		try {
+			new ResultPrinter(System.out).print(esql.referenceCache().hospitals(), "name");
+		}catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+		System.out.println("===================================");
+
+		do {
+			try {
+				System.out.print("Please enter the hospital name: ");
+				hospitalName = in.readLine();
+
+				result = esql.referenceCache().hospitals();
+				row = ReferenceCache.find(result, "name", hospitalName);
+
+				if (row < 0) {
+					System.out.println("Did not find a hospital with that name.");
+					continue;
+				}
+
+				System.out.println("Selected Record: " + result.getRecord(row));
+				hospitalID = result.getInt(row, "hospital_ID");
+
+				break;
+			}catch(Exception e) {
+				System.out.println("Invalid input." + e.getMessage());
+				continue;
+			}
+		}while(true);
+
+		System.out.println("========== Department List ==========");
+		try {
+			new ResultPrinter(System.out).print(esql.referenceCache().departments(hospitalID), "name");
+		}catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+		System.out.println("=====================================");
+
+		do {
+			try {
+				System.out.print("Please enter a departnment name: ");
+				departmentName = in.readLine();
+
+				result = esql.referenceCache().departments(hospitalID);
+				row = ReferenceCache.find(result, "name", departmentName);
+
+				if (row < 0) {
+					System.out.println("Did not find a department with that name.");
+					continue;
+				}
+
+				System.out.println("Selected Record: " + result.getRecord(row));
+				departmentID = result.getInt(row, "dept_ID");
+
+				break;
+			}catch(Exception e) {
+				System.out.println("Incorrect input. " + e.getMessage());
+				continue;
+			}
+		}while(true);
+
+		System.out.println("================= Doctor List ================");
+		try {
+			doctors = esql.executeQueryForResult(Queries.DOCTORS_OF_DEPARTMENT, hospitalID, departmentID);
 		}catch(Exception e) {
 			System.out.println(e.getMessage());
+			return;
+		}
+		if (new ResultPrinter(System.out).print(doctors) == 0) {
+			System.out.println("There are no doctors in this department");
+			return;
 		}
+		System.out.println("===================================");
+
+		do {
+			try {
+				System.out.print("Please enter the doctor ID (empty for any doctor): ");
+				String text = in.readLine().trim();
+				if (text.isEmpty()) {
+					doctorID = Waitlist.ANY_DOCTOR;
+					break;
+				}
+				doctorID = Integer.parseInt(text);
+
+				if (doctors.find("doctor_id", doctorID) < 0) {
+					System.out.println("That doctor is not in this department!");
+					continue;
+				}
+				break;
+			}catch(Exception e) {
+				System.out.println("Invalid input. " + e.getMessage());
+				continue;
+			}
+		}while(true);
+
+		try {
+			int requestID = esql.waitlist().add(patientID, hospitalID, departmentID, doctorID, 0);
+			System.out.println("Waitlist request " + requestID + " added.");
+			if (!esql.waitlist().isRunning()) {
+				System.out.println("This session does not promote the waitlist, the request waits for a session that does.");
+			}
+		}catch(Exception e) {
+			System.out.println("Waitlist Query Failed " + e.getMessage());
+		}
+	}
+
+	public static void GenerateSlots(DBproject esql) {//16
+		// Generate the available appointments of the coming days from request_maintenance
+		int days;
+
+		do {
+			try {
+				System.out.print("Generate slots for how many days from tomorrow? (" + SlotGenerator.DEFAULT_DAYS + "): ");
+				String input = in.readLine().trim();
+				days = input.isEmpty() ? SlotGenerator.DEFAULT_DAYS : Integer.parseInt(input);
+				if (days <= 0) {
+					System.out.println("Please enter 1 or more.");
+					continue;
+				}
+				break;
+			}catch(Exception e) {
+				System.out.println("Your input must be an integer.");
+				continue;
+			}
+		}while(true);
+
+		try {
+			new SlotGenerator(esql, System.out).generate(LocalDate.now().plusDays(1), days);
+		}catch(Exception e) {
+			System.out.println("Slot generation failed: " + e.getMessage());
+		}
+	}
+
+	public static void CancelAppointment(DBproject esql) {//17
+		// Cancel an upcoming appointment of a patient, the slot becomes available again
+		int[] appointment = selectUpcomingAppointment(esql, "cancel");
+		if (appointment == null) {
+			return;
+		}
+
+		try {
+			if (HospitalService.cancelAppointment(esql, appointment[0], appointment[1])) {
+				System.out.println("Appointment " + appointment[1] + " was cancelled and is available again.");
+			}else {
+				System.out.println("Appointment " + appointment[1] + " was not cancelled, it is not active anymore.");
+			}
+		}catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	public static void RescheduleAppointment(DBproject esql) {//18
+		// Move an upcoming appointment of a patient to another available appointment of the same doctor
+		int[] appointment = selectUpcomingAppointment(esql, "reschedule");
+		if (appointment == null) {
+			return;
+		}
+		int doctorID = appointment[2];
+		int newAppointmentID;
+
+		System.out.println("========== Available Appointments ==========");
+		try {
+			List<String[]> rows = new ArrayList<String[]>();
+			for (Map.Entry<LocalDate, int[]> day : esql.availability().appointmentsOfDoctor(doctorID).entrySet()) {
+				for (int id : day.getValue()) {
+					rows.add(new String[] {Integer.toString(id), day.getKey().toString()});
+				}
+			}
+			if (new ResultPrinter(System.out).print(new String[] {"appnt_id", "adate"}, rows) == 0) {
+				System.out.println("The doctor has no other appointments available!");
+				return;
+			}
+		}catch(Exception e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		System.out.println("============================================");
+
+		do {
+			try {
+				System.out.print("Please enter the new appointment ID: ");
+				newAppointmentID = Integer.parseInt(in.readLine());
+
+				if (esql.availability().doctorOfAvailable(newAppointmentID) != doctorID) {
+					System.out.println("That is not an available appointment of the doctor!");
+					continue;
+				}
+				break;
+			}catch(Exception e) {
+				System.out.println("Invalid input. " + e.getMessage());
+				continue;
+			}
+		}while(true);
+
+		try {
+			if (HospitalService.rescheduleAppointment(esql, appointment[0], appointment[1], doctorID, newAppointmentID,
+					appointment[3])) {
+				System.out.println("Appointment " + appointment[1] + " was moved to appointment " + newAppointmentID + ".");
+			}else {
+				System.out.println("The appointment was not moved, one of them changed meanwhile.");
+			}
+		}catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/*
+	 * Asks for a patient and one of their upcoming active appointments.
+	 * Returns the patient, appointment, doctor and hospital IDs, or null
+	 * when the patient has none.
+	 */
+	private static int[] selectUpcomingAppointment(DBproject esql, String action) {
+		int patientID;
+		QueryResult upcoming;
+		int row;
+
+		do {
+			try {
+				System.out.print("Please enter the patient ID (or a name or address to search): ");
+				String input = in.readLine().trim();
+				if (!input.matches("\\d+")) {
+					printPatientMatches(esql, input);
+					continue;
+				}
+				patientID = Integer.parseInt(input);
+				upcoming = esql.executeQueryForResult(Queries.UPCOMING_APPOINTMENTS_OF_PATIENT, patientID);
+				break;
+			}catch(Exception e) {
+				System.out.println("Input is invalid. " + e.getMessage());
+				continue;
+			}
+		}while(true);
+
+		System.out.println("========== Upcoming Appointments ==========");
+		if (new ResultPrinter(System.out).print(upcoming) == 0) {
+			System.out.println("This patient has no upcoming active appointments.");
+			return null;
+		}
+		System.out.println("===========================================");
+
+		do {
+			try {
+				System.out.print("Please enter the appointment ID to " + action + ": ");
+				row = upcoming.find("appnt_id", Integer.parseInt(in.readLine()));
+				if (row < 0) {
+					System.out.println("That is not an upcoming appointment of the patient!");
+					continue;
+				}
+				break;
+			}catch(Exception e) {
+				System.out.println("Invalid input. " + e.getMessage());
+				continue;
+			}
+		}while(true);
+
+		return new int[] {patientID, upcoming.getInt(row, "appnt_id"), upcoming.getInt(row, "doctor_id"),
+			upcoming.getInt(row, "hid")};
+	}
+
+	public static void CloseOutDays(DBproject esql) {//19
+		// Flip the active appointments of the past days to PA, unbooked slots stay AV
+		try {
+			System.out.print("Close out the appointments before " + LocalDate.now() + "? (y/n): ");
+			String answer = in.readLine();
+			if (answer == null || !answer.trim().equalsIgnoreCase("y")) {
+				return;
+			}
+			new DayCloseOut(esql, System.out).run(LocalDate.now());
+		}catch(Exception e) {
+			System.out.println("Close-out failed: " + e.getMessage());
+		}
+	}
+
+	public static void SearchPatients(DBproject esql) {//20
+		// Find patients by part of their name or address, misspellings included
+		try {
+			System.out.print("Please enter part of a name or address: ");
+			printPatientMatches(esql, in.readLine().trim());
+		}catch(Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/*
+	 * Lists the patients found by the patient index, best first.
+	 */
+	private static void printPatientMatches(DBproject esql, String text) throws SQLException {
+		long start = System.nanoTime();
+		List<PatientIndex.Match> matches = esql.patientIndex().search(text, PatientIndex.DEFAULT_LIMIT);
+		double ms = (System.nanoTime() - start) / 1e6;
+		List<String[]> rows = new ArrayList<String[]>();
+		for (PatientIndex.Match match : matches) {
+			rows.add(new String[] {Integer.toString(match.getPatientID()), match.getName(), match.getAddress(),
+				String.format("%.2f", match.getSimilarity())});
+		}
+		System.out.println("========== Matching Patients ==========");
+		if (new ResultPrinter(System.out).print(new String[] {"patient_id", "name", "address", "similarity"}, rows) == 0) {
+			System.out.println("No patient matches \"" + text + "\".");
+		}
+		System.out.printf("(%d patients searched in %.1f ms)%n", esql.patientIndex().size(), ms);
+		System.out.println("=======================================");
+	}
+
+	/*
+	 * Starts reading the departments of every hospital, while the user
+	 * types the name of one.  Empty when prefetching is off.
+	 */
+	private static Map<Integer, Prefetch<QueryResult>> prefetchDepartments(DBproject esql) {
+		Map<Integer, Prefetch<QueryResult>> ahead = new HashMap<Integer, Prefetch<QueryResult>>();
+		if (!esql.isPrefetching()) {
+			return ahead;
+		}
+		try {
+			QueryResult hospitals = esql.referenceCache().hospitals();
+			for (int row = 0; row < hospitals.size(); row++) {
+				int hospitalID = hospitals.getInt(row, "hospital_ID");
+				ahead.put(hospitalID, Prefetch.start(esql, () -> esql.referenceCache().departments(hospitalID)));
+			}
+		}catch(Exception e) {
+			//read when needed instead
+		}
+		return ahead;
+	}
+
+	/*
+	 * Starts reading the doctors of a hospital in one query, while the user
+	 * types the name of a department.  Null when prefetching is off.
+	 */
+	private static Prefetch<QueryResult> prefetchDoctors(DBproject esql, int hospitalID) {
+		if (!esql.isPrefetching()) {
+			return null;
+		}
+		return Prefetch.start(esql, () -> esql.executeQueryForResult(Queries.DOCTORS_OF_HOSPITAL, hospitalID));
+	}
+
+	private static QueryResult departmentsOf(DBproject esql, Map<Integer, Prefetch<QueryResult>> ahead, int hospitalID)
+			throws SQLException {
+		Prefetch<QueryResult> departments = ahead.get(hospitalID);
+		return departments == null ? esql.referenceCache().departments(hospitalID) : departments.get();
+	}
+
+	private static QueryResult doctorsOf(DBproject esql, Prefetch<QueryResult> ahead, int hospitalID, int departmentID)
+			throws SQLException {
+		return ahead == null ? esql.executeQueryForResult(Queries.DOCTORS_OF_DEPARTMENT, hospitalID, departmentID)
+			: ahead.get().where("did", departmentID);
 	}
 }
@@ -0,0 +1,268 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+
+/**
+ * This class writes a synthetic, referentially consistent copy of the ten
+ * CSV files in data/ at a configurable scale.  Scale 1 produces roughly the
+ * row counts of the checked-in fixtures; every table grows linearly with the
+ * scale, so scale 2000 yields about 1.1 million appointments.  The output
+ * uses the fixture format (no header, ',' delimiter, M/D/YYYY dates) and can
+ * be loaded with create.sql or the bulk loader.
+ *
+ * Rows are written as they are generated; only per-entity primitive arrays
+ * (the department of each doctor, the appointment count of each patient)
+ * are kept in memory.  The same scale and seed always produce the same files.
+ *
+ * Usage: java -cp bin/ DataGenerator <outDir> [scale] [seed] [referenceDate]
+ *
+ */
+
+public class DataGenerator {
+	//row counts of the fixtures at scale 1
+	static final int BASE_HOSPITALS = 4;
+	static final int BASE_DEPARTMENTS = 125;
+	static final int BASE_STAFF = 250;
+	static final int BASE_DOCTORS = 250;
+	static final int BASE_PATIENTS = 250;
+	static final int BASE_APPOINTMENTS = 550;
+
+	//appointments span this many days before and after the reference date
+	static final int HISTORY_DAYS = 2 * 365;
+	static final int HORIZON_DAYS = 120;
+
+	static final String[] HOSPITAL_NAMES = {"UCLA Medical Center", "Cedars-Sinai Medical Center",
+		"UCSF Medical Center", "Stanford Health Care", "Keck Hospital of USC", "UC San Diego Health",
+		"Riverside Community Hospital", "Loma Linda University Medical Center"};
+	static final String[] DEPARTMENT_NAMES = {"Accident and emergency", "Allergy and Immunology", "Cardiology",
+		"Dermatology", "Endocrinology", "Finance", "Gastroenterology", "General Surgery", "Human Resources", "ICU",
+		"Microbiology", "Neurology", "Nutrition", "Obstetrics/Gynecology", "Oncology", "Ophthalmology",
+		"Otolaryngology", "Pain Management", "Patient Services", "Pediatric", "Pharmacy", "Psychiatry", "Radiology",
+		"Rheumatology", "Urology"};
+	static final String[] SPECIALTIES = {"Allergist", "Cardiologist", "Dermatologist", "Endocrinologist",
+		"Gastroenterologist", "Neurologist", "Nutritionist", "Oncologist", "Ophthalmologist", "Otolaryngologist",
+		"Pediatrician", "Psychiatrist", "Radiologist", "Urologist", "gynecologist"};
+	static final String[] TIME_SLOTS = {"8:00-10:00", "8:00-10:30", "8:00-10:50", "8:00-17:00", "10:00-15:00",
+		"10:00-17:00", "13:00-15:00", "14:00-16:00"};
+	static final String[] FIRST_NAMES_F = {"Alice", "Camille", "Carrie", "Diana", "Elena", "Fiona", "Grace",
+		"Hannah", "Isabel", "Julia", "Karen", "Lindsey", "Maria", "Nora", "Olivia", "Paula", "Rosa", "Sofia"};
+	static final String[] FIRST_NAMES_M = {"Alberto", "Alvin", "Armand", "Brian", "Calvin", "Daniel", "Edward",
+		"Frank", "George", "Henry", "Ivan", "Jourdon", "Kevin", "Luis", "Marcus", "Omar", "Peter", "Wyatt"};
+	static final String[] LAST_NAMES = {"Saunders", "Cortez", "Morrison", "Holmes", "Sullivan", "Newton",
+		"Enderle", "Scarlett", "Ruoff", "Carrillo", "Freeman", "Nguyen", "Garcia", "Kim", "Patel", "Smith",
+		"Johnson", "Lee", "Martinez", "Brown", "Davis", "Lopez", "Wilson", "Anderson", "Thomas", "Moore"};
+	static final String[] STREETS = {"Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Oak Lane",
+		"Maple Street", "Sunset Blvd.", "University Ave.", "Canyon Road", "Lakeview Drive", "Mission Street"};
+	static final String[] CITIES = {"Melbourne", "Baton Rouge", "Cockeysville", "Riverside", "Los Angeles",
+		"San Diego", "Irvine", "Pasadena", "Fresno", "Sacramento"};
+
+	private final File _outDir;
+	private final SplittableRandom _random;
+	private final LocalDate _referenceDate;
+
+	private final int _hospitals;
+	private final int _departments;
+	private final int _staff;
+	private final int _doctors;
+	private final int _patients;
+	private final int _appointments;
+
+	//department of each doctor, appointment count of each patient
+	private int[] _doctorDepartment;
+	private int[] _patientAppointments;
+
+	public DataGenerator(File outDir, double scale, long seed, LocalDate referenceDate) {
+		this._outDir = outDir;
+		this._random = new SplittableRandom(seed);
+		this._referenceDate = referenceDate;
+		this._hospitals = scaled(BASE_HOSPITALS, scale);
+		this._departments = Math.max(_hospitals, scaled(BASE_DEPARTMENTS, scale));
+		this._staff = Math.max(_hospitals, scaled(BASE_STAFF, scale));
+		this._doctors = scaled(BASE_DOCTORS, scale);
+		this._patients = scaled(BASE_PATIENTS, scale);
+		this._appointments = scaled(BASE_APPOINTMENTS, scale);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName() +
+				" <outDir> [scale] [seed] [referenceDate yyyy-mm-dd]");
+			return;
+		}
+		File outDir = new File(args[0]);
+		double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 166L;
+		LocalDate referenceDate = args.length > 3 ? LocalDate.parse(args[3]) : LocalDate.of(2021, 6, 1);
+		if (!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("Cannot create " + outDir);
+		}
+		new DataGenerator(outDir, scale, seed, referenceDate).generate();
+	}
+
+	private static int scaled(int base, double scale) {
+		return (int) Math.max(1, Math.round(base * scale));
+	}
+
+	/**
+	 * Method to write all ten CSV files.
+	 *
+	 * @throws java.io.IOException when a file cannot be written
+	 */
+	public void generate() throws IOException {
+		long start = System.nanoTime();
+		long rows = 0;
+		rows += writeHospitals();
+		rows += writeDepartments();
+		rows += writeStaff();
+		rows += writeDoctors();
+		rows += writeRequestMaintenance();
+		rows += writeAppointments();
+		//patients last: their appointment count is known once searches is written
+		rows += writePatients();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Wrote %d rows to %s in %.1f s (%.0f rows/s)%n", rows, _outDir, seconds, rows / seconds);
+	}
+
+	private Writer open(String table) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(new File(_outDir, table + ".csv")), StandardCharsets.UTF_8), 1 << 20);
+	}
+
+	private long writeHospitals() throws IOException {
+		try (Writer out = open("hospital")) {
+			for (int h = 0; h < _hospitals; h++) {
+				String name = HOSPITAL_NAMES[h % HOSPITAL_NAMES.length];
+				if (h >= HOSPITAL_NAMES.length) {
+					name += " " + (h / HOSPITAL_NAMES.length + 1);
+				}
+				out.write(h + "," + name + "\n");
+			}
+		}
+		return _hospitals;
+	}
+
+	//department d belongs to hospital d % hospitals
+	private long writeDepartments() throws IOException {
+		try (Writer out = open("department")) {
+			for (int d = 0; d < _departments; d++) {
+				String name = DEPARTMENT_NAMES[(d / _hospitals) % DEPARTMENT_NAMES.length];
+				out.write(d + "," + name + "," + (d % _hospitals) + "\n");
+			}
+		}
+		return _departments;
+	}
+
+	//staff member s works at hospital s % hospitals
+	private long writeStaff() throws IOException {
+		try (Writer out = open("staff")) {
+			for (int s = 0; s < _staff; s++) {
+				out.write(s + "," + personName(_random.nextBoolean()) + "," + (s % _hospitals) + "\n");
+			}
+		}
+		return _staff;
+	}
+
+	private long writeDoctors() throws IOException {
+		_doctorDepartment = new int[_doctors];
+		try (Writer out = open("doctor")) {
+			for (int d = 0; d < _doctors; d++) {
+				int department = _random.nextInt(_departments);
+				_doctorDepartment[d] = department;
+				String specialty = SPECIALTIES[_random.nextInt(SPECIALTIES.length)];
+				out.write(d + "," + personName(_random.nextBoolean()) + "," + specialty + "," + department + "\n");
+			}
+		}
+		return _doctors;
+	}
+
+	//one maintenance request per doctor, made by a staff member of the doctor's hospital
+	private long writeRequestMaintenance() throws IOException {
+		try (Writer out = open("request_maintenance")) {
+			for (int d = 0; d < _doctors; d++) {
+				int department = _doctorDepartment[d];
+				String deptName = DEPARTMENT_NAMES[(department / _hospitals) % DEPARTMENT_NAMES.length];
+				int perHour = 1 + _random.nextInt(4);
+				String slot = TIME_SLOTS[_random.nextInt(TIME_SLOTS.length)];
+				out.write(perHour + "," + deptName + "," + slot + "," + d + "," +
+					staffOf(department % _hospitals) + "\n");
+			}
+		}
+		return _doctors;
+	}
+
+	/*
+	 * Appointments, has_appointment, schedules and searches are written in
+	 * one pass.  Dates before the reference date are mostly past (PA) with a
+	 * few active ones not closed out yet; later dates are available (AV),
+	 * active (AC) or waitlisted (WL).  Every appointment belongs to one
+	 * doctor and is scheduled by a staff member of the doctor's hospital;
+	 * booked ones (PA, AC, WL) were searched by one patient.
+	 */
+	private long writeAppointments() throws IOException {
+		_patientAppointments = new int[_patients];
+		long rows = 0;
+		try (Writer appointments = open("appointment");
+				Writer hasAppointment = open("has_appointment");
+				Writer schedules = open("schedules");
+				Writer searches = open("searches")) {
+			for (int a = 0; a < _appointments; a++) {
+				int offset = _random.nextInt(HISTORY_DAYS + HORIZON_DAYS) - HISTORY_DAYS;
+				LocalDate date = _referenceDate.plusDays(offset);
+				String status;
+				int roll = _random.nextInt(100);
+				if (offset < 0) {
+					status = roll < 95 ? "PA" : "AC";
+				}else {
+					status = roll < 45 ? "AV" : roll < 90 ? "AC" : "WL";
+				}
+				String slot = TIME_SLOTS[_random.nextInt(TIME_SLOTS.length)];
+				appointments.write(a + "," + date.getMonthValue() + "/" + date.getDayOfMonth() + "/" + date.getYear() +
+					"," + slot + "," + status + "\n");
+
+				int doctor = _random.nextInt(_doctors);
+				int hospital = _doctorDepartment[doctor] % _hospitals;
+				hasAppointment.write(a + "," + doctor + "\n");
+				schedules.write(a + "," + staffOf(hospital) + "\n");
+				rows += 3;
+
+				if (!status.equals("AV")) {
+					int patient = _random.nextInt(_patients);
+					_patientAppointments[patient]++;
+					searches.write(hospital + "," + patient + "," + a + "\n");
+					rows++;
+				}
+			}
+		}
+		return rows;
+	}
+
+	private long writePatients() throws IOException {
+		try (Writer out = open("patient")) {
+			for (int p = 0; p < _patients; p++) {
+				boolean female = _random.nextBoolean();
+				String address = (100 + _random.nextInt(9900)) + " " + STREETS[_random.nextInt(STREETS.length)] +
+					" " + CITIES[_random.nextInt(CITIES.length)];
+				out.write(p + "," + personName(female) + "," + (female ? "F" : "M") + "," + _random.nextInt(100) +
+					"," + address + "," + _patientAppointments[p] + "\n");
+			}
+		}
+		return _patients;
+	}
+
+	//a random staff member of the hospital
+	private int staffOf(int hospital) {
+		int count = (_staff - hospital + _hospitals - 1) / _hospitals;
+		return hospital + _hospitals * _random.nextInt(count);
+	}
+
+	private String personName(boolean female) {
+		String[] first = female ? FIRST_NAMES_F : FIRST_NAMES_M;
+		return first[_random.nextInt(first.length)] + " " + LAST_NAMES[_random.nextInt(LAST_NAMES.length)];
+	}
+}
@@ -0,0 +1,101 @@
+import java.io.PrintStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * This class closes out the days before a date: their active appointments
+ * took place and become PA.  Their available appointments stay AV: the
+ * patient reports (option 8, /reports/patients) count every PA appointment
+ * of a doctor, so an unbooked slot must not become one.  A past AV slot
+ * cannot be booked, BOOK_APPOINTMENT only takes days from today on.
+ *
+ * The rows are updated in chunks of closeout.chunkSize, each in its own
+ * short transaction, so the job never holds more than a chunk of row
+ * locks and a booking waits for at most one chunk.  Rows another session
+ * holds are skipped and left for the next run.  The chunks do not notify
+ * each row (migration 006); a single reload notice is sent at the end.
+ * Migration 007 indexes the rows still to close.
+ *
+ * Meant to run every night, e.g. from cron:
+ *   5 0 * * * cd .../java && java -cp lib/*:bin/ DayCloseOut $USER"_DB" $PGPORT $USER
+ *
+ * Usage: java -cp lib/*:bin/ DayCloseOut <dbname> <port> <user> [firstOpenDate]
+ *
+ */
+
+public class DayCloseOut {
+	static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("closeout.chunkSize", 10000);
+
+	private final DBproject _esql;
+	private final PrintStream _out;
+	private final int _chunkSize;
+
+	public DayCloseOut(DBproject esql, PrintStream out) {
+		this(esql, out, DEFAULT_CHUNK_SIZE);
+	}
+
+	public DayCloseOut(DBproject esql, PrintStream out, int chunkSize) {
+		this._esql = esql;
+		this._out = out;
+		this._chunkSize = chunkSize;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + DayCloseOut.class.getName() +
+				" <dbname> <port> <user> [firstOpenDate]");
+			return;
+		}
+		LocalDate before = args.length > 3 ? LocalDate.parse(args[3]) : LocalDate.now();
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			new DayCloseOut(esql, System.out).run(before);
+		}finally {
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Method to close out the appointments of the days before a date.
+	 *
+	 * @param before the first day that stays open
+	 * @return the number of active appointments closed
+	 * @throws java.sql.SQLException when a chunk could not be closed, the
+	 *         chunks before it stay closed
+	 */
+	public long run(LocalDate before) throws SQLException {
+		long start = System.nanoTime();
+		long active = 0;
+		int chunks = 0;
+		try {
+			while (true) {
+				long closed = _esql.executeInTransaction(conn -> {
+					conn.prepare(Queries.QUIET_CHANGE_FEED).execute();
+					ResultSet rs = conn.prepare(Queries.CLOSE_OUT_CHUNK, before, _chunkSize).executeQuery();
+					try {
+						rs.next();
+						return rs.getLong("active");
+					}finally {
+						rs.close();
+					}
+				});
+				if (closed == 0) {
+					break;
+				}
+				active += closed;
+				chunks++;
+			}
+		}finally {
+			if (active > 0) {
+				_esql.executeQueryForResult(Queries.NOTIFY, ChangeListener.CHANNEL, "{\"table\": \"*\", \"op\": \"CLOSE_OUT\"}");
+			}
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		_out.printf("Closed out the days before %s: %,d active appointments to PA in %d chunks, %.1f s (%,.0f rows/s)%n",
+			before, active, chunks, seconds, active / seconds);
+		return active;
+	}
+}
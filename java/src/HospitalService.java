@@ -0,0 +1,211 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * This class holds the write operations of the hospital front desk that
+ * must stay correct when several sessions run them at the same time, and
+ * the lookups they rely on.  Like the menu methods of DBproject, every
+ * operation takes the DBproject it runs against as first argument.
+ *
+ */
+
+public final class HospitalService {
+	//outcomes of promoteWaitlisted
+	public static final int PROMOTED = 1;
+	public static final int SLOT_TAKEN = 0;
+	public static final int REQUEST_GONE = -1;
+
+	private HospitalService() {
+	}
+
+	/**
+	 * Method to book an available appointment of a doctor for a patient.
+	 * The availability check and the AV to AC transition happen in one
+	 * conditional update, together with the searches row and the patient's
+	 * appointment count, so two sessions can never book the same slot.
+	 *
+	 * @param esql the database to run against
+	 * @param patientID the patient taking the appointment
+	 * @param doctorID the doctor the appointment must belong to
+	 * @param appointmentID the appointment to book
+	 * @param hospitalID the hospital the patient searched in
+	 * @return true when the appointment was booked, false when it is not
+	 *         available (anymore), is past or does not belong to the doctor
+	 * @throws java.sql.SQLException when the booking failed, e.g. the patient does not exist
+	 */
+	public static boolean bookAppointment(DBproject esql, int patientID, int doctorID, int appointmentID,
+			int hospitalID) throws SQLException {
+		boolean booked = esql.executeInTransaction(conn -> conn.prepare(Queries.BOOK_APPOINTMENT,
+			appointmentID, doctorID, hospitalID, patientID, patientID).executeUpdate() == 1);
+		//either way the slot is not bookable for this doctor anymore
+		if (booked || esql.availability().doctorOfAvailable(appointmentID) == doctorID) {
+			esql.availability().remove(appointmentID);
+		}
+		return booked;
+	}
+
+	/**
+	 * Method to cancel an active appointment of a patient.  The AC to AV
+	 * transition, the removal of the searches row and the patient's
+	 * appointment count happen in one conditional update, the reverse of
+	 * bookAppointment.  The slot is then offered to the waitlist.
+	 *
+	 * @param esql the database to run against
+	 * @param patientID the patient who took the appointment
+	 * @param appointmentID the appointment to cancel
+	 * @return true when the appointment was cancelled, false when it is not
+	 *         an active appointment of the patient or its day is past
+	 * @throws java.sql.SQLException when the cancellation failed
+	 */
+	public static boolean cancelAppointment(DBproject esql, int patientID, int appointmentID) throws SQLException {
+		boolean cancelled = esql.executeInTransaction(conn -> conn.prepare(Queries.CANCEL_APPOINTMENT,
+			appointmentID, patientID, patientID, patientID).executeUpdate() == 1);
+		if (cancelled) {
+			esql.availability().refresh(appointmentID);
+			esql.waitlist().offer(appointmentID);
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Method to move a patient from an active appointment to an available
+	 * one.  The new appointment is booked and the old one cancelled in one
+	 * transaction: the patient never ends up with both or neither.  The
+	 * freed slot is then offered to the waitlist.
+	 *
+	 * @param esql the database to run against
+	 * @param patientID the patient
+	 * @param appointmentID the active appointment of the patient
+	 * @param doctorID the doctor the new appointment must belong to
+	 * @param newAppointmentID the available appointment to move to
+	 * @param hospitalID the hospital the patient searched in
+	 * @return true when the appointment was moved, false when the new one is
+	 *         not available (anymore) or the old one cannot be cancelled
+	 * @throws java.sql.SQLException when the move failed
+	 */
+	public static boolean rescheduleAppointment(DBproject esql, int patientID, int appointmentID, int doctorID,
+			int newAppointmentID, int hospitalID) throws SQLException {
+		boolean moved = esql.executeInTransaction(conn -> {
+			if (conn.prepare(Queries.BOOK_APPOINTMENT, newAppointmentID, doctorID, hospitalID, patientID, patientID)
+					.executeUpdate() != 1) {
+				return false;
+			}
+			if (conn.prepare(Queries.CANCEL_APPOINTMENT, appointmentID, patientID, patientID, patientID)
+					.executeUpdate() != 1) {
+				conn.getConnection().rollback();
+				return false;
+			}
+			return true;
+		});
+		if (moved) {
+			esql.availability().remove(newAppointmentID);
+			esql.availability().refresh(appointmentID);
+			esql.waitlist().offer(appointmentID);
+		}
+		return moved;
+	}
+
+	/**
+	 * Method to add an appointment of a doctor.  Both rows are inserted in
+	 * one transaction, after checking that the doctor has no appointment
+	 * overlapping the slot; the doctor row is locked meanwhile, so two
+	 * sessions cannot add overlapping slots.  An available appointment is
+	 * added to the availability index.
+	 *
+	 * @param esql the database to run against
+	 * @param appointmentID the new appointment
+	 * @param departmentID the department of the doctor
+	 * @param doctorID the doctor the appointment belongs to
+	 * @param date the date
+	 * @param timeSlot the time slot
+	 * @param status the status (PA, AC, AV or WL)
+	 * @return the inserted appointment row
+	 * @throws java.sql.SQLException when the insert failed, with SQL state
+	 *         23P01 (exclusion violation) when the slot overlaps another one
+	 */
+	public static QueryResult addAppointment(DBproject esql, int appointmentID, int departmentID, int doctorID,
+			LocalDate date, TimeSlot timeSlot, String status) throws SQLException {
+		QueryResult appointment = esql.executeInTransaction(conn -> {
+			read(conn.prepare(Queries.LOCK_DOCTOR, doctorID));
+			QueryResult overlapping = read(conn.prepare(Queries.APPOINTMENTS_OF_DOCTOR_OVERLAPPING, doctorID, date, date,
+				timeSlot.startOn(date), timeSlot.endOn(date)));
+			if (!overlapping.isEmpty()) {
+				throw new SQLException("Doctor " + doctorID + " already has appointment " + overlapping.getInt(0, "appnt_id") +
+					" at " + overlapping.getString(0, "time_slot") + " on " + date, "23P01");
+			}
+			conn.prepare(Queries.INSERT_APPOINTMENT, appointmentID, date, timeSlot.getStart(), timeSlot.getEnd(), status,
+				doctorID).executeUpdate();
+			conn.prepare(Queries.INSERT_HAS_APPOINTMENT, appointmentID, doctorID).executeUpdate();
+			return read(conn.prepare(Queries.APPOINTMENT_BY_ID, appointmentID));
+		});
+		if ("AV".equals(status)) {
+			esql.availability().add(departmentID, doctorID, date, appointmentID);
+			esql.waitlist().offer(appointmentID);
+		}
+		return appointment;
+	}
+
+	/**
+	 * Method to book an available appointment for a waiting request of the
+	 * waitlist.  The booking and the promotion of the request happen in one
+	 * transaction: nothing is booked when the request was withdrawn or
+	 * promoted meanwhile.
+	 *
+	 * @param esql the database to run against
+	 * @param requestID the waiting request
+	 * @param patientID the patient of the request
+	 * @param doctorID the doctor the appointment must belong to
+	 * @param appointmentID the appointment to book
+	 * @param hospitalID the hospital of the request
+	 * @return PROMOTED, SLOT_TAKEN when the appointment is not available
+	 *         (anymore) or past, or REQUEST_GONE when the request is not waiting
+	 * @throws java.sql.SQLException when the booking failed
+	 */
+	public static int promoteWaitlisted(DBproject esql, int requestID, int patientID, int doctorID, int appointmentID,
+			int hospitalID) throws SQLException {
+		int outcome = esql.executeInTransaction(conn -> {
+			if (conn.prepare(Queries.BOOK_APPOINTMENT, appointmentID, doctorID, hospitalID, patientID, patientID)
+					.executeUpdate() != 1) {
+				return SLOT_TAKEN;
+			}
+			if (conn.prepare(Queries.CLAIM_WAITLIST_REQUEST, appointmentID, requestID).executeUpdate() != 1) {
+				conn.getConnection().rollback();
+				return REQUEST_GONE;
+			}
+			return PROMOTED;
+		});
+		if (outcome != REQUEST_GONE) {
+			esql.availability().remove(appointmentID);
+		}
+		return outcome;
+	}
+
+	/**
+	 * Method to find the appointments of a doctor whose slot overlaps an
+	 * interval, through the GiST index over doctor and slot.
+	 *
+	 * @param esql the database to run against
+	 * @param doctorID the doctor
+	 * @param from the start of the interval
+	 * @param to the end of the interval, excluded
+	 * @return appnt_ID, adate, time_slot and status of the appointments, by start
+	 * @throws java.sql.SQLException when the query failed
+	 */
+	public static QueryResult appointmentsOverlapping(DBproject esql, int doctorID, LocalDateTime from,
+			LocalDateTime to) throws SQLException {
+		return esql.executeQueryForResult(Queries.APPOINTMENTS_OF_DOCTOR_OVERLAPPING, doctorID,
+			from.toLocalDate(), to.toLocalDate(), from, to);
+	}
+
+	private static QueryResult read(PreparedStatement stmt) throws SQLException {
+		ResultSet rs = stmt.executeQuery();
+		try {
+			return QueryResult.read(rs);
+		}finally {
+			rs.close();
+		}
+	}
+}
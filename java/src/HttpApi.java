@@ -0,0 +1,583 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the eight menu operations as a JSON HTTP service, so
+ * many booking kiosks can share one process, its connection pool and its
+ * caches:
+ *
+ *   POST /doctors                            {"name", "specialty", "department"}
+ *   POST /patients                           {"name", "gender", "age", "address"}
+ *   GET  /patients?q=[&limit=]               (name or address, ranked)
+ *   POST /appointments                       {"doctor", "date", "time_slot", "status"}
+ *   POST /bookings                           {"patient", "doctor", "appointment", "hospital"}
+ *   POST /bookings/{id}/cancel               {"patient"}
+ *   POST /bookings/{id}/reschedule           {"patient", "doctor", "appointment", "hospital"}
+ *   GET  /doctors/{id}/appointments?from=&to=
+ *   GET  /doctors/{id}/overlapping?from=&to=   (ISO date-times, e.g. 2021-06-01T08:00)
+ *   GET  /departments/{id}/available[?date=]
+ *   GET  /reports/status-types
+ *   GET  /reports/patients?status=
+ *   GET  /metrics
+ *
+ * Requests run on a virtual thread each when the JDK has them (21 and
+ * later), otherwise on a bounded pool of http.threads platform threads.
+ * Either way the number of statements running at once is bounded by the
+ * connection pool.  The latency of every endpoint is recorded in a
+ * histogram reported by /metrics, together with the pool, the caches,
+ * the change feed and the busiest statements of QueryStats.
+ *
+ * Usage: java -cp lib/*:bin/ HttpApi <dbname> <port> <user> [httpPort]
+ *
+ */
+
+public class HttpApi {
+	static final int DEFAULT_HTTP_PORT = 8080;
+	//platform threads serving requests when virtual threads are not available
+	static final int HTTP_THREADS = Integer.getInteger("http.threads", 256);
+	//connections used when pool.maxSize is not given
+	static final int DEFAULT_POOL_SIZE = 32;
+	//largest request body accepted
+	static final int MAX_BODY_BYTES = 64 * 1024;
+	static final List<String> STATUSES = Arrays.asList("PA", "AC", "AV", "WL");
+	//statements of QueryStats reported by /metrics
+	static final int METRICS_STATEMENTS = 10;
+
+	private final DBproject _esql;
+	private final List<Route> _routes = new ArrayList<Route>();
+	private final AtomicLong _requests = new AtomicLong();
+	private final AtomicLong _errors = new AtomicLong();
+	private final AtomicInteger _inFlight = new AtomicInteger();
+	private HttpServer _server;
+	private ExecutorService _executor;
+	private boolean _virtualThreads;
+
+	public HttpApi(DBproject esql) {
+		this._esql = esql;
+		route("add-doctor", "POST", "/doctors", this::addDoctor);
+		route("add-patient", "POST", "/patients", this::addPatient);
+		route("patient-search", "GET", "/patients", this::searchPatients);
+		route("add-appointment", "POST", "/appointments", this::addAppointment);
+		route("book", "POST", "/bookings", this::book);
+		route("cancel", "POST", "/bookings/(\\d+)/cancel", this::cancel);
+		route("reschedule", "POST", "/bookings/(\\d+)/reschedule", this::reschedule);
+		route("doctor-appointments", "GET", "/doctors/(\\d+)/appointments", this::appointmentsOfDoctor);
+		route("doctor-overlapping", "GET", "/doctors/(\\d+)/overlapping", this::overlappingOfDoctor);
+		route("department-available", "GET", "/departments/(\\d+)/available", this::availableOfDepartment);
+		route("status-types", "GET", "/reports/status-types", this::statusTypes);
+		route("patients-with-status", "GET", "/reports/patients", this::patientsWithStatus);
+		route("metrics", "GET", "/metrics", this::metrics);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + HttpApi.class.getName() +
+				" <dbname> <port> <user> [httpPort]");
+			return;
+		}
+		int httpPort = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_HTTP_PORT;
+		if (System.getProperty("pool.maxSize") == null) {
+			System.setProperty("pool.maxSize", Integer.toString(DEFAULT_POOL_SIZE));
+		}
+
+		Class.forName("org.postgresql.Driver");
+		final DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		final HttpApi api = new HttpApi(esql);
+		try {
+			api.start(httpPort);
+		}catch (IOException e) {
+			esql.cleanup();
+			throw e;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			api.stop();
+			esql.cleanup();
+		}, "http-shutdown"));
+		System.out.println("Serving on port " + httpPort + (api._virtualThreads ? " (virtual threads)" :
+			" (" + HTTP_THREADS + " threads)") + ", " + esql.getConnectionPool().getMaxSize() + " connections");
+	}
+
+	/**
+	 * Method to start serving.
+	 *
+	 * @param httpPort the port to listen on
+	 * @throws java.io.IOException when the port could not be bound
+	 */
+	public synchronized void start(int httpPort) throws IOException {
+		_server = HttpServer.create(new InetSocketAddress(httpPort), 0);
+		_executor = newExecutor();
+		_server.setExecutor(_executor);
+		_server.createContext("/", this::handle);
+		_server.start();
+	}
+
+	/**
+	 * Method to stop serving, letting running requests finish for a second.
+	 */
+	public synchronized void stop() {
+		if (_server != null) {
+			_server.stop(1);
+			_executor.shutdown();
+			_server = null;
+		}
+	}
+
+	/*
+	 * Executors.newVirtualThreadPerTaskExecutor() is looked up at run time so
+	 * the class still compiles and runs on JDKs without virtual threads.
+	 */
+	private ExecutorService newExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			_virtualThreads = true;
+			return (ExecutorService) factory.invoke(null);
+		}catch (ReflectiveOperationException e) {
+			_virtualThreads = false;
+		}
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(HTTP_THREADS, HTTP_THREADS, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), task -> {
+				Thread thread = new Thread(task, "http-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private void route(String name, String method, String path, Handler handler) {
+		_routes.add(new Route(name, method, Pattern.compile(path), handler));
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		_requests.incrementAndGet();
+		_inFlight.incrementAndGet();
+		Route route = null;
+		Response response;
+		try {
+			String path = exchange.getRequestURI().getPath();
+			boolean pathFound = false;
+			Matcher matcher = null;
+			for (Route candidate : _routes) {
+				matcher = candidate.pattern.matcher(path);
+				if (matcher.matches()) {
+					pathFound = true;
+					if (candidate.method.equals(exchange.getRequestMethod())) {
+						route = candidate;
+						break;
+					}
+				}
+			}
+			if (route == null) {
+				response = pathFound ? error(405, "Method not allowed") : error(404, "No such resource");
+			}else {
+				response = route.handler.handle(new Request(exchange, matcher));
+			}
+		}catch (IllegalArgumentException e) {
+			response = error(400, e.getMessage());
+		}catch (SQLException e) {
+			response = sqlError(e);
+		}catch (Exception e) {
+			response = error(500, String.valueOf(e.getMessage()));
+		}
+		try {
+			send(exchange, response);
+		}finally {
+			_inFlight.decrementAndGet();
+			if (response.status >= 500) {
+				_errors.incrementAndGet();
+			}
+			if (route != null) {
+				route.latency.record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	private static void send(HttpExchange exchange, Response response) throws IOException {
+		byte[] body = Json.write(response.body).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(response.status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		}finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * Constraint violations are the client's fault (unknown patient, taken
+	 * ID), bad values too (invalid date); anything else is ours.
+	 */
+	private static Response sqlError(SQLException e) {
+		String state = e.getSQLState() == null ? "" : e.getSQLState();
+		if (state.startsWith("23")) {
+			return error(409, e.getMessage());
+		}else if (state.startsWith("22")) {
+			return error(400, e.getMessage());
+		}
+		return error(500, e.getMessage());
+	}
+
+	private static Response error(int status, String message) {
+		return new Response(status, Collections.singletonMap("error", message));
+	}
+
+	private Response addDoctor(Request request) throws SQLException {
+		String name = request.required("name");
+		String specialty = request.required("specialty");
+		int departmentID = request.integer("department");
+		int doctorID = _esql.doctorIds().nextId();
+		QueryResult doctor = _esql.executeQueryForResult(Queries.INSERT_DOCTOR_RETURNING, doctorID, name, specialty,
+			departmentID);
+		_esql.referenceCache().invalidateSpecialties();
+		return new Response(201, firstRow(doctor));
+	}
+
+	private Response addPatient(Request request) throws SQLException {
+		String name = request.required("name");
+		String gender = request.required("gender");
+		if (!(gender.equals("M") || gender.equals("F"))) {
+			throw new IllegalArgumentException("gender must be M or F");
+		}
+		int age = request.integer("age");
+		if (age < 0 || age > 130) {
+			throw new IllegalArgumentException("age must be in range: 0 - 130");
+		}
+		String address = request.optional("address");
+		int patientID = _esql.patientIds().nextId();
+		Map<String, Object> patient = firstRow(_esql.executeQueryForResult(Queries.INSERT_PATIENT_RETURNING, patientID, name,
+			gender, age, address));
+		_esql.patientIndex().add(patientID, name, address);
+		return new Response(201, patient);
+	}
+
+	private Response searchPatients(Request request) throws SQLException {
+		String text = request.required("q");
+		int limit = request.optional("limit") == null ? PatientIndex.DEFAULT_LIMIT : request.integer("limit");
+		if (limit < 1 || limit > 100) {
+			throw new IllegalArgumentException("limit must be in range: 1 - 100");
+		}
+		List<Map<String, Object>> patients = new ArrayList<Map<String, Object>>();
+		for (PatientIndex.Match match : _esql.patientIndex().search(text, limit)) {
+			Map<String, Object> row = new LinkedHashMap<String, Object>();
+			row.put("patient_id", match.getPatientID());
+			row.put("name", match.getName());
+			row.put("address", match.getAddress());
+			row.put("similarity", match.getSimilarity());
+			patients.add(row);
+		}
+		return new Response(200, patients);
+	}
+
+	private Response addAppointment(Request request) throws SQLException {
+		int doctorID = request.integer("doctor");
+		LocalDate date = request.date("date");
+		TimeSlot timeSlot = TimeSlot.parse(request.required("time_slot"));
+		if (timeSlot == null) {
+			throw new IllegalArgumentException("time_slot must be H:MM-H:MM");
+		}
+		String status = request.optional("status") == null ? "AV" : request.optional("status");
+		if (!STATUSES.contains(status)) {
+			throw new IllegalArgumentException("status must be PA, AC, AV or WL");
+		}
+		QueryResult doctor = _esql.executeQueryForResult(Queries.DOCTOR_BY_ID, doctorID);
+		if (doctor.isEmpty()) {
+			return error(404, "No doctor " + doctorID);
+		}
+		int appointmentID = _esql.appointmentIds().nextId();
+		QueryResult appointment = HospitalService.addAppointment(_esql, appointmentID, doctor.getInt(0, "did"),
+			doctorID, date, timeSlot, status);
+		return new Response(201, firstRow(appointment));
+	}
+
+	private Response book(Request request) throws SQLException {
+		int patientID = request.integer("patient");
+		int doctorID = request.integer("doctor");
+		int appointmentID = request.integer("appointment");
+		int hospitalID = request.integer("hospital");
+		if (!HospitalService.bookAppointment(_esql, patientID, doctorID, appointmentID, hospitalID)) {
+			return error(409, "Appointment " + appointmentID + " is not available with doctor " + doctorID);
+		}
+		return new Response(200, firstRow(_esql.executeQueryForResult(Queries.APPOINTMENT_BY_ID, appointmentID)));
+	}
+
+	private Response cancel(Request request) throws SQLException {
+		int appointmentID = request.pathInt(1);
+		int patientID = request.integer("patient");
+		if (!HospitalService.cancelAppointment(_esql, patientID, appointmentID)) {
+			return error(409, "Appointment " + appointmentID + " is not an upcoming active appointment of patient " + patientID);
+		}
+		return new Response(200, firstRow(_esql.executeQueryForResult(Queries.APPOINTMENT_BY_ID, appointmentID)));
+	}
+
+	private Response reschedule(Request request) throws SQLException {
+		int appointmentID = request.pathInt(1);
+		int patientID = request.integer("patient");
+		int doctorID = request.integer("doctor");
+		int newAppointmentID = request.integer("appointment");
+		int hospitalID = request.integer("hospital");
+		if (!HospitalService.rescheduleAppointment(_esql, patientID, appointmentID, doctorID, newAppointmentID, hospitalID)) {
+			return error(409, "Appointment " + newAppointmentID + " is not available with doctor " + doctorID +
+				" or " + appointmentID + " is not an upcoming active appointment of patient " + patientID);
+		}
+		return new Response(200, firstRow(_esql.executeQueryForResult(Queries.APPOINTMENT_BY_ID, newAppointmentID)));
+	}
+
+	private Response appointmentsOfDoctor(Request request) throws SQLException {
+		int doctorID = request.pathInt(1);
+		LocalDate from = request.date("from");
+		LocalDate to = request.date("to");
+		return new Response(200, rows(_esql.executeQueryForResult(Queries.ACTIVE_AND_AVAILABLE_OF_DOCTOR_IN_RANGE,
+			doctorID, from, to)));
+	}
+
+	private Response overlappingOfDoctor(Request request) throws SQLException {
+		int doctorID = request.pathInt(1);
+		LocalDateTime from = request.dateTime("from");
+		LocalDateTime to = request.dateTime("to");
+		if (!from.isBefore(to)) {
+			throw new IllegalArgumentException("from must be before to");
+		}
+		return new Response(200, rows(HospitalService.appointmentsOverlapping(_esql, doctorID, from, to)));
+	}
+
+	/*
+	 * Without a date, the dates that have available appointments.
+	 */
+	private Response availableOfDepartment(Request request) throws SQLException {
+		int departmentID = request.pathInt(1);
+		if (request.optional("date") == null) {
+			return new Response(200, _esql.availability().datesOfDepartment(departmentID));
+		}
+		LocalDate date = request.date("date");
+		List<Map<String, Object>> appointments = new ArrayList<Map<String, Object>>();
+		for (int[] appointment : _esql.availability().appointmentsOfDepartment(departmentID, date)) {
+			Map<String, Object> row = new LinkedHashMap<String, Object>();
+			row.put("appnt_id", appointment[0]);
+			row.put("adate", date);
+			row.put("doctor_id", appointment[1]);
+			appointments.add(row);
+		}
+		return new Response(200, appointments);
+	}
+
+	private Response statusTypes(Request request) throws SQLException {
+		return new Response(200, rows(_esql.executeQueryForResult(Queries.STATUS_TYPES_PER_DOCTOR)));
+	}
+
+	private Response patientsWithStatus(Request request) throws SQLException {
+		String status = request.required("status");
+		if (!STATUSES.contains(status)) {
+			throw new IllegalArgumentException("status must be PA, AC, AV or WL");
+		}
+		return new Response(200, rows(_esql.executeQueryForResult(Queries.PATIENTS_PER_DOCTOR_WITH_STATUS, status)));
+	}
+
+	private Response metrics(Request request) {
+		Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+		metrics.put("requests", _requests.get());
+		metrics.put("errors", _errors.get());
+		metrics.put("in_flight", _inFlight.get());
+		metrics.put("virtual_threads", _virtualThreads);
+		Map<String, Object> endpoints = new LinkedHashMap<String, Object>();
+		for (Route route : _routes) {
+			LatencyHistogram latency = route.latency;
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			stats.put("count", latency.getCount());
+			stats.put("mean_ms", latency.getMeanNanos() / 1e6);
+			stats.put("p50_ms", latency.getPercentileNanos(50) / 1e6);
+			stats.put("p90_ms", latency.getPercentileNanos(90) / 1e6);
+			stats.put("p99_ms", latency.getPercentileNanos(99) / 1e6);
+			stats.put("max_ms", latency.getMaxNanos() / 1e6);
+			endpoints.put(route.name, stats);
+		}
+		metrics.put("endpoints", endpoints);
+		List<Map<String, Object>> statements = new ArrayList<Map<String, Object>>();
+		List<QueryStats.Template> templates = _esql.queryStats().snapshot();
+		for (QueryStats.Template template : templates.subList(0, Math.min(METRICS_STATEMENTS, templates.size()))) {
+			LatencyHistogram latency = template.getLatency();
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			stats.put("sql", template.getSql());
+			stats.put("count", latency.getCount());
+			stats.put("errors", template.getErrors());
+			stats.put("rows", template.getRows());
+			stats.put("total_ms", template.getTotalNanos() / 1e6);
+			stats.put("p50_ms", latency.getPercentileNanos(50) / 1e6);
+			stats.put("p99_ms", latency.getPercentileNanos(99) / 1e6);
+			statements.add(stats);
+		}
+		metrics.put("statements", statements);
+		metrics.put("pool", _esql.getConnectionPool().toString());
+		metrics.put("reference_cache", _esql.referenceCache().toString());
+		metrics.put("availability_index", _esql.availability().size());
+		metrics.put("patient_index", _esql.patientIndex().toString());
+		metrics.put("change_feed", _esql.changeListener() == null ? null : _esql.changeListener().toString());
+		metrics.put("waitlist", _esql.waitlist().isRunning() ? _esql.waitlist().toString() : null);
+		return new Response(200, metrics);
+	}
+
+	private static Map<String, Object> firstRow(QueryResult result) {
+		return rows(result).get(0);
+	}
+
+	private static List<Map<String, Object>> rows(QueryResult result) {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(result.size());
+		for (int r = 0; r < result.size(); r++) {
+			Map<String, Object> row = new LinkedHashMap<String, Object>();
+			for (int c = 0; c < result.getColumnCount(); c++) {
+				Object value = result.getObject(r, c);
+				row.put(result.getColumnName(c), value instanceof String ? ((String) value).trim() : value);
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	private interface Handler {
+		Response handle(Request request) throws Exception;
+	}
+
+	private static final class Route {
+		final String name;
+		final String method;
+		final Pattern pattern;
+		final Handler handler;
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		Route(String name, String method, Pattern pattern, Handler handler) {
+			this.name = name;
+			this.method = method;
+			this.pattern = pattern;
+			this.handler = handler;
+		}
+	}
+
+	private static final class Response {
+		final int status;
+		final Object body;
+
+		Response(int status, Object body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	/*
+	 * Parameters come from the JSON body of a POST and from the query
+	 * string of a GET.
+	 */
+	private static final class Request {
+		private final Matcher _path;
+		private final Map<String, Object> _params;
+
+		Request(HttpExchange exchange, Matcher path) throws IOException {
+			this._path = path;
+			if ("POST".equals(exchange.getRequestMethod())) {
+				String body = readBody(exchange.getRequestBody());
+				_params = body.trim().isEmpty() ? new HashMap<String, Object>() : Json.parseObject(body);
+			}else {
+				_params = parseQuery(exchange.getRequestURI().getRawQuery());
+			}
+		}
+
+		int pathInt(int group) {
+			return Integer.parseInt(_path.group(group));
+		}
+
+		String optional(String name) {
+			Object value = _params.get(name);
+			return value == null ? null : value.toString();
+		}
+
+		String required(String name) {
+			String value = optional(name);
+			if (value == null || value.isEmpty()) {
+				throw new IllegalArgumentException(name + " is missing");
+			}
+			return value;
+		}
+
+		int integer(String name) {
+			String value = required(name);
+			try {
+				return Integer.parseInt(value.trim());
+			}catch (NumberFormatException e) {
+				throw new IllegalArgumentException(name + " must be an integer: " + value);
+			}
+		}
+
+		LocalDate date(String name) {
+			LocalDate date = DBproject.parseDate(required(name));
+			if (date == null) {
+				throw new IllegalArgumentException("invalid date " + optional(name));
+			}
+			return date;
+		}
+
+		LocalDateTime dateTime(String name) {
+			try {
+				return LocalDateTime.parse(required(name).trim());
+			}catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("invalid date-time " + optional(name));
+			}
+		}
+
+		private static String readBody(InputStream in) throws IOException {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				body.write(buffer, 0, read);
+				if (body.size() > MAX_BODY_BYTES) {
+					throw new IllegalArgumentException("Request body larger than " + MAX_BODY_BYTES + " bytes");
+				}
+			}
+			return new String(body.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+		private static Map<String, Object> parseQuery(String query) {
+			Map<String, Object> params = new HashMap<String, Object>();
+			if (query == null) {
+				return params;
+			}
+			for (String pair : query.split("&")) {
+				int eq = pair.indexOf('=');
+				String key = eq < 0 ? pair : pair.substring(0, eq);
+				String value = eq < 0 ? "" : pair.substring(eq + 1);
+				params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+			}
+			return params;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class hands out new primary keys from a database sequence.  The
+ * sequences are created with INCREMENT BY BLOCK_SIZE (see sql/create.sql), so
+ * one nextval reserves a whole block of IDs for this client and the
+ * following inserts need no round trip at all.  IDs of a block that is not
+ * used up before the program exits are simply skipped.
+ *
+ */
+
+public class IdAllocator {
+	//must match the INCREMENT BY of the sequences in create.sql
+	public static final int BLOCK_SIZE = 100;
+
+	private final DBproject _esql;
+	private final String _sequence;
+	//next free ID of the reserved block and the first ID past it
+	private int _next = 0;
+	private int _limit = 0;
+
+	public IdAllocator(DBproject esql, String sequence) {
+		this._esql = esql;
+		this._sequence = sequence;
+	}
+
+	/**
+	 * Method to allocate the next unused ID, reserving a new block from the
+	 * sequence when the current one is used up.
+	 *
+	 * @return a new ID
+	 * @throws java.sql.SQLException when a new block could not be reserved
+	 */
+	public synchronized int nextId() throws SQLException {
+		if (_next >= _limit) {
+			reserve(_esql.getNextSeqVal(_sequence));
+		}
+		return _next++;
+	}
+
+	/**
+	 * Method to allocate the next unused ID from within a transaction.  A
+	 * new block is reserved on the connection of the transaction instead of
+	 * one borrowed from the pool, so a caller already holding a connection
+	 * never waits for a second one.  The block stays reserved if the
+	 * transaction rolls back, sequences are not transactional.
+	 *
+	 * @param conn the connection of the running transaction
+	 * @return a new ID
+	 * @throws java.sql.SQLException when a new block could not be reserved
+	 */
+	public synchronized int nextId(ConnectionPool.PooledConnection conn) throws SQLException {
+		if (_next >= _limit) {
+			ResultSet rs = conn.prepare(Queries.NEXT_SEQUENCE_VALUE, _sequence).executeQuery();
+			try {
+				rs.next();
+				reserve(rs.getInt(1));
+			}finally {
+				rs.close();
+			}
+		}
+		return _next++;
+	}
+
+	private void reserve(int start) {
+		_next = start;
+		_limit = start + BLOCK_SIZE;
+	}
+
+	public String getSequence() {
+		return _sequence;
+	}
+}
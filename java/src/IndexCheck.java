@@ -0,0 +1,218 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs EXPLAIN on every menu query against a live database and
+ * reports which ones read a large table sequentially.  A query fails the
+ * check when its plan contains a "Seq Scan" on a table holding at least
+ * minRows rows (small tables are cheaper to scan than to index).  Reports
+ * that aggregate whole tables by design are listed but never fail.  When
+ * Appointment is partitioned (migration 003), the date filters of options
+ * 5 and 6 must also be pruned to the partition of a single month.  The
+ * overlap check of option 3 must be an index lookup on doctor and slot
+ * together (migration 004).
+ *
+ * Run it after loading a scaled dataset and applying sql/migrations.
+ *
+ * Usage: java -cp lib/*:bin/ IndexCheck <dbname> <port> <user> [minRows]
+ *
+ */
+
+public class IndexCheck {
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+	private static final Pattern PARTITION_SCAN = Pattern.compile(" on (appointment_(?:\\d{4}_\\d{2}|default))\\b");
+	private static final Pattern INDEX_SCAN = Pattern.compile("(?:Index Scan|Index Only Scan|Bitmap Index Scan)(?: Backward)? (?:using|on) (\\w+)");
+
+	private final DBproject _esql;
+	private final long _minRows;
+	private final Map<String, Long> _tableRows = new HashMap<String, Long>();
+	private int _failures = 0;
+
+	IndexCheck(DBproject esql, long minRows) {
+		this._esql = esql;
+		this._minRows = minRows;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + IndexCheck.class.getName() +
+				" <dbname> <port> <user> [minRows]");
+			return;
+		}
+		long minRows = args.length > 3 ? Long.parseLong(args[3]) : 10000L;
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		int failures;
+		try {
+			failures = new IndexCheck(esql, minRows).run();
+		}finally {
+			esql.cleanup();
+		}
+		System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + " queries)");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	int run() throws SQLException {
+		for (String table : new String[] {"appointment", "has_appointment", "doctor", "department", "hospital", "patient", "searches"}) {
+			_esql.executeUpdate("ANALYZE " + table);
+		}
+		QueryResult rows = _esql.executeQueryForResult(
+			"SELECT relname, reltuples::bigint FROM pg_class WHERE relkind IN ('r', 'p') AND relnamespace = 'public'::regnamespace");
+		for (int i = 0; i < rows.size(); i++) {
+			_tableRows.put(rows.getString(i, 0).toLowerCase(Locale.ROOT), rows.getLong(i, 1));
+		}
+
+		//representative parameters taken from the loaded data
+		QueryResult sample = _esql.executeQueryForResult(
+			"SELECT H.doctor_id, D.did, Dep.hid FROM has_appointment H, Doctor D, Department Dep " +
+			"WHERE H.doctor_id = D.doctor_ID AND D.did = Dep.dept_ID LIMIT 1");
+		if (sample.isEmpty()) {
+			throw new SQLException("No appointments loaded, nothing to check");
+		}
+		int doctorID = sample.getInt(0, 0);
+		int departmentID = sample.getInt(0, 1);
+		int hospitalID = sample.getInt(0, 2);
+		int appointmentID = _esql.executeQueryForResult("SELECT appt_id FROM has_appointment LIMIT 1").getInt(0, 0);
+		int patientID = _esql.executeQueryForResult("SELECT patient_ID FROM Patient LIMIT 1").getInt(0, 0);
+		QueryResult dates = _esql.executeQueryForResult("SELECT MIN(adate), MAX(adate) FROM Appointment");
+		String firstDate = dates.getString(0, 0);
+		String lastDate = dates.getString(0, 1);
+
+		check("1,3,4,6 departments of hospital (cached)", Queries.DEPARTMENTS_OF_HOSPITAL, hospitalID);
+		check("5 doctor by id", Queries.DOCTOR_BY_ID, doctorID);
+		check("3,4 doctors of department", Queries.DOCTORS_OF_DEPARTMENT, hospitalID, departmentID);
+		check("3,4 doctors of hospital (prefetch)", Queries.DOCTORS_OF_HOSPITAL, hospitalID);
+		check("3 appointments of doctor", Queries.APPOINTMENTS_OF_DOCTOR, doctorID);
+		check("3 overlapping slots of doctor", Queries.APPOINTMENTS_OF_DOCTOR_OVERLAPPING, doctorID, firstDate, firstDate,
+			firstDate + " 08:00", firstDate + " 10:00");
+		indexCondition("3 overlapping slots of doctor", Queries.APPOINTMENTS_OF_DOCTOR_OVERLAPPING,
+			new String[] {"doctor_id =", "&&"}, doctorID, firstDate, firstDate, firstDate + " 08:00", firstDate + " 10:00");
+		check("4 patient by id", Queries.PATIENT_BY_ID, patientID);
+		check("4 available appointments of doctor", Queries.AVAILABLE_APPOINTMENTS_OF_DOCTOR, doctorID);
+		check("4 doctor and status of appointment", Queries.DOCTOR_AND_STATUS_OF_APPOINTMENT, appointmentID);
+		check("4 appointment by id", Queries.APPOINTMENT_BY_ID, appointmentID);
+		check("4 book appointment", Queries.BOOK_APPOINTMENT, appointmentID, doctorID, hospitalID, patientID, patientID);
+		check("5 doctor appointments in range", Queries.ACTIVE_AND_AVAILABLE_OF_DOCTOR_IN_RANGE, doctorID, firstDate, lastDate);
+		check("6 available dates of department", Queries.AVAILABLE_DATES_OF_DEPARTMENT, departmentID);
+		check("6 available on date", Queries.AVAILABLE_APPOINTMENTS_OF_DEPARTMENT_ON_DATE, firstDate, departmentID);
+		check("17,18 upcoming appointments of patient", Queries.UPCOMING_APPOINTMENTS_OF_PATIENT, patientID);
+		check("17,18 cancel appointment", Queries.CANCEL_APPOINTMENT, appointmentID, patientID, patientID, patientID);
+
+		//partition pruning of the date filters, one day falls in one month
+		if (new PartitionMaintenance(_esql, System.out).isPartitioned()) {
+			pruned("5 doctor appointments in range", Queries.ACTIVE_AND_AVAILABLE_OF_DOCTOR_IN_RANGE, doctorID, firstDate, firstDate);
+			pruned("6 available on date", Queries.AVAILABLE_APPOINTMENTS_OF_DEPARTMENT_ON_DATE, firstDate, departmentID);
+		}
+
+		//whole-table listings and reports, a full scan is expected
+		inform("1,3,4,6 hospitals (cached)", Queries.HOSPITALS);
+		inform("1 specialties (cached)", Queries.LIST_SPECIALTIES);
+		inform("7 status types per doctor (counters)", Queries.STATUS_TYPES_PER_DOCTOR);
+		inform("8 patients per doctor with status (counters)", Queries.PATIENTS_PER_DOCTOR_WITH_STATUS, "AC");
+		//most rows qualify on a database never closed out
+		inform("19 close-out chunk", Queries.CLOSE_OUT_CHUNK, lastDate, DayCloseOut.DEFAULT_CHUNK_SIZE);
+		return _failures;
+	}
+
+	private void check(String label, String query, Object... params) throws SQLException {
+		List<String> plan = explain(query, params);
+		List<String> largeScans = new ArrayList<String>();
+		List<String> indexes = new ArrayList<String>();
+		for (String line : plan) {
+			Matcher seq = SEQ_SCAN.matcher(line);
+			if (seq.find()) {
+				String table = seq.group(1).toLowerCase(Locale.ROOT);
+				Long rows = _tableRows.get(table);
+				if (rows != null && rows >= _minRows) {
+					largeScans.add(table + " (" + rows + " rows)");
+				}
+			}
+			Matcher index = INDEX_SCAN.matcher(line);
+			if (index.find()) {
+				indexes.add(index.group(1));
+			}
+		}
+		if (largeScans.isEmpty()) {
+			System.out.println("PASS  [" + label + "] indexes: " + (indexes.isEmpty() ? "none (small tables only)" : indexes));
+		}else {
+			_failures++;
+			System.out.println("FAIL  [" + label + "] sequential scan of " + largeScans);
+			for (String line : plan) {
+				System.out.println("        " + line);
+			}
+		}
+	}
+
+	private void pruned(String label, String query, Object... params) throws SQLException {
+		List<String> plan = explain(query, params);
+		Set<String> partitions = new TreeSet<String>();
+		for (String line : plan) {
+			Matcher partition = PARTITION_SCAN.matcher(line);
+			if (partition.find()) {
+				partitions.add(partition.group(1));
+			}
+		}
+		if (partitions.size() <= 1) {
+			System.out.println("PASS  [" + label + " pruning] partitions: " + partitions);
+		}else {
+			_failures++;
+			System.out.println("FAIL  [" + label + " pruning] reads " + partitions.size() + " partitions " + partitions);
+		}
+	}
+
+	/*
+	 * Fails unless one index condition of the plan holds every fragment,
+	 * i.e. the filters are answered by a single index.  Small tables may be
+	 * scanned instead.
+	 */
+	private void indexCondition(String label, String query, String[] fragments, Object... params) throws SQLException {
+		List<String> plan = explain(query, params);
+		for (String line : plan) {
+			if (!line.contains("Index Cond:")) {
+				continue;
+			}
+			boolean all = true;
+			for (String fragment : fragments) {
+				all &= line.contains(fragment);
+			}
+			if (all) {
+				System.out.println("PASS  [" + label + " index condition] " + line.trim());
+				return;
+			}
+		}
+		Long rows = _tableRows.get("appointment");
+		if (rows != null && rows < _minRows) {
+			System.out.println("PASS  [" + label + " index condition] none (small tables only)");
+			return;
+		}
+		_failures++;
+		System.out.println("FAIL  [" + label + " index condition] no single index on " + String.join(" and ", fragments));
+		for (String line : plan) {
+			System.out.println("        " + line);
+		}
+	}
+
+	private void inform(String label, String query, Object... params) throws SQLException {
+		List<String> plan = explain(query, params);
+		System.out.println("INFO  [" + label + "] " + (plan.isEmpty() ? "" : plan.get(0).trim()));
+	}
+
+	private List<String> explain(String query, Object... params) throws SQLException {
+		QueryResult result = _esql.executeQueryForResult("EXPLAIN " + query, params);
+		List<String> plan = new ArrayList<String>();
+		for (int i = 0; i < result.size(); i++) {
+			plan.add(result.getString(i, 0));
+		}
+		return plan;
+	}
+}
@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+/**
+ * This class is a set of int values stored in one open-addressing int
+ * array, without boxing.  Integer.MIN_VALUE marks an empty slot and cannot
+ * be stored.  Not thread safe.
+ *
+ */
+
+public class IntHashSet {
+	static final int EMPTY = Integer.MIN_VALUE;
+
+	private int[] _keys;
+	private int _mask;
+	private int _size = 0;
+
+	public IntHashSet() {
+		this(4);
+	}
+
+	/**
+	 * @param expected the number of values the set should hold without growing
+	 */
+	public IntHashSet(int expected) {
+		allocate(capacityFor(expected));
+	}
+
+	/**
+	 * @param key the value to add
+	 * @return true when the value was not in the set yet
+	 */
+	public boolean add(int key) {
+		checkKey(key);
+		int i = slot(key, _mask);
+		while (_keys[i] != EMPTY) {
+			if (_keys[i] == key) {
+				return false;
+			}
+			i = (i + 1) & _mask;
+		}
+		_keys[i] = key;
+		if (++_size * 2 > _keys.length) {
+			rehash(_keys.length * 2);
+		}
+		return true;
+	}
+
+	public boolean contains(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @param key the value to remove
+	 * @return true when the value was in the set
+	 */
+	public boolean remove(int key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return false;
+		}
+		//shift the following entries of the probe sequence back, no tombstones needed
+		int j = i;
+		while (true) {
+			j = (j + 1) & _mask;
+			if (_keys[j] == EMPTY) {
+				break;
+			}
+			int home = slot(_keys[j], _mask);
+			if (((j - home) & _mask) >= ((j - i) & _mask)) {
+				_keys[i] = _keys[j];
+				i = j;
+			}
+		}
+		_keys[i] = EMPTY;
+		_size--;
+		return true;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public boolean isEmpty() {
+		return _size == 0;
+	}
+
+	/**
+	 * @return the values of the set in ascending order
+	 */
+	public int[] toSortedArray() {
+		int[] values = new int[_size];
+		int n = 0;
+		for (int key : _keys) {
+			if (key != EMPTY) {
+				values[n++] = key;
+			}
+		}
+		Arrays.sort(values);
+		return values;
+	}
+
+	private int indexOf(int key) {
+		if (key == EMPTY) {
+			return -1;
+		}
+		int i = slot(key, _mask);
+		while (_keys[i] != EMPTY) {
+			if (_keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & _mask;
+		}
+		return -1;
+	}
+
+	private void rehash(int capacity) {
+		int[] old = _keys;
+		allocate(capacity);
+		for (int key : old) {
+			if (key != EMPTY) {
+				int i = slot(key, _mask);
+				while (_keys[i] != EMPTY) {
+					i = (i + 1) & _mask;
+				}
+				_keys[i] = key;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		_keys = new int[capacity];
+		Arrays.fill(_keys, EMPTY);
+		_mask = capacity - 1;
+	}
+
+	static int capacityFor(int expected) {
+		//at most half full
+		return Math.max(8, Integer.highestOneBit(Math.max(1, expected) * 2 - 1) << 1);
+	}
+
+	static int slot(int key, int mask) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	static void checkKey(int key) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("Integer.MIN_VALUE cannot be stored");
+		}
+	}
+}
@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * This class maps int keys to int values in two parallel open-addressing
+ * arrays, without boxing.  Integer.MIN_VALUE marks an empty slot and cannot
+ * be used as a key.  Not thread safe.
+ *
+ */
+
+public class IntIntHashMap {
+	private int[] _keys;
+	private int[] _values;
+	private int _mask;
+	private int _size = 0;
+
+	public IntIntHashMap() {
+		this(4);
+	}
+
+	/**
+	 * @param expected the number of entries the map should hold without growing
+	 */
+	public IntIntHashMap(int expected) {
+		allocate(IntHashSet.capacityFor(expected));
+	}
+
+	/**
+	 * @param key the key
+	 * @param value the value to store under the key
+	 */
+	public void put(int key, int value) {
+		IntHashSet.checkKey(key);
+		int i = IntHashSet.slot(key, _mask);
+		while (_keys[i] != IntHashSet.EMPTY) {
+			if (_keys[i] == key) {
+				_values[i] = value;
+				return;
+			}
+			i = (i + 1) & _mask;
+		}
+		_keys[i] = key;
+		_values[i] = value;
+		if (++_size * 2 > _keys.length) {
+			rehash(_keys.length * 2);
+		}
+	}
+
+	/**
+	 * @param key the key
+	 * @param missing the value returned when the key is not in the map
+	 * @return the value stored under the key
+	 */
+	public int get(int key, int missing) {
+		int i = indexOf(key);
+		return i < 0 ? missing : _values[i];
+	}
+
+	public boolean containsKey(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @param key the key
+	 * @param missing the value returned when the key is not in the map
+	 * @return the value that was stored under the key
+	 */
+	public int remove(int key, int missing) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return missing;
+		}
+		int removed = _values[i];
+		//shift the following entries of the probe sequence back, no tombstones needed
+		int j = i;
+		while (true) {
+			j = (j + 1) & _mask;
+			if (_keys[j] == IntHashSet.EMPTY) {
+				break;
+			}
+			int home = IntHashSet.slot(_keys[j], _mask);
+			if (((j - home) & _mask) >= ((j - i) & _mask)) {
+				_keys[i] = _keys[j];
+				_values[i] = _values[j];
+				i = j;
+			}
+		}
+		_keys[i] = IntHashSet.EMPTY;
+		_size--;
+		return removed;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	private int indexOf(int key) {
+		if (key == IntHashSet.EMPTY) {
+			return -1;
+		}
+		int i = IntHashSet.slot(key, _mask);
+		while (_keys[i] != IntHashSet.EMPTY) {
+			if (_keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & _mask;
+		}
+		return -1;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = _keys;
+		int[] oldValues = _values;
+		allocate(capacity);
+		for (int n = 0; n < oldKeys.length; n++) {
+			if (oldKeys[n] != IntHashSet.EMPTY) {
+				int i = IntHashSet.slot(oldKeys[n], _mask);
+				while (_keys[i] != IntHashSet.EMPTY) {
+					i = (i + 1) & _mask;
+				}
+				_keys[i] = oldKeys[n];
+				_values[i] = oldValues[n];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		_keys = new int[capacity];
+		_values = new int[capacity];
+		Arrays.fill(_keys, IntHashSet.EMPTY);
+		_mask = capacity - 1;
+	}
+}
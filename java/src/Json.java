@@ -0,0 +1,258 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class reads and writes the small JSON documents exchanged with the
+ * database notifications and the scripting interfaces.  Objects are read
+ * into LinkedHashMaps, arrays into Lists, numbers into Longs (integral) or
+ * Doubles.
+ *
+ */
+
+public final class Json {
+	private final String _text;
+	private int _pos = 0;
+
+	private Json(String text) {
+		this._text = text;
+	}
+
+	/**
+	 * Method to parse one JSON value.
+	 *
+	 * @param text the JSON text
+	 * @return a Map, List, String, Long, Double, Boolean or null
+	 * @throws IllegalArgumentException when the text is not valid JSON
+	 */
+	public static Object parse(String text) {
+		Json parser = new Json(text);
+		Object value = parser.value();
+		parser.skipSpace();
+		if (parser._pos != text.length()) {
+			throw parser.error("Unexpected trailing characters");
+		}
+		return value;
+	}
+
+	/**
+	 * Method to parse a JSON object.
+	 *
+	 * @param text the JSON text
+	 * @return the members of the object, in document order
+	 * @throws IllegalArgumentException when the text is not a JSON object
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> parseObject(String text) {
+		Object value = parse(text);
+		if (!(value instanceof Map)) {
+			throw new IllegalArgumentException("Not a JSON object: " + text);
+		}
+		return (Map<String, Object>) value;
+	}
+
+	/**
+	 * Method to write a value as JSON.  Maps, Iterables, arrays of Objects,
+	 * Numbers, Booleans and null are written as such, anything else as a string.
+	 *
+	 * @param value the value to write
+	 * @return the JSON text
+	 */
+	public static String write(Object value) {
+		StringBuilder out = new StringBuilder();
+		write(out, value);
+		return out.toString();
+	}
+
+	public static void write(StringBuilder out, Object value) {
+		if (value == null) {
+			out.append("null");
+		}else if (value instanceof Number || value instanceof Boolean) {
+			out.append(value);
+		}else if (value instanceof Map) {
+			out.append('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				out.append(first ? "" : ",");
+				quote(out, String.valueOf(entry.getKey()));
+				out.append(':');
+				write(out, entry.getValue());
+				first = false;
+			}
+			out.append('}');
+		}else if (value instanceof Iterable || value instanceof Object[]) {
+			out.append('[');
+			boolean first = true;
+			for (Object item : value instanceof Object[] ? Arrays.asList((Object[]) value) : (Iterable<?>) value) {
+				out.append(first ? "" : ",");
+				write(out, item);
+				first = false;
+			}
+			out.append(']');
+		}else {
+			quote(out, value.toString());
+		}
+	}
+
+	private static void quote(StringBuilder out, String text) {
+		out.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						out.append(String.format("\\u%04x", (int) c));
+					}else {
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+
+	private Object value() {
+		skipSpace();
+		if (_pos >= _text.length()) {
+			throw error("Unexpected end of input");
+		}
+		char c = _text.charAt(_pos);
+		switch (c) {
+			case '{': return object();
+			case '[': return array();
+			case '"': return string();
+			case 't': return literal("true", Boolean.TRUE);
+			case 'f': return literal("false", Boolean.FALSE);
+			case 'n': return literal("null", null);
+			default: return number();
+		}
+	}
+
+	private Map<String, Object> object() {
+		Map<String, Object> members = new LinkedHashMap<String, Object>();
+		_pos++;
+		skipSpace();
+		if (peek('}')) {
+			return members;
+		}
+		do {
+			skipSpace();
+			String key = string();
+			skipSpace();
+			expect(':');
+			members.put(key, value());
+			skipSpace();
+		}while (peek(','));
+		expect('}');
+		return members;
+	}
+
+	private List<Object> array() {
+		List<Object> items = new ArrayList<Object>();
+		_pos++;
+		skipSpace();
+		if (peek(']')) {
+			return items;
+		}
+		do {
+			items.add(value());
+			skipSpace();
+		}while (peek(','));
+		expect(']');
+		return items;
+	}
+
+	private String string() {
+		expect('"');
+		StringBuilder out = new StringBuilder();
+		while (true) {
+			if (_pos >= _text.length()) {
+				throw error("Unterminated string");
+			}
+			char c = _text.charAt(_pos++);
+			if (c == '"') {
+				return out.toString();
+			}
+			if (c != '\\') {
+				out.append(c);
+				continue;
+			}
+			if (_pos >= _text.length()) {
+				throw error("Unterminated string");
+			}
+			char escaped = _text.charAt(_pos++);
+			switch (escaped) {
+				case 'b': out.append('\b'); break;
+				case 'f': out.append('\f'); break;
+				case 'n': out.append('\n'); break;
+				case 'r': out.append('\r'); break;
+				case 't': out.append('\t'); break;
+				case 'u':
+					if (_pos + 4 > _text.length()) {
+						throw error("Invalid unicode escape");
+					}
+					out.append((char) Integer.parseInt(_text.substring(_pos, _pos + 4), 16));
+					_pos += 4;
+					break;
+				default: out.append(escaped);
+			}
+		}
+	}
+
+	private Object number() {
+		int start = _pos;
+		while (_pos < _text.length() && "+-0123456789.eE".indexOf(_text.charAt(_pos)) >= 0) {
+			_pos++;
+		}
+		String number = _text.substring(start, _pos);
+		if (number.isEmpty()) {
+			throw error("Unexpected character");
+		}
+		try {
+			if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+				return Long.parseLong(number);
+			}
+			return Double.parseDouble(number);
+		}catch (NumberFormatException e) {
+			throw error("Invalid number " + number);
+		}
+	}
+
+	private Object literal(String word, Object value) {
+		if (!_text.startsWith(word, _pos)) {
+			throw error("Unexpected character");
+		}
+		_pos += word.length();
+		return value;
+	}
+
+	private boolean peek(char c) {
+		if (_pos < _text.length() && _text.charAt(_pos) == c) {
+			_pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(char c) {
+		if (!peek(c)) {
+			throw error("Expected '" + c + "'");
+		}
+	}
+
+	private void skipSpace() {
+		while (_pos < _text.length() && Character.isWhitespace(_text.charAt(_pos))) {
+			_pos++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + _pos + " of JSON: " + _text);
+	}
+}
@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies in nanoseconds into log-linear buckets, in
+ * the manner of an HDR histogram: every power of two is split into 64
+ * equal sub-buckets, so any percentile is reported within about 1.6% of
+ * the true value while the histogram stays a fixed array of counters.
+ * Recording is lock free and safe from several threads.
+ *
+ */
+
+public class LatencyHistogram {
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	//values below SUB_COUNT get one bucket each, then 64 per power of two up to 2^63
+	private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong _count = new AtomicLong();
+	private final AtomicLong _sum = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * @param nanos the latency to record, negative values count as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		_counts.incrementAndGet(index(value));
+		_count.incrementAndGet();
+		_sum.addAndGet(value);
+		long max;
+		while (value > (max = _max.get()) && !_max.compareAndSet(max, value)) {
+			// retry.
+		}
+	}
+
+	public long getCount() {
+		return _count.get();
+	}
+
+	public long getMaxNanos() {
+		return _max.get();
+	}
+
+	public long getTotalNanos() {
+		return _sum.get();
+	}
+
+	public double getMeanNanos() {
+		long count = _count.get();
+		return count == 0 ? 0.0 : (double) _sum.get() / count;
+	}
+
+	/**
+	 * @param percentile the percentile to look up, between 0 and 100
+	 * @return the upper bound of the bucket holding that percentile, in nanoseconds
+	 */
+	public long getPercentileNanos(double percentile) {
+		long count = _count.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += _counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), _max.get());
+			}
+		}
+		return _max.get();
+	}
+
+	/**
+	 * Method to add the recordings of another histogram to this one.
+	 *
+	 * @param other the histogram to add
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = other._counts.get(i);
+			if (n > 0) {
+				_counts.addAndGet(i, n);
+			}
+		}
+		_count.addAndGet(other._count.get());
+		_sum.addAndGet(other._sum.get());
+		long max;
+		long value = other._max.get();
+		while (value > (max = _max.get()) && !_max.compareAndSet(max, value)) {
+			// retry.
+		}
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			_counts.set(i, 0);
+		}
+		_count.set(0);
+		_sum.set(0);
+		_max.set(0);
+	}
+
+	/**
+	 * @return count, mean, p50, p90, p99 and max in milliseconds
+	 */
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f ms",
+			getCount(), getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6, getPercentileNanos(90) / 1e6,
+			getPercentileNanos(99) / 1e6, getMaxNanos() / 1e6);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return SUB_COUNT + shift * SUB_COUNT + (int) ((value >>> shift) - SUB_COUNT);
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_COUNT) / SUB_COUNT;
+		long sub = (index - SUB_COUNT) % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,178 @@
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class manages the monthly partitions of Appointment created by
+ * sql/migrations/003_partition_appointment.sql:
+ *
+ *   - months that only have rows in appointment_default get their own
+ *     partition (after a bulk load or appointments far in the future)
+ *   - the partitions of the coming months are created ahead of time
+ *   - partitions of months older than the retention are detached into the
+ *     archive schema, with their has_appointment rows; their IDs stay in
+ *     appointment_ids and are not handed out again
+ *
+ * Run it once a month, e.g. from cron, or from menu option 13.  It does
+ * nothing when Appointment is not partitioned.
+ *
+ * Usage: java -cp lib/*:bin/ PartitionMaintenance <dbname> <port> <user> [monthsAhead] [retainMonths]
+ *
+ */
+
+public class PartitionMaintenance {
+	static final int DEFAULT_MONTHS_AHEAD = 3;
+	//0 keeps every month
+	static final int DEFAULT_RETAIN_MONTHS = 0;
+	static final Pattern PARTITION_NAME = Pattern.compile("appointment_(\\d{4})_(\\d{2})");
+
+	private final DBproject _esql;
+	private final PrintStream _out;
+
+	public PartitionMaintenance(DBproject esql, PrintStream out) {
+		this._esql = esql;
+		this._out = out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + PartitionMaintenance.class.getName() +
+				" <dbname> <port> <user> [monthsAhead] [retainMonths]");
+			return;
+		}
+		int monthsAhead = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MONTHS_AHEAD;
+		int retainMonths = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_RETAIN_MONTHS;
+		System.setProperty("changes.listen", "false");
+
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			new PartitionMaintenance(esql, System.out).run(monthsAhead, retainMonths);
+		}finally {
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Method to run every maintenance step.
+	 *
+	 * @param monthsAhead the number of months after the current one to create
+	 * @param retainMonths the number of months before the current one to
+	 *        keep attached, 0 to keep every month
+	 * @throws java.sql.SQLException when a step failed
+	 */
+	public void run(int monthsAhead, int retainMonths) throws SQLException {
+		if (!isPartitioned()) {
+			_out.println("Appointment is not partitioned, apply sql/migrations/003_partition_appointment.sql first.");
+			return;
+		}
+		int split = splitDefault();
+		int created = createAhead(LocalDate.now(), monthsAhead);
+		int archived = retainMonths > 0 ? archiveBefore(LocalDate.now().withDayOfMonth(1).minusMonths(retainMonths)) : 0;
+		_out.println("Partitions: " + split + " split from the default partition, " + created + " created ahead, " +
+			archived + " archived, " + partitions().size() + " attached.");
+	}
+
+	public boolean isPartitioned() throws SQLException {
+		return _esql.executeQuery(Queries.APPOINTMENT_IS_PARTITIONED) > 0;
+	}
+
+	/**
+	 * Method to give every month found in the default partition its own
+	 * partition.
+	 *
+	 * @return the number of partitions created
+	 * @throws java.sql.SQLException when a partition could not be created
+	 */
+	public int splitDefault() throws SQLException {
+		QueryResult months = _esql.executeQueryForResult(Queries.MONTHS_IN_DEFAULT_PARTITION);
+		int created = 0;
+		for (int i = 0; i < months.size(); i++) {
+			if (createPartition(months.getDate(i, 0))) {
+				created++;
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Method to create the partitions of a month and the following ones.
+	 *
+	 * @param from a day of the first month
+	 * @param monthsAhead the number of following months
+	 * @return the number of partitions created, existing ones are skipped
+	 * @throws java.sql.SQLException when a partition could not be created
+	 */
+	public int createAhead(LocalDate from, int monthsAhead) throws SQLException {
+		int created = 0;
+		for (int i = 0; i <= monthsAhead; i++) {
+			if (createPartition(from.withDayOfMonth(1).plusMonths(i))) {
+				created++;
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Method to archive the partitions of the months before a date.  The
+	 * cached availability is dropped when anything was archived.
+	 *
+	 * @param cutoff the first day of the first month to keep
+	 * @return the number of partitions archived
+	 * @throws java.sql.SQLException when a partition could not be archived
+	 */
+	public int archiveBefore(LocalDate cutoff) throws SQLException {
+		int archived = 0;
+		for (String partition : partitions()) {
+			LocalDate month = monthOf(partition);
+			if (month != null && month.isBefore(cutoff)) {
+				int rows = _esql.executeQueryForResult(Queries.ARCHIVE_APPOINTMENT_PARTITION, partition).getInt(0, 0);
+				_out.println("Archived " + partition + " (" + rows + " has_appointment rows)");
+				archived++;
+			}
+		}
+		if (archived > 0) {
+			_esql.availability().invalidate();
+			_esql.executeQueryForResult(Queries.NOTIFY, ChangeListener.CHANNEL, "{\"table\": \"*\", \"op\": \"ARCHIVE\"}");
+		}
+		return archived;
+	}
+
+	/**
+	 * @return the names of the monthly partitions attached to Appointment, oldest first
+	 * @throws java.sql.SQLException when the catalog could not be read
+	 */
+	public List<String> partitions() throws SQLException {
+		QueryResult result = _esql.executeQueryForResult(Queries.APPOINTMENT_PARTITIONS);
+		List<String> partitions = new ArrayList<String>();
+		for (int i = 0; i < result.size(); i++) {
+			if (monthOf(result.getString(i, 0)) != null) {
+				partitions.add(result.getString(i, 0));
+			}
+		}
+		return partitions;
+	}
+
+	private boolean createPartition(LocalDate month) throws SQLException {
+		boolean created = _esql.executeQueryForResult(Queries.CREATE_APPOINTMENT_PARTITION, month.toString()).getInt(0, 0) == 1;
+		if (created) {
+			_out.println("Created appointment_" + String.format("%04d_%02d", month.getYear(), month.getMonthValue()));
+		}
+		return created;
+	}
+
+	/*
+	 * The month of a partition name, null for other tables.
+	 */
+	static LocalDate monthOf(String partition) {
+		Matcher matcher = PARTITION_NAME.matcher(partition);
+		if (!matcher.matches()) {
+			return null;
+		}
+		return LocalDate.of(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), 1);
+	}
+}
@@ -0,0 +1,458 @@
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class finds patients by name and address in memory, so the front
+ * desk can look a patient up without knowing the patient ID.  Both texts
+ * are folded to lower case letters and digits and cut into trigrams the
+ * way pg_trgm does (each word padded with two spaces before and one
+ * after); an inverted index maps every trigram to the patients having it.
+ *
+ * A search scores each patient by the trigrams of the query it shares,
+ * NAME_WEIGHT for one in the name, else ADDRESS_WEIGHT for one in the
+ * address, and returns the best ones.  Prefixes match through the padded
+ * first trigrams of a word, and a misspelled word still shares most of
+ * its trigrams.  Trigrams found in more than COMMON_SHARE of the patients
+ * (e.g. "st " of street) are left out when the query has others, they
+ * would only touch every patient.
+ *
+ * The index is read from the database on first use and kept current by
+ * AddPatient and, through ChangeListener, by the inserts of other
+ * sessions.  A patient added again replaces the old entry, which stays in
+ * the posting lists as a dead slot until the next reload.
+ *
+ */
+
+public class PatientIndex {
+	static final int DEFAULT_LIMIT = 10;
+	//a query trigram counts once per patient, a little more in the name
+	static final int NAME_WEIGHT = 3;
+	static final int ADDRESS_WEIGHT = 2;
+	//share of the query trigrams a patient needs to be returned
+	static final double MIN_SIMILARITY = 0.3;
+	static final double COMMON_SHARE = 0.2;
+	private static final int NONE = -1;
+	//space, a-z and 0-9
+	private static final int SYMBOLS = 37;
+
+	private final DBproject _esql;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	private boolean _loaded = false;
+
+	//slot -> patient ID (NONE once replaced), name, address
+	private int[] _ids;
+	private String[] _names;
+	private String[] _addresses;
+	private int _size;
+	private int _live;
+	//patient ID -> slot
+	private IntIntHashMap _slots;
+	//trigram -> slots, ascending
+	private Postings[] _nameTrigrams;
+	private Postings[] _addressTrigrams;
+	//score arrays reused by the searches
+	private final ConcurrentLinkedQueue<Scratch> _scratch = new ConcurrentLinkedQueue<Scratch>();
+
+	public PatientIndex(DBproject esql) {
+		this._esql = esql;
+		clear(16);
+	}
+
+	/**
+	 * Method to (re)build the index from the patients in the database.
+	 *
+	 * @return the number of patients indexed
+	 * @throws java.sql.SQLException when the patients could not be read
+	 */
+	public int reload() throws SQLException {
+		PatientIndex fresh = read();
+		_lock.writeLock().lock();
+		try {
+			_ids = fresh._ids;
+			_names = fresh._names;
+			_addresses = fresh._addresses;
+			_size = fresh._size;
+			_live = fresh._live;
+			_slots = fresh._slots;
+			_nameTrigrams = fresh._nameTrigrams;
+			_addressTrigrams = fresh._addressTrigrams;
+			_loaded = true;
+			return _live;
+		}finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to drop the index, it is read again on next use.
+	 */
+	public void invalidate() {
+		_lock.writeLock().lock();
+		try {
+			clear(16);
+			_loaded = false;
+		}finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to record a new patient, or the new name and address of one.
+	 * Nothing is recorded while the index is not loaded.
+	 *
+	 * @param patientID the patient
+	 * @param name the name
+	 * @param address the address, may be null
+	 */
+	public void add(int patientID, String name, String address) {
+		_lock.writeLock().lock();
+		try {
+			if (_loaded) {
+				index(patientID, name, address);
+			}
+		}finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	public boolean isLoaded() {
+		_lock.readLock().lock();
+		try {
+			return _loaded;
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	public int size() {
+		_lock.readLock().lock();
+		try {
+			return _live;
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to find the patients whose name or address resembles a text.
+	 *
+	 * @param text part of a name or address, possibly misspelled
+	 * @param limit the number of patients returned at most
+	 * @return the best matches, best first, ties by patient ID
+	 * @throws java.sql.SQLException when the index had to be loaded and could not be
+	 */
+	public List<Match> search(String text, int limit) throws SQLException {
+		int[] query = trigrams(text);
+		List<Match> matches = new ArrayList<Match>();
+		if (query.length == 0 || limit <= 0) {
+			return matches;
+		}
+		lockForRead();
+		Scratch scratch = _scratch.poll();
+		if (scratch == null) {
+			scratch = new Scratch();
+		}
+		try {
+			scratch.ensure(_size);
+			final int[] scores = scratch.scores;
+			query = selective(query);
+			for (int i = 0; i < query.length; i++) {
+				scratch.score(_nameTrigrams[query[i]], NAME_WEIGHT, i);
+				scratch.score(_addressTrigrams[query[i]], ADDRESS_WEIGHT, i);
+			}
+
+			//worst of the best on top, to be replaced first
+			Comparator<Integer> worse = (a, b) -> scores[a] != scores[b]
+				? Integer.compare(scores[a], scores[b]) : Integer.compare(_ids[b], _ids[a]);
+			PriorityQueue<Integer> best = new PriorityQueue<Integer>(limit + 1, worse);
+			int maxScore = query.length * NAME_WEIGHT;
+			int minScore = Math.max(1, (int) Math.ceil(query.length * MIN_SIMILARITY * ADDRESS_WEIGHT));
+			for (int i = 0; i < scratch.touched; i++) {
+				int slot = scratch.slots[i];
+				if (_ids[slot] == NONE || scores[slot] < minScore) {
+					continue;
+				}
+				//most patients touched by a common trigram cannot make it
+				if (best.size() == limit && worse.compare(slot, best.peek()) < 0) {
+					continue;
+				}
+				best.add(slot);
+				if (best.size() > limit) {
+					best.poll();
+				}
+			}
+			while (!best.isEmpty()) {
+				int slot = best.poll();
+				matches.add(new Match(_ids[slot], _names[slot], _addresses[slot], (double) scores[slot] / maxScore));
+			}
+			Collections.reverse(matches);
+			return matches;
+		}finally {
+			scratch.reset();
+			_scratch.offer(scratch);
+			_lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		_lock.readLock().lock();
+		try {
+			return String.format("patient index: loaded=%b patients=%d slots=%d", _loaded, _live, _size);
+		}finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * The distinct trigrams of a text, as numbers below SYMBOLS^3.
+	 */
+	static int[] trigrams(String text) {
+		if (text == null) {
+			return new int[0];
+		}
+		String folded = (isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFD)).toLowerCase(Locale.ROOT);
+		IntHashSet trigrams = new IntHashSet();
+		int first = 0;
+		int second = 0;
+		boolean inWord = false;
+		for (int i = 0; i <= folded.length(); i++) {
+			char c = i < folded.length() ? folded.charAt(i) : ' ';
+			if (Character.getType(c) == Character.NON_SPACING_MARK) {
+				//the accent of a letter split off by NFD
+				continue;
+			}
+			int symbol = symbol(c);
+			if (symbol == 0) {
+				if (inWord) {
+					trigrams.add((first * SYMBOLS + second) * SYMBOLS);
+					inWord = false;
+				}
+				continue;
+			}
+			if (!inWord) {
+				first = 0;
+				second = 0;
+				inWord = true;
+			}
+			trigrams.add((first * SYMBOLS + second) * SYMBOLS + symbol);
+			first = second;
+			second = symbol;
+		}
+		return trigrams.toSortedArray();
+	}
+
+	private static boolean isAscii(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) > 127) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int symbol(char c) {
+		if (c >= 'a' && c <= 'z') {
+			return c - 'a' + 1;
+		}
+		if (c >= '0' && c <= '9') {
+			return c - '0' + 27;
+		}
+		return 0;
+	}
+
+	/*
+	 * The query trigrams without the common ones, or all of them when
+	 * every one is common.
+	 */
+	private int[] selective(int[] query) {
+		int[] selective = new int[query.length];
+		int count = 0;
+		for (int trigram : query) {
+			int patients = Math.max(length(_nameTrigrams[trigram]), length(_addressTrigrams[trigram]));
+			if (patients <= COMMON_SHARE * _live) {
+				selective[count++] = trigram;
+			}
+		}
+		return count == 0 ? query : Arrays.copyOf(selective, count);
+	}
+
+	private static int length(Postings postings) {
+		return postings == null ? 0 : postings.size;
+	}
+
+	private PatientIndex read() throws SQLException {
+		QueryResult result = _esql.executeQueryForResult(Queries.PATIENT_NAMES_AND_ADDRESSES);
+		PatientIndex fresh = new PatientIndex(_esql);
+		fresh.clear(result.size());
+		int id = result.findColumn("patient_id");
+		int name = result.findColumn("name");
+		int address = result.findColumn("address");
+		for (int i = 0; i < result.size(); i++) {
+			fresh.index(result.getInt(i, id), result.getString(i, name), result.getString(i, address));
+		}
+		return fresh;
+	}
+
+	private void index(int patientID, String name, String address) {
+		int replaced = _slots.get(patientID, NONE);
+		if (replaced != NONE) {
+			_ids[replaced] = NONE;
+			_live--;
+		}
+		if (_size == _ids.length) {
+			int capacity = _ids.length * 2;
+			_ids = Arrays.copyOf(_ids, capacity);
+			_names = Arrays.copyOf(_names, capacity);
+			_addresses = Arrays.copyOf(_addresses, capacity);
+		}
+		int slot = _size++;
+		_ids[slot] = patientID;
+		_names[slot] = name == null ? "" : name.trim();
+		_addresses[slot] = address == null ? "" : address.trim();
+		_slots.put(patientID, slot);
+		_live++;
+		for (int trigram : trigrams(name)) {
+			post(_nameTrigrams, trigram, slot);
+		}
+		for (int trigram : trigrams(address)) {
+			post(_addressTrigrams, trigram, slot);
+		}
+	}
+
+	private static void post(Postings[] index, int trigram, int slot) {
+		if (index[trigram] == null) {
+			index[trigram] = new Postings();
+		}
+		index[trigram].add(slot);
+	}
+
+	/*
+	 * Takes the read lock, loading the index first when it is not loaded.
+	 */
+	private void lockForRead() throws SQLException {
+		_lock.readLock().lock();
+		if (!_loaded) {
+			_lock.readLock().unlock();
+			synchronized (this) {
+				if (!_loaded) {
+					reload();
+				}
+			}
+			_lock.readLock().lock();
+		}
+	}
+
+	private void clear(int expected) {
+		_ids = new int[Math.max(16, expected)];
+		_names = new String[_ids.length];
+		_addresses = new String[_ids.length];
+		_size = 0;
+		_live = 0;
+		_slots = new IntIntHashMap(expected);
+		_nameTrigrams = new Postings[SYMBOLS * SYMBOLS * SYMBOLS];
+		_addressTrigrams = new Postings[SYMBOLS * SYMBOLS * SYMBOLS];
+	}
+
+	/**
+	 * A patient found by search(); the similarity is the share of the best
+	 * possible score, 1.0 when every query trigram is in the name.
+	 */
+	public static final class Match {
+		private final int _patientID;
+		private final String _name;
+		private final String _address;
+		private final double _similarity;
+
+		Match(int patientID, String name, String address, double similarity) {
+			this._patientID = patientID;
+			this._name = name;
+			this._address = address;
+			this._similarity = similarity;
+		}
+
+		public int getPatientID() {
+			return _patientID;
+		}
+
+		public String getName() {
+			return _name;
+		}
+
+		public String getAddress() {
+			return _address;
+		}
+
+		public double getSimilarity() {
+			return _similarity;
+		}
+	}
+
+	/**
+	 * The slots having one trigram, in the order they were indexed.
+	 */
+	private static final class Postings {
+		int[] slots = new int[4];
+		int size = 0;
+
+		void add(int slot) {
+			if (size == slots.length) {
+				slots = Arrays.copyOf(slots, size * 2);
+			}
+			slots[size++] = slot;
+		}
+	}
+
+	/**
+	 * The score of every slot for one search, the last query trigram that
+	 * scored it, and the slots scored, so only those are cleared afterwards.
+	 */
+	private static final class Scratch {
+		int[] scores = new int[0];
+		int[] scoredBy = new int[0];
+		int[] slots = new int[0];
+		int touched = 0;
+
+		void ensure(int size) {
+			if (scores.length < size) {
+				scores = new int[size];
+				scoredBy = new int[size];
+				slots = new int[size];
+			}
+		}
+
+		//the name is scored before the address, a trigram in both counts once
+		void score(Postings postings, int weight, int trigram) {
+			if (postings == null) {
+				return;
+			}
+			for (int i = 0; i < postings.size; i++) {
+				int slot = postings.slots[i];
+				if (scores[slot] == 0) {
+					slots[touched++] = slot;
+				}else if (scoredBy[slot] == trigram + 1) {
+					continue;
+				}
+				scores[slot] += weight;
+				scoredBy[slot] = trigram + 1;
+			}
+		}
+
+		void reset() {
+			for (int i = 0; i < touched; i++) {
+				scores[slots[i]] = 0;
+				scoredBy[slots[i]] = 0;
+			}
+			touched = 0;
+		}
+	}
+}
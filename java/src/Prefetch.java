@@ -0,0 +1,45 @@
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class reads something the menu is about to list while the user is
+ * still typing the previous answer.  start() runs the lookup on the
+ * asynchronous executor of DBproject; get() waits for it, typically not
+ * at all by then.  When prefetching is turned off (query.prefetch=false
+ * or DBproject.setPrefetch), nothing runs ahead and get() runs the lookup
+ * itself, so a menu method reads the same with or without it.
+ *
+ * A lookup that is never asked for still ran; start only what the next
+ * step is likely to need.
+ *
+ */
+
+public final class Prefetch<T> {
+	private final DBproject.Work<T> _work;
+	private final CompletableFuture<T> _future;
+
+	private Prefetch(DBproject.Work<T> work, CompletableFuture<T> future) {
+		this._work = work;
+		this._future = future;
+	}
+
+	/**
+	 * Method to start a lookup ahead of time.
+	 *
+	 * @param esql the database to run against
+	 * @param work the lookup
+	 * @return the running lookup, or the lookup to run on get() when
+	 *         prefetching is off
+	 */
+	public static <T> Prefetch<T> start(DBproject esql, DBproject.Work<T> work) {
+		return new Prefetch<T>(work, esql.isPrefetching() ? esql.executeAsync(work) : null);
+	}
+
+	/**
+	 * @return the value of the lookup
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public T get() throws SQLException {
+		return _future == null ? _work.run() : DBproject.await(_future);
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ * This class holds the parameterized SQL templates used by the menu
+ * operations.  Every value supplied by the user is bound through a '?'
+ * placeholder, so each template is parsed and planned once per connection
+ * and reused from the statement cache afterwards.
+ *
+ */
+
+public final class Queries {
+	private Queries() {
+	}
+
+	//Sequences
+	public static final String NEXT_SEQUENCE_VALUE =
+		"SELECT nextval(CAST(? AS regclass))";
+	//moves the ID sequences past the loaded data, as at the end of create.sql
+	public static final String RESEED_ID_SEQUENCES =
+		"SELECT setval('patient_id_seq', (SELECT COALESCE(MAX(patient_ID) + 1, 0) FROM Patient), false), " +
+		"setval('doctor_id_seq', (SELECT COALESCE(MAX(doctor_ID) + 1, 0) FROM Doctor), false), " +
+		"setval('appointment_id_seq', (SELECT COALESCE(MAX(appnt_ID) + 1, 0) FROM Appointment), false)";
+	//the same, appointment IDs also past the registry of migration 003, which keeps archived IDs
+	public static final String RESEED_ID_SEQUENCES_WITH_REGISTRY =
+		"SELECT setval('patient_id_seq', (SELECT COALESCE(MAX(patient_ID) + 1, 0) FROM Patient), false), " +
+		"setval('doctor_id_seq', (SELECT COALESCE(MAX(doctor_ID) + 1, 0) FROM Doctor), false), " +
+		"setval('appointment_id_seq', GREATEST((SELECT COALESCE(MAX(appnt_ID) + 1, 0) FROM Appointment), " +
+		"(SELECT COALESCE(MAX(appnt_ID) + 1, 0) FROM appointment_ids)), false)";
+
+	//Change feed
+	public static final String NOTIFY =
+		"SELECT pg_notify(?, ?)";
+
+	//Doctor
+	public static final String LIST_SPECIALTIES =
+		"SELECT DISTINCT specialty FROM Doctor";
+	public static final String DOCTOR_BY_ID =
+		"SELECT * FROM Doctor WHERE doctor_ID = ?";
+	//serializes the appointment inserts of one doctor
+	public static final String LOCK_DOCTOR =
+		"SELECT doctor_ID FROM Doctor WHERE doctor_ID = ? FOR UPDATE";
+	public static final String DOCTORS_OF_DEPARTMENT =
+		"SELECT Doc.doctor_ID, Doc.name, Dep.name as department FROM Doctor Doc, Department Dep " +
+		"WHERE Doc.did = Dep.dept_ID AND Dep.hid = ? AND Dep.dept_ID = ?";
+	//every doctor of a hospital, prefetched by options 3 and 4 and split by did
+	public static final String DOCTORS_OF_HOSPITAL =
+		"SELECT Doc.doctor_ID, Doc.name, Dep.name as department, Doc.did FROM Doctor Doc, Department Dep " +
+		"WHERE Doc.did = Dep.dept_ID AND Dep.hid = ?";
+	public static final String INSERT_DOCTOR =
+		"INSERT INTO Doctor (doctor_ID, name, specialty, did) VALUES (?, ?, ?, ?)";
+	//returns the inserted row instead of reading it back
+	public static final String INSERT_DOCTOR_RETURNING =
+		"INSERT INTO Doctor (doctor_ID, name, specialty, did) VALUES (?, ?, ?, ?) RETURNING *";
+
+	//Patient
+	public static final String PATIENT_BY_ID =
+		"SELECT * FROM Patient WHERE patient_ID = ?";
+	//read by PatientIndex
+	public static final String PATIENT_NAMES_AND_ADDRESSES =
+		"SELECT patient_ID, name, address FROM Patient";
+	public static final String INSERT_PATIENT =
+		"INSERT INTO Patient (patient_ID, name, gtype, age, address) VALUES (?, ?, ?, ?, ?)";
+	//returns the inserted row instead of reading it back
+	public static final String INSERT_PATIENT_RETURNING =
+		"INSERT INTO Patient (patient_ID, name, gtype, age, address) VALUES (?, ?, ?, ?, ?) RETURNING *";
+
+	//Hospital and Department, read through ReferenceCache
+	public static final String HOSPITALS =
+		"SELECT * FROM Hospital";
+	public static final String DEPARTMENTS_OF_HOSPITAL =
+		"SELECT * FROM Department WHERE hid = ?";
+
+	//Appointment
+	public static final String APPOINTMENT_BY_ID =
+		"SELECT * FROM Appointment WHERE appnt_ID = ?";
+	//the doctor and the status of an appointment, checked in one round trip
+	public static final String DOCTOR_AND_STATUS_OF_APPOINTMENT =
+		"SELECT H.doctor_id, A.status FROM has_appointment H, Appointment A " +
+		"WHERE H.appt_id = ? AND A.appnt_ID = H.appt_id";
+	public static final String APPOINTMENTS_OF_DOCTOR =
+		"SELECT D.doctor_ID, D.name, D.specialty, A.appnt_id, A.status, A.adate, A.time_slot " +
+		"FROM Appointment A, Doctor D, has_appointment H " +
+		"WHERE H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID AND D.doctor_ID = ?";
+	public static final String ACTIVE_AND_AVAILABLE_OF_DOCTOR_IN_RANGE =
+		"SELECT D.doctor_ID, D.name, D.specialty, A.appnt_id, A.status, A.adate, A.time_slot " +
+		"FROM Appointment A, Doctor D, has_appointment H " +
+		"WHERE H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID AND A.status IN ('AV', 'AC') " +
+		"AND D.doctor_ID = ? AND A.adate BETWEEN CAST(? AS DATE) AND CAST(? AS DATE)";
+	//appointments of a doctor whose slot overlaps [from, to), one lookup in the (doctor_id, slot) GiST
+	//index of migration 004; the date filter prunes the partitions.  A slot that did not parse has
+	//NULL times and would overlap everything, the index leaves it out and so does the query
+	public static final String APPOINTMENTS_OF_DOCTOR_OVERLAPPING =
+		"SELECT A.appnt_ID, A.adate, A.time_slot, A.status FROM Appointment A " +
+		"WHERE A.doctor_id = ? AND A.adate BETWEEN CAST(? AS DATE) AND CAST(? AS DATE) " +
+		"AND A.slot_start IS NOT NULL AND A.slot_end IS NOT NULL " +
+		"AND tsrange(A.adate + A.slot_start, A.adate + A.slot_end) && tsrange(CAST(? AS TIMESTAMP), CAST(? AS TIMESTAMP)) " +
+		"ORDER BY A.adate, A.slot_start";
+	public static final String AVAILABLE_APPOINTMENTS_OF_DOCTOR =
+		"SELECT A.appnt_ID, A.adate FROM Appointment A, has_appointment H " +
+		"WHERE H.appt_id = A.appnt_ID AND A.status = 'AV' AND H.doctor_id = ?";
+	//every available appointment, read by AvailabilityIndex
+	public static final String AVAILABLE_APPOINTMENTS =
+		"SELECT D.did, H.doctor_id, A.adate, A.appnt_ID FROM Appointment A, Doctor D, has_appointment H " +
+		"WHERE A.status = 'AV' AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID";
+	public static final String AVAILABLE_APPOINTMENT_BY_ID =
+		"SELECT D.did, H.doctor_id, A.adate, A.appnt_ID FROM Appointment A, Doctor D, has_appointment H " +
+		"WHERE A.status = 'AV' AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID AND A.appnt_ID = ?";
+	public static final String AVAILABLE_DATES_OF_DEPARTMENT =
+		"SELECT A.adate FROM Appointment A, Doctor D, has_appointment H " +
+		"WHERE A.status = 'AV' AND D.did = ? AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID";
+	public static final String AVAILABLE_APPOINTMENTS_OF_DEPARTMENT_ON_DATE =
+		"SELECT * FROM Appointment A, Doctor D, has_appointment H " +
+		"WHERE A.status = 'AV' AND A.adate = CAST(? AS DATE) AND D.did = ? " +
+		"AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID";
+	//binds: appointment, date, slot start and end times, status, doctor; time_slot is written H:MM-H:MM
+	public static final String INSERT_APPOINTMENT =
+		"INSERT INTO Appointment (appnt_ID, adate, time_slot, status, doctor_id) " +
+		"VALUES (?, CAST(? AS DATE), to_char(CAST(? AS TIME), 'FMHH24:MI') || '-' || to_char(CAST(? AS TIME), 'FMHH24:MI'), ?, ?)";
+	public static final String INSERT_HAS_APPOINTMENT =
+		"INSERT INTO has_appointment (appt_ID, doctor_id) VALUES (?, ?)";
+	/*
+	 * Books an available appointment of a doctor for a patient in one
+	 * statement: the status flips from AV to AC only if it still is AV, and
+	 * the searches row and the patient's appointment count are written only
+	 * when that update matched.  Reports 1 updated row when the booking
+	 * succeeded and 0 when the slot was taken, is past or does not belong to
+	 * the doctor.  Binds: appointment, doctor, hospital, patient, patient.
+	 */
+	public static final String BOOK_APPOINTMENT =
+		"WITH booked AS (" +
+		"UPDATE Appointment SET status = 'AC' FROM has_appointment H " +
+		"WHERE Appointment.appnt_ID = ? AND Appointment.status = 'AV' AND Appointment.adate >= CURRENT_DATE " +
+		"AND H.appt_id = Appointment.appnt_ID AND H.doctor_id = ? " +
+		"RETURNING Appointment.appnt_ID), " +
+		"searched AS (" +
+		"INSERT INTO searches (hid, pid, aid) SELECT ?, ?, appnt_ID FROM booked ON CONFLICT DO NOTHING) " +
+		"UPDATE Patient SET number_of_appts = COALESCE(number_of_appts, 0) + 1 " +
+		"WHERE patient_ID = ? AND EXISTS (SELECT 1 FROM booked)";
+	//the reverse of BOOK_APPOINTMENT for an active appointment of the patient that is not past,
+	//binds: appointment, patient, patient, patient
+	public static final String CANCEL_APPOINTMENT =
+		"WITH cancelled AS (" +
+		"UPDATE Appointment SET status = 'AV' " +
+		"WHERE appnt_ID = ? AND status = 'AC' AND adate >= CURRENT_DATE " +
+		"AND EXISTS (SELECT 1 FROM searches S WHERE S.aid = Appointment.appnt_ID AND S.pid = ?) " +
+		"RETURNING appnt_ID), " +
+		"unsearched AS (" +
+		"DELETE FROM searches WHERE aid IN (SELECT appnt_ID FROM cancelled) AND pid = ?) " +
+		"UPDATE Patient SET number_of_appts = GREATEST(COALESCE(number_of_appts, 0) - 1, 0) " +
+		"WHERE patient_ID = ? AND EXISTS (SELECT 1 FROM cancelled)";
+	public static final String UPCOMING_APPOINTMENTS_OF_PATIENT =
+		"SELECT A.appnt_ID, A.adate, A.time_slot, H.doctor_id, S.hid FROM searches S, Appointment A, has_appointment H " +
+		"WHERE S.pid = ? AND A.appnt_ID = S.aid AND A.status = 'AC' AND A.adate >= CURRENT_DATE " +
+		"AND H.appt_id = A.appnt_ID ORDER BY A.adate, A.slot_start";
+	//one chunk of the close-out, active appointments only; rows locked by another session are left
+	//to the next chunk or night, binds: first day kept open, chunk size
+	public static final String CLOSE_OUT_CHUNK =
+		"WITH batch AS (" +
+		"SELECT appnt_ID, adate FROM Appointment WHERE status = 'AC' AND adate < CAST(? AS DATE) " +
+		"LIMIT ? FOR UPDATE SKIP LOCKED), " +
+		"closed AS (" +
+		"UPDATE Appointment A SET status = 'PA' FROM batch " +
+		"WHERE A.appnt_ID = batch.appnt_ID AND A.adate = batch.adate RETURNING A.appnt_ID) " +
+		"SELECT COUNT(*) AS active FROM closed";
+
+	//Slot generation, read and written by SlotGenerator
+	public static final String MAINTENANCE_REQUESTS =
+		"SELECT D.did AS dept_ID, R.did AS doctor_ID, R.sid, R.patient_per_hour, R.time_slot " +
+		"FROM request_maintenance R, Doctor D WHERE D.doctor_ID = R.did ORDER BY D.did, R.did, R.sid";
+	public static final String SLOTS_OF_DOCTOR_IN_RANGE =
+		"SELECT A.adate, A.time_slot FROM Appointment A, has_appointment H " +
+		"WHERE H.doctor_id = ? AND A.appnt_ID = H.appt_id AND A.adate BETWEEN CAST(? AS DATE) AND CAST(? AS DATE)";
+	//binds: doctor, appointment IDs, dates as text, time slots
+	public static final String INSERT_AVAILABLE_APPOINTMENTS =
+		"INSERT INTO Appointment (appnt_ID, adate, time_slot, status, doctor_id) " +
+		"SELECT S.id, CAST(S.adate AS DATE), S.time_slot, 'AV', CAST(? AS INTEGER) FROM unnest(?, ?, ?) AS S(id, adate, time_slot)";
+	//binds: doctor, appointment IDs
+	public static final String INSERT_HAS_APPOINTMENTS_OF_DOCTOR =
+		"INSERT INTO has_appointment (appt_id, doctor_id) SELECT id, ? FROM unnest(?) AS id";
+	//binds: appointment IDs, staff IDs
+	public static final String INSERT_SCHEDULES =
+		"INSERT INTO schedules (appt_id, staff_id) SELECT * FROM unnest(?, ?)";
+	//no change notification per row for the rest of the transaction, see migration 006
+	public static final String QUIET_CHANGE_FEED =
+		"SELECT set_config('hospital.quiet', 'on', true)";
+
+	//Waitlist, see migration 005
+	public static final String INSERT_WAITLIST_REQUEST =
+		"INSERT INTO waitlist (pid, hid, dept_ID, doctor_ID, priority) VALUES (?, ?, ?, CAST(? AS INTEGER), ?) " +
+		"RETURNING request_ID";
+	public static final String WAITING_REQUESTS =
+		"SELECT request_ID, pid, hid, dept_ID, doctor_ID, priority FROM waitlist WHERE aid IS NULL";
+	public static final String WAITING_REQUESTS_OF_DEPARTMENT =
+		"SELECT request_ID, pid, doctor_ID, priority, requested FROM waitlist " +
+		"WHERE aid IS NULL AND dept_ID = ? ORDER BY priority DESC, request_ID";
+	//gives the appointment to a request that is still waiting, binds: appointment, request
+	public static final String CLAIM_WAITLIST_REQUEST =
+		"UPDATE waitlist SET aid = ?, promoted = now() WHERE request_ID = ? AND aid IS NULL";
+	public static final String WITHDRAW_WAITLIST_REQUEST =
+		"DELETE FROM waitlist WHERE request_ID = ? AND aid IS NULL";
+
+	//Partitions of Appointment, see migration 003
+	public static final String APPOINTMENT_IS_PARTITIONED =
+		"SELECT 1 FROM pg_partitioned_table WHERE partrelid = to_regclass('appointment')";
+	public static final String APPOINTMENT_PARTITIONS =
+		"SELECT C.relname FROM pg_inherits I, pg_class C " +
+		"WHERE I.inhparent = to_regclass('appointment') AND C.oid = I.inhrelid ORDER BY C.relname";
+	public static final String MONTHS_IN_DEFAULT_PARTITION =
+		"SELECT DISTINCT CAST(date_trunc('month', adate) AS DATE) FROM appointment_default ORDER BY 1";
+	public static final String CREATE_APPOINTMENT_PARTITION =
+		"SELECT CAST(create_appointment_partition(CAST(? AS DATE)) AS INTEGER)";
+	public static final String ARCHIVE_APPOINTMENT_PARTITION =
+		"SELECT archive_appointment_partition(?)";
+	public static final String APPOINTMENT_IDS_REGISTERED =
+		"SELECT 1 WHERE to_regclass('appointment_ids') IS NOT NULL";
+	public static final String REGISTER_APPOINTMENT_IDS =
+		"SELECT register_appointment_ids()";
+	//the doctor of the appointments loaded without one, see migration 004
+	public static final String APPOINTMENT_HAS_DOCTOR =
+		"SELECT 1 FROM information_schema.columns WHERE table_name = 'appointment' AND column_name = 'doctor_id'";
+	public static final String FILL_APPOINTMENT_DOCTORS =
+		"UPDATE Appointment A SET doctor_id = H.doctor_id FROM has_appointment H " +
+		"WHERE H.appt_id = A.appnt_ID AND A.doctor_id IS NULL";
+
+	//Reports, read from the counters kept by the triggers of migration 002
+	public static final String STATUS_TYPES_PER_DOCTOR =
+		"SELECT D.name, COUNT(DISTINCT C.status) AS appointmentTypes FROM Doctor D, doctor_status_counts C " +
+		"WHERE D.doctor_ID = C.doctor_id AND C.cnt > 0 GROUP BY D.name ORDER BY D.name DESC";
+	public static final String PATIENTS_PER_DOCTOR_WITH_STATUS =
+		"SELECT D.name, SUM(C.cnt) AS num_patients FROM Doctor D, doctor_status_counts C " +
+		"WHERE D.doctor_ID = C.doctor_id AND C.status = ? AND C.cnt > 0 " +
+		"GROUP BY D.name, D.did ORDER BY num_patients DESC";
+	public static final String REBUILD_STATUS_COUNTS =
+		"SELECT rebuild_doctor_status_counts()";
+}
@@ -0,0 +1,26 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * This class is the Java Flight Recorder event of one statement run
+ * through DBproject.  It is only committed while a recording enables it,
+ * e.g. java -XX:StartFlightRecording:filename=hospital.jfr ...; the stack
+ * trace of the event shows the menu path that ran the statement.
+ *
+ */
+
+@Name("hospital.Query")
+@Label("Query")
+@Category("Hospital DB")
+@Description("A statement run through DBproject, with its normalized SQL")
+public class QueryEvent extends Event {
+	@Label("SQL")
+	String sql;
+
+	@Label("Rows")
+	@Description("Rows returned or affected, -1 when the statement failed")
+	long rows;
+}
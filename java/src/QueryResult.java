@@ -0,0 +1,423 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class holds a query result column by column.  Integer columns are
+ * kept in int[] arrays, BIGINT columns in long[] arrays and DATE columns as
+ * epoch days in int[] arrays, so IDs and counts are read without boxing or
+ * parsing.  Every other column is dictionary encoded: rows store an int code
+ * into a string dictionary shared by all the columns of the result.
+ *
+ */
+
+public class QueryResult {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final String[] _names;
+	private final Column[] _columns;
+	private final Map<String, Integer> _index = new HashMap<String, Integer>();
+	//dictionary shared by the string columns
+	private final List<String> _dictionary = new ArrayList<String>();
+	private final Map<String, Integer> _codes = new HashMap<String, Integer>();
+	private int _rowCount = 0;
+	private int _capacity = INITIAL_CAPACITY;
+
+	private QueryResult(ResultSetMetaData rsmd) throws SQLException {
+		int numCol = rsmd.getColumnCount();
+		this._names = new String[numCol];
+		this._columns = new Column[numCol];
+		for (int i = 0; i < numCol; i++) {
+			_names[i] = rsmd.getColumnLabel(i + 1);
+			//first column of a given name wins, as with ResultSet.findColumn
+			_index.putIfAbsent(_names[i].toLowerCase(Locale.ROOT), i);
+			switch (rsmd.getColumnType(i + 1)) {
+				case Types.INTEGER:
+				case Types.SMALLINT:
+				case Types.TINYINT:
+					_columns[i] = new IntColumn();
+					break;
+				case Types.BIGINT:
+					_columns[i] = new LongColumn();
+					break;
+				case Types.DATE:
+					_columns[i] = new DateColumn();
+					break;
+				default:
+					_columns[i] = new StringColumn();
+			}
+		}
+	}
+
+	//same columns as the source, no rows
+	private QueryResult(QueryResult source) {
+		this._names = source._names;
+		this._columns = new Column[_names.length];
+		this._index.putAll(source._index);
+		for (int i = 0; i < _columns.length; i++) {
+			Column column = source._columns[i];
+			_columns[i] = column instanceof IntColumn ? new IntColumn()
+				: column instanceof LongColumn ? new LongColumn()
+				: column instanceof DateColumn ? new DateColumn()
+				: new StringColumn();
+		}
+	}
+
+	/**
+	 * Method to read every row of a result set.
+	 *
+	 * @param rs the result set, positioned before the first row
+	 * @return the rows of the result set, stored by column
+	 * @throws java.sql.SQLException when reading the result set failed
+	 */
+	public static QueryResult read(ResultSet rs) throws SQLException {
+		QueryResult result = new QueryResult(rs.getMetaData());
+		while (rs.next()) {
+			result.addRow(rs);
+		}
+		return result;
+	}
+
+	private void addRow(ResultSet rs) throws SQLException {
+		ensureCapacity();
+		for (int i = 0; i < _columns.length; i++) {
+			_columns[i].read(rs, i + 1, _rowCount);
+		}
+		_rowCount++;
+	}
+
+	private void addRow(QueryResult source, int row) {
+		ensureCapacity();
+		for (int i = 0; i < _columns.length; i++) {
+			_columns[i].copy(source._columns[i], row, _rowCount);
+		}
+		_rowCount++;
+	}
+
+	private void ensureCapacity() {
+		if (_rowCount == _capacity) {
+			_capacity *= 2;
+			for (Column column : _columns) {
+				column.grow(_capacity);
+			}
+		}
+	}
+
+	public int size() {
+		return _rowCount;
+	}
+
+	public boolean isEmpty() {
+		return _rowCount == 0;
+	}
+
+	public int getColumnCount() {
+		return _names.length;
+	}
+
+	public String getColumnName(int column) {
+		return _names[column];
+	}
+
+	/**
+	 * @param name the column name or label, case insensitive
+	 * @return the position of the column, starting at 0
+	 */
+	public int findColumn(String name) {
+		Integer column = _index.get(name.toLowerCase(Locale.ROOT));
+		if (column == null) {
+			throw new IllegalArgumentException("No column named " + name + " in " + Arrays.toString(_names));
+		}
+		return column;
+	}
+
+	public boolean isNull(int row, int column) {
+		checkRow(row);
+		return _columns[column].nulls.get(row);
+	}
+
+	public int getInt(int row, int column) {
+		checkRow(row);
+		return _columns[column].getInt(row);
+	}
+
+	public int getInt(int row, String name) {
+		return getInt(row, findColumn(name));
+	}
+
+	public long getLong(int row, int column) {
+		checkRow(row);
+		return _columns[column].getLong(row);
+	}
+
+	public long getLong(int row, String name) {
+		return getLong(row, findColumn(name));
+	}
+
+	public LocalDate getDate(int row, int column) {
+		checkRow(row);
+		return _columns[column].getDate(row);
+	}
+
+	public LocalDate getDate(int row, String name) {
+		return getDate(row, findColumn(name));
+	}
+
+	public String getString(int row, int column) {
+		checkRow(row);
+		return _columns[column].nulls.get(row) ? null : _columns[column].getString(row);
+	}
+
+	public String getString(int row, String name) {
+		return getString(row, findColumn(name));
+	}
+
+	/**
+	 * @param row the row number, starting at 0
+	 * @param column the column, starting at 0
+	 * @return the value as an Integer, Long, LocalDate or String, following
+	 *         the storage of the column, or null
+	 */
+	public Object getObject(int row, int column) {
+		if (isNull(row, column)) {
+			return null;
+		}
+		Column storage = _columns[column];
+		if (storage instanceof IntColumn) {
+			return storage.getInt(row);
+		}else if (storage instanceof LongColumn) {
+			return storage.getLong(row);
+		}else if (storage instanceof DateColumn) {
+			return storage.getDate(row);
+		}
+		return storage.getString(row);
+	}
+
+	/**
+	 * Method to find the first row holding a value in an integer column,
+	 * e.g. to check an ID typed at the menu against the rows just listed.
+	 *
+	 * @param name the column name or label, case insensitive
+	 * @param value the value to look for
+	 * @return the row number, or -1 when no row holds the value
+	 */
+	public int find(String name, int value) {
+		int column = findColumn(name);
+		for (int row = 0; row < _rowCount; row++) {
+			if (!isNull(row, column) && getInt(row, column) == value) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Method to keep the rows holding a value in an integer column, e.g. the
+	 * doctors of one department out of those of a hospital.
+	 *
+	 * @param name the column name or label, case insensitive
+	 * @param value the value to keep
+	 * @return a new result with the same columns and the matching rows
+	 */
+	public QueryResult where(String name, int value) {
+		int column = findColumn(name);
+		QueryResult rows = new QueryResult(this);
+		for (int row = 0; row < _rowCount; row++) {
+			if (!isNull(row, column) && getInt(row, column) == value) {
+				rows.addRow(this, row);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @param row the row number, starting at 0
+	 * @return the values of the row as strings, in column order
+	 */
+	public List<String> getRecord(int row) {
+		List<String> record = new ArrayList<String>(_columns.length);
+		for (int i = 0; i < _columns.length; i++) {
+			record.add(getString(row, i));
+		}
+		return record;
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= _rowCount) {
+			throw new IndexOutOfBoundsException("Row " + row + " of a result with " + _rowCount + " rows");
+		}
+	}
+
+	private int encode(String value) {
+		Integer code = _codes.get(value);
+		if (code == null) {
+			code = _dictionary.size();
+			_dictionary.add(value);
+			_codes.put(value, code);
+		}
+		return code;
+	}
+
+	/**
+	 * Storage of one column.  The typed getters convert when the stored
+	 * type differs from the requested one.
+	 */
+	private abstract class Column {
+		final BitSet nulls = new BitSet();
+
+		abstract void grow(int capacity);
+
+		abstract void read(ResultSet rs, int index, int row) throws SQLException;
+
+		//from a column of the same kind in another result
+		abstract void copy(Column from, int fromRow, int row);
+
+		abstract String getString(int row);
+
+		int getInt(int row) {
+			return Integer.parseInt(getString(row));
+		}
+
+		long getLong(int row) {
+			return Long.parseLong(getString(row));
+		}
+
+		LocalDate getDate(int row) {
+			return nulls.get(row) ? null : LocalDate.parse(getString(row));
+		}
+	}
+
+	private final class IntColumn extends Column {
+		int[] values = new int[INITIAL_CAPACITY];
+
+		void grow(int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			values[row] = rs.getInt(index);
+			if (rs.wasNull()) {
+				nulls.set(row);
+			}
+		}
+
+		void copy(Column from, int fromRow, int row) {
+			values[row] = ((IntColumn) from).values[fromRow];
+			nulls.set(row, from.nulls.get(fromRow));
+		}
+
+		String getString(int row) {
+			return Integer.toString(values[row]);
+		}
+
+		int getInt(int row) {
+			return values[row];
+		}
+
+		long getLong(int row) {
+			return values[row];
+		}
+	}
+
+	private final class LongColumn extends Column {
+		long[] values = new long[INITIAL_CAPACITY];
+
+		void grow(int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			values[row] = rs.getLong(index);
+			if (rs.wasNull()) {
+				nulls.set(row);
+			}
+		}
+
+		void copy(Column from, int fromRow, int row) {
+			values[row] = ((LongColumn) from).values[fromRow];
+			nulls.set(row, from.nulls.get(fromRow));
+		}
+
+		String getString(int row) {
+			return Long.toString(values[row]);
+		}
+
+		int getInt(int row) {
+			return Math.toIntExact(values[row]);
+		}
+
+		long getLong(int row) {
+			return values[row];
+		}
+	}
+
+	private final class DateColumn extends Column {
+		//days since 1970-01-01
+		int[] values = new int[INITIAL_CAPACITY];
+
+		void grow(int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			java.sql.Date date = rs.getDate(index);
+			if (date == null) {
+				nulls.set(row);
+			}else {
+				values[row] = (int) date.toLocalDate().toEpochDay();
+			}
+		}
+
+		void copy(Column from, int fromRow, int row) {
+			values[row] = ((DateColumn) from).values[fromRow];
+			nulls.set(row, from.nulls.get(fromRow));
+		}
+
+		String getString(int row) {
+			return getDate(row).toString();
+		}
+
+		LocalDate getDate(int row) {
+			return nulls.get(row) ? null : LocalDate.ofEpochDay(values[row]);
+		}
+	}
+
+	private final class StringColumn extends Column {
+		int[] codes = new int[INITIAL_CAPACITY];
+
+		void grow(int capacity) {
+			codes = Arrays.copyOf(codes, capacity);
+		}
+
+		void read(ResultSet rs, int index, int row) throws SQLException {
+			String value = rs.getString(index);
+			if (value == null) {
+				nulls.set(row);
+			}else {
+				codes[row] = encode(value);
+			}
+		}
+
+		void copy(Column from, int fromRow, int row) {
+			if (from.nulls.get(fromRow)) {
+				nulls.set(row);
+			}else {
+				//codes of this result's own dictionary
+				codes[row] = encode(from.getString(fromRow));
+			}
+		}
+
+		String getString(int row) {
+			return _dictionary.get(codes[row]);
+		}
+	}
+}
@@ -0,0 +1,235 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * This class times every statement run through DBproject, keyed by its
+ * normalized SQL (literals replaced by '?', whitespace collapsed), so the
+ * templates of Queries and the statements built by the tools each get a
+ * latency histogram, a call count, a row count and an error count.
+ * Transactions are keyed by the statements they prepared.
+ *
+ * Statements slower than query.slowMs (500 ms by default, a negative value
+ * turns the log off) are written with their parameters to the file named
+ * by query.slowLog, or to standard error.  Every execution is also a
+ * QueryEvent for the Java Flight Recorder.
+ *
+ */
+
+public class QueryStats {
+	static final long SLOW_QUERY_MS = Long.getLong("query.slowMs", 500L);
+	static final String SLOW_QUERY_LOG = System.getProperty("query.slowLog");
+	//templates tracked, later ones are counted under OTHER
+	static final int MAX_TEMPLATES = 256;
+	static final String OTHER = "(other statements)";
+	//longest SQL and parameter list written to the slow query log
+	static final int MAX_LOGGED_CHARS = 400;
+
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+	private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w$])-?\\d+(?:\\.\\d+)?(?![\\w$])");
+	private static final Pattern SPACES = Pattern.compile("\\s+");
+
+	private final ConcurrentHashMap<String, Template> _templates = new ConcurrentHashMap<String, Template>();
+	//SQL text to normalized SQL, the texts are mostly the constants of Queries
+	private final ConcurrentHashMap<String, String> _normalized = new ConcurrentHashMap<String, String>();
+	private final long _slowNanos;
+	private PrintStream _slowLog;
+
+	public QueryStats() {
+		this(SLOW_QUERY_MS);
+	}
+
+	public QueryStats(long slowQueryMs) {
+		this._slowNanos = slowQueryMs < 0 ? -1 : slowQueryMs * 1000000L;
+	}
+
+	/**
+	 * Method to record one execution.
+	 *
+	 * @param sql the SQL text as run
+	 * @param params the values bound to it
+	 * @param startNanos System.nanoTime() before the execution
+	 * @param rows the rows returned or affected, -1 when the execution failed
+	 * @param event the flight recorder event begun before the execution
+	 */
+	public void record(String sql, Object[] params, long startNanos, long rows, QueryEvent event) {
+		record(sql, params, startNanos, rows, 1, event);
+	}
+
+	/**
+	 * Method to record one execution of several statements, e.g. a
+	 * transaction keyed by its distinct statements.
+	 *
+	 * @param sql the SQL text as run
+	 * @param params the values bound to it
+	 * @param startNanos System.nanoTime() before the execution
+	 * @param rows the rows returned or affected, -1 when the execution failed
+	 * @param statements the statements sent, repeats included
+	 * @param event the flight recorder event begun before the execution
+	 */
+	public void record(String sql, Object[] params, long startNanos, long rows, int statements, QueryEvent event) {
+		long nanos = System.nanoTime() - startNanos;
+		String key = normalize(sql);
+		template(key).add(nanos, rows, statements);
+		event.end();
+		if (event.shouldCommit()) {
+			event.sql = key;
+			event.rows = rows;
+			event.commit();
+		}
+		if (_slowNanos >= 0 && nanos >= _slowNanos) {
+			logSlow(sql, params, nanos, rows);
+		}
+	}
+
+	/**
+	 * @return the templates by total time spent, largest first
+	 */
+	public List<Template> snapshot() {
+		//totals keep moving while sorting, sort on a copy of them
+		Map<Template, Long> totals = new HashMap<Template, Long>();
+		for (Template template : _templates.values()) {
+			totals.put(template, template.getTotalNanos());
+		}
+		List<Template> templates = new ArrayList<Template>(totals.keySet());
+		templates.sort(Comparator.comparing(totals::get, Comparator.reverseOrder()));
+		return templates;
+	}
+
+	public void reset() {
+		_templates.clear();
+	}
+
+	/**
+	 * Method to write the busiest templates as a table.
+	 *
+	 * @param out the stream to write to
+	 * @param limit the number of templates to write
+	 */
+	public void dump(PrintStream out, int limit) {
+		List<Template> templates = snapshot();
+		out.printf("%9s %6s %10s %11s %9s %9s %9s %9s  %s%n", "calls", "errors", "rows", "total ms", "mean ms",
+			"p50 ms", "p99 ms", "max ms", "statement");
+		for (Template template : templates.subList(0, Math.min(limit, templates.size()))) {
+			LatencyHistogram latency = template.getLatency();
+			out.printf("%9d %6d %10d %11.1f %9.3f %9.3f %9.3f %9.3f  %s%n", latency.getCount(), template.getErrors(),
+				template.getRows(), template.getTotalNanos() / 1e6, latency.getMeanNanos() / 1e6,
+				latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(99) / 1e6, latency.getMaxNanos() / 1e6,
+				template.getSql());
+		}
+		if (templates.size() > limit) {
+			out.println("... " + (templates.size() - limit) + " more statements");
+		}
+	}
+
+	/**
+	 * Method to normalize a statement: string and number literals become
+	 * '?' and runs of whitespace a single space.
+	 *
+	 * @param sql the SQL text
+	 * @return the normalized text
+	 */
+	public String normalize(String sql) {
+		String key = _normalized.get(sql);
+		if (key == null) {
+			key = SPACES.matcher(sql).replaceAll(" ").trim();
+			key = STRING_LITERAL.matcher(key).replaceAll("?");
+			key = NUMBER_LITERAL.matcher(key).replaceAll("?");
+			if (_normalized.size() < MAX_TEMPLATES * 4) {
+				_normalized.put(sql, key);
+			}
+		}
+		return key;
+	}
+
+	private Template template(String key) {
+		Template template = _templates.get(key);
+		if (template == null) {
+			if (_templates.size() >= MAX_TEMPLATES) {
+				key = OTHER;
+			}
+			template = _templates.computeIfAbsent(key, Template::new);
+		}
+		return template;
+	}
+
+	private synchronized void logSlow(String sql, Object[] params, long nanos, long rows) {
+		if (_slowLog == null) {
+			_slowLog = System.err;
+			if (SLOW_QUERY_LOG != null) {
+				try {
+					_slowLog = new PrintStream(new FileOutputStream(SLOW_QUERY_LOG, true), true);
+				}catch (IOException e) {
+					System.err.println("Cannot open the slow query log " + SLOW_QUERY_LOG + ": " + e.getMessage());
+				}
+			}
+		}
+		_slowLog.printf("%s SLOW %.1f ms rows=%d %s params=%s%n", LocalDateTime.now(), nanos / 1e6, rows,
+			truncate(SPACES.matcher(sql).replaceAll(" ").trim()), truncate(Arrays.toString(params)));
+	}
+
+	private static String truncate(String text) {
+		return text.length() <= MAX_LOGGED_CHARS ? text : text.substring(0, MAX_LOGGED_CHARS) + "...";
+	}
+
+	/**
+	 * This class holds the statistics of one normalized statement.
+	 *
+	 */
+	public static final class Template {
+		private final String _sql;
+		private final LatencyHistogram _latency = new LatencyHistogram();
+		private final LongAdder _rows = new LongAdder();
+		private final LongAdder _errors = new LongAdder();
+		private final LongAdder _statements = new LongAdder();
+
+		Template(String sql) {
+			this._sql = sql;
+		}
+
+		void add(long nanos, long rows, int statements) {
+			_latency.record(nanos);
+			_statements.add(statements);
+			if (rows < 0) {
+				_errors.increment();
+			}else {
+				_rows.add(rows);
+			}
+		}
+
+		public String getSql() {
+			return _sql;
+		}
+
+		public LatencyHistogram getLatency() {
+			return _latency;
+		}
+
+		public long getRows() {
+			return _rows.sum();
+		}
+
+		public long getErrors() {
+			return _errors.sum();
+		}
+
+		//statements sent by all executions, more than the count for a transaction
+		public long getStatements() {
+			return _statements.sum();
+		}
+
+		public long getTotalNanos() {
+			return _latency.getTotalNanos();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the reference data the menu flows list and search on
+ * every entry - the hospitals, the departments of a hospital and the doctor
+ * specialties - so a flow reads them from the database at most once per
+ * time-to-live.  Entries are loaded on first use and dropped when they
+ * expire or when a write invalidates them.
+ *
+ * A QueryResult is immutable, so cached results are shared between callers.
+ *
+ */
+
+public class ReferenceCache {
+	//time an entry is served before it is read again, overridable with -Dcache.ttlMs=<value>
+	static final long DEFAULT_TTL_MS = Long.getLong("cache.ttlMs", 300000L);
+
+	private static final String HOSPITALS = "hospitals";
+	private static final String DEPARTMENTS = "departments:";
+	private static final String SPECIALTIES = "specialties";
+
+	private final DBproject _esql;
+	private final long _ttlNanos;
+	private final ConcurrentHashMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+	//bumped by every invalidation, a load that raced with one is not cached
+	private final AtomicLong _generation = new AtomicLong();
+
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _expirations = new AtomicLong();
+	private final AtomicLong _invalidations = new AtomicLong();
+
+	public ReferenceCache(DBproject esql, long ttlMs) {
+		this._esql = esql;
+		this._ttlNanos = ttlMs * 1000000L;
+	}
+
+	/**
+	 * @return every hospital (hospital_ID, name)
+	 * @throws java.sql.SQLException when the hospitals could not be read
+	 */
+	public QueryResult hospitals() throws SQLException {
+		return get(HOSPITALS, Queries.HOSPITALS);
+	}
+
+	/**
+	 * @param hospitalID the hospital
+	 * @return the departments of the hospital (dept_ID, name, hid)
+	 * @throws java.sql.SQLException when the departments could not be read
+	 */
+	public QueryResult departments(int hospitalID) throws SQLException {
+		return get(DEPARTMENTS + hospitalID, Queries.DEPARTMENTS_OF_HOSPITAL, hospitalID);
+	}
+
+	/**
+	 * @return the distinct doctor specialties (specialty)
+	 * @throws java.sql.SQLException when the specialties could not be read
+	 */
+	public QueryResult specialties() throws SQLException {
+		return get(SPECIALTIES, Queries.LIST_SPECIALTIES);
+	}
+
+	public void invalidateHospitals() {
+		invalidate(HOSPITALS);
+	}
+
+	public void invalidateDepartments(int hospitalID) {
+		invalidate(DEPARTMENTS + hospitalID);
+	}
+
+	public void invalidateSpecialties() {
+		invalidate(SPECIALTIES);
+	}
+
+	/**
+	 * Method to drop every entry, e.g. after a bulk load.
+	 */
+	public void invalidateAll() {
+		_generation.incrementAndGet();
+		_invalidations.incrementAndGet();
+		_entries.clear();
+	}
+
+	/**
+	 * Method to find the first row whose column contains the given text,
+	 * ignoring case, the way the menu matched names with LIKE '%text%'.
+	 *
+	 * @param result a cached result
+	 * @param column the column to search
+	 * @param text the text typed by the user
+	 * @return the row number, or -1 when no row matches
+	 */
+	public static int find(QueryResult result, String column, String text) {
+		int index = result.findColumn(column);
+		String needle = text.toLowerCase(Locale.ROOT);
+		for (int row = 0; row < result.size(); row++) {
+			String value = result.getString(row, index);
+			if (value != null && value.toLowerCase(Locale.ROOT).contains(needle)) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	public long getHits() {
+		return _hits.get();
+	}
+
+	public long getMisses() {
+		return _misses.get();
+	}
+
+	@Override
+	public String toString() {
+		long hits = _hits.get();
+		long total = hits + _misses.get();
+		double hitRate = total == 0 ? 0.0 : (100.0 * hits) / total;
+		return String.format("reference cache: entries=%d hits=%d misses=%d expirations=%d invalidations=%d hit-rate=%.1f%%",
+			_entries.size(), hits, _misses.get(), _expirations.get(), _invalidations.get(), hitRate);
+	}
+
+	private QueryResult get(String key, String query, Object... params) throws SQLException {
+		long now = System.nanoTime();
+		Entry entry = _entries.get(key);
+		if (entry != null) {
+			if (now - entry.loadedAt < _ttlNanos) {
+				_hits.incrementAndGet();
+				return entry.value;
+			}
+			_expirations.incrementAndGet();
+		}
+		_misses.incrementAndGet();
+		long generation = _generation.get();
+		QueryResult value = _esql.executeQueryForResult(query, params);
+		if (_generation.get() == generation) {
+			_entries.put(key, new Entry(value, now));
+		}
+		return value;
+	}
+
+	private void invalidate(String key) {
+		_generation.incrementAndGet();
+		_invalidations.incrementAndGet();
+		_entries.remove(key);
+	}
+
+	private static class Entry {
+		final QueryResult value;
+		final long loadedAt;
+
+		Entry(QueryResult value, long loadedAt) {
+			this.value = value;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class writes a result set to an output stream as aligned columns.
+ * Column widths are computed over the header and a bounded sample of the
+ * first rows; the remaining rows are streamed straight through a buffered
+ * writer, so memory use does not grow with the size of the result.
+ *
+ */
+
+public class ResultPrinter {
+	static final int DEFAULT_SAMPLE_ROWS = 50;
+	//rows written between two flushes once the sample has been printed
+	static final int FLUSH_EVERY_ROWS = 500;
+	//space between two columns
+	static final int COLUMN_GAP = 2;
+
+	private final PrintStream _stream;
+	private final int _sampleRows;
+
+	public ResultPrinter(PrintStream stream) {
+		this(stream, DEFAULT_SAMPLE_ROWS);
+	}
+
+	public ResultPrinter(PrintStream stream, int sampleRows) {
+		this._stream = stream;
+		this._sampleRows = Math.max(1, sampleRows);
+	}
+
+	/**
+	 * Method to write every row of the result set, preceded by a header
+	 * line.  Nothing is written when the result set is empty.
+	 *
+	 * @param rs the result set, positioned before the first row
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when reading the result set failed
+	 */
+	public int print(ResultSet rs) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		String[] header = new String[numCol];
+		for (int i = 0; i < numCol; i++) {
+			header[i] = rsmd.getColumnName(i + 1);
+		}
+
+		//buffer the sample used to size the columns
+		List<String[]> sample = new ArrayList<String[]>();
+		boolean more = true;
+		while (sample.size() < _sampleRows && (more = rs.next())) {
+			sample.add(readRow(rs, numCol));
+		}
+		if (sample.isEmpty()) {
+			return 0;
+		}
+		int[] widths = new int[numCol];
+		measure(widths, header);
+		for (String[] row : sample) {
+			measure(widths, row);
+		}
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(_stream), 1 << 16));
+		StringBuilder line = new StringBuilder();
+		writeRow(out, line, header, widths);
+		for (String[] row : sample) {
+			writeRow(out, line, row, widths);
+		}
+		out.flush();
+		int rowCount = sample.size();
+		sample = null;
+
+		//stream the rest of the result set
+		String[] row = new String[numCol];
+		while (more && rs.next()) {
+			for (int i = 0; i < numCol; i++) {
+				row[i] = rs.getString(i + 1);
+			}
+			writeRow(out, line, row, widths);
+			if (++rowCount % FLUSH_EVERY_ROWS == 0) {
+				out.flush();
+			}
+		}
+		out.flush();
+		return rowCount;
+	}
+
+	/**
+	 * Method to write every column of a materialized result, preceded by a
+	 * header line, so a result can be checked for emptiness and written
+	 * from one execution.  Nothing is written when the result is empty.
+	 *
+	 * @param result the result to write
+	 * @return the number of rows written
+	 */
+	public int print(QueryResult result) {
+		String[] columns = new String[result.getColumnCount()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = result.getColumnName(i);
+		}
+		return print(result, columns);
+	}
+
+	/**
+	 * Method to write some columns of a materialized result, preceded by a
+	 * header line.  Nothing is written when the result is empty.
+	 *
+	 * @param result the result to write
+	 * @param columns the names of the columns to write, in order
+	 * @return the number of rows written
+	 */
+	public int print(QueryResult result, String... columns) {
+		int[] indexes = new int[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			indexes[i] = result.findColumn(columns[i]);
+		}
+		List<String[]> rows = new ArrayList<String[]>(result.size());
+		for (int r = 0; r < result.size(); r++) {
+			String[] row = new String[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				row[i] = result.getString(r, indexes[i]);
+			}
+			rows.add(row);
+		}
+		return print(columns, rows);
+	}
+
+	/**
+	 * Method to write rows built in memory, preceded by a header line.
+	 * Nothing is written when there are no rows.
+	 *
+	 * @param header the column names
+	 * @param rows the rows, one value per column
+	 * @return the number of rows written
+	 */
+	public int print(String[] header, List<String[]> rows) {
+		if (rows.isEmpty()) {
+			return 0;
+		}
+		int[] widths = new int[header.length];
+		measure(widths, header);
+		for (String[] row : rows) {
+			measure(widths, row);
+		}
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(_stream), 1 << 16));
+		StringBuilder line = new StringBuilder();
+		writeRow(out, line, header, widths);
+		for (String[] row : rows) {
+			writeRow(out, line, row, widths);
+		}
+		out.flush();
+		return rows.size();
+	}
+
+	private static String[] readRow(ResultSet rs, int numCol) throws SQLException {
+		String[] row = new String[numCol];
+		for (int i = 0; i < numCol; i++) {
+			row[i] = rs.getString(i + 1);
+		}
+		return row;
+	}
+
+	private static void measure(int[] widths, String[] row) {
+		for (int i = 0; i < row.length; i++) {
+			widths[i] = Math.max(widths[i], String.valueOf(row[i]).length());
+		}
+	}
+
+	private static void writeRow(PrintWriter out, StringBuilder line, String[] row, int[] widths) {
+		line.setLength(0);
+		for (int i = 0; i < row.length; i++) {
+			String value = String.valueOf(row[i]);
+			line.append(value);
+			if (i < row.length - 1) {
+				for (int pad = widths[i] - value.length() + COLUMN_GAP; pad > 0; pad--) {
+					line.append(' ');
+				}
+			}
+		}
+		out.println(line);
+	}
+}
@@ -0,0 +1,210 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * This class runs the menu operations against a live database with
+ * scripted input and counts the statements each one sends, through
+ * QueryStats.  An operation fails the check when it sends more statements
+ * than its budget; a transaction counts every statement it prepared, a
+ * statement run twice twice.  ID allocation from the sequences is not
+ * counted.  The lookup caches and
+ * the availability index are loaded before each operation, as in a
+ * session that has been running for a while.  Prefetching is turned off:
+ * a lookup started ahead for a name the script does not pick is a
+ * statement the menu sends without needing it.
+ *
+ * The operations write: a doctor, a patient and an appointment are added
+ * and an available appointment is booked.  Run it against a test
+ * database loaded with data/ or DataGenerator output.
+ *
+ * Usage: java -cp lib/*:bin/ RoundTripCheck <dbname> <port> <user>
+ *
+ */
+
+public class RoundTripCheck {
+	private static final DateTimeFormatter MENU_DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+
+	private final DBproject _esql;
+	private int _failures = 0;
+
+	RoundTripCheck(DBproject esql) {
+		this._esql = esql;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + RoundTripCheck.class.getName() +
+				" <dbname> <port> <user>");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		esql.setPrefetch(false);
+		int failures;
+		try {
+			failures = new RoundTripCheck(esql).run();
+		}finally {
+			esql.cleanup();
+		}
+		System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + " operations)");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	int run() throws SQLException {
+		//a department with a doctor that has an available appointment, and a patient
+		QueryResult sample = _esql.executeQueryForResult(
+			"SELECT Hos.hospital_ID, Hos.name AS hospital, Dep.dept_ID, Dep.name AS department, D.doctor_ID, A.appnt_ID, A.adate " +
+			"FROM Appointment A, has_appointment H, Doctor D, Department Dep, Hospital Hos " +
+			"WHERE A.status = 'AV' AND H.appt_id = A.appnt_ID AND D.doctor_ID = H.doctor_id " +
+			"AND Dep.dept_ID = D.did AND Hos.hospital_ID = Dep.hid LIMIT 1");
+		if (sample.isEmpty()) {
+			throw new SQLException("No available appointments loaded, nothing to check");
+		}
+		int hospitalID = sample.getInt(0, "hospital_ID");
+		String hospital = sample.getString(0, "hospital").trim();
+		int departmentID = sample.getInt(0, "dept_ID");
+		String department = sample.getString(0, "department").trim();
+		int doctorID = sample.getInt(0, "doctor_ID");
+		int appointmentID = sample.getInt(0, "appnt_ID");
+		LocalDate date = sample.getDate(0, "adate");
+		int patientID = _esql.executeQueryForResult("SELECT patient_ID FROM Patient LIMIT 1").getInt(0, 0);
+		warm(hospitalID);
+		//the menu picks the first name containing what was typed
+		QueryResult hospitals = _esql.referenceCache().hospitals();
+		QueryResult departments = _esql.referenceCache().departments(hospitalID);
+		if (hospitals.getInt(ReferenceCache.find(hospitals, "name", hospital), "hospital_ID") != hospitalID ||
+				departments.getInt(ReferenceCache.find(departments, "name", department), "dept_ID") != departmentID) {
+			throw new SQLException("The names of hospital " + hospitalID + " and department " + departmentID +
+				" are not unique, pick other data");
+		}
+		String specialty = _esql.referenceCache().specialties().getString(0, "specialty").trim();
+
+		check("1 add doctor", 1, hospitalID, DBproject::AddDoctor, "Round Trip", specialty, hospital, department);
+		check("2 add patient", 1, hospitalID, DBproject::AddPatient, "Round Trip", "F", "40", "1 Main St");
+
+		//the doctor just added has no appointment to overlap
+		int newDoctorID = _esql.executeQueryForResult("SELECT MAX(doctor_ID) FROM Doctor WHERE did = ?",
+			departmentID).getInt(0, 0);
+		check("3 add appointment", 8, hospitalID, DBproject::AddAppointment, hospital, department,
+			Integer.toString(newDoctorID), date.format(MENU_DATE), TimeSlot.OFFERED.get(0).toString());
+		check("4 make appointment", 4, hospitalID, DBproject::MakeAppointment, Integer.toString(patientID), hospital,
+			department, Integer.toString(doctorID), Integer.toString(appointmentID));
+		check("5 appointments of doctor", 2, hospitalID, DBproject::ListAppointmentsOfDoctor,
+			Integer.toString(doctorID), date.format(MENU_DATE), date.plusDays(30).format(MENU_DATE));
+		check("6 available of department", 0, hospitalID, DBproject::ListAvailableAppointmentsOfDepartment, hospital,
+			department, date.format(MENU_DATE));
+		check("7 status types per doctor", 1, hospitalID, DBproject::ListStatusNumberOfAppointmentsPerDoctor);
+		check("8 patients per doctor with status", 1, hospitalID, DBproject::FindPatientsCountWithStatus, "AC");
+		return _failures;
+	}
+
+	private void warm(int hospitalID) throws SQLException {
+		_esql.referenceCache().hospitals();
+		_esql.referenceCache().departments(hospitalID);
+		_esql.referenceCache().specialties();
+		if (!_esql.availability().isLoaded()) {
+			_esql.availability().reload();
+		}
+	}
+
+	private void check(String label, int budget, int hospitalID, Consumer<DBproject> operation, String... input)
+			throws SQLException {
+		warm(hospitalID);
+		Map<String, long[]> before = counts();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PrintStream stdout = System.out;
+		BufferedReader stdin = DBproject.in;
+		System.setOut(new PrintStream(output, true));
+		DBproject.in = new ScriptedInput(input);
+		try {
+			operation.accept(_esql);
+		}catch (ScriptExhausted e) {
+			//the operation asked again, e.g. after rejecting the input
+			_failures++;
+			System.setOut(stdout);
+			System.out.println("FAIL  [" + label + "] " + e.getMessage());
+			System.out.print(output);
+			return;
+		}finally {
+			System.setOut(stdout);
+			DBproject.in = stdin;
+		}
+
+		long statements = 0;
+		List<String> sent = new ArrayList<String>();
+		for (Map.Entry<String, long[]> entry : counts().entrySet()) {
+			long[] previous = before.get(entry.getKey());
+			long executions = entry.getValue()[0] - (previous == null ? 0 : previous[0]);
+			if (executions > 0) {
+				statements += entry.getValue()[1] - (previous == null ? 0 : previous[1]);
+				sent.add(executions + " x " + entry.getKey());
+			}
+		}
+		if (statements <= budget) {
+			System.out.println("PASS  [" + label + "] " + statements + " statements (budget " + budget + ")");
+		}else {
+			_failures++;
+			System.out.println("FAIL  [" + label + "] " + statements + " statements (budget " + budget + ")");
+			for (String statement : sent) {
+				System.out.println("      " + statement);
+			}
+		}
+	}
+
+	//executions and statements sent of each statement or transaction so far, sequence allocation left out
+	private Map<String, long[]> counts() {
+		String sequence = _esql.queryStats().normalize(Queries.NEXT_SEQUENCE_VALUE);
+		Map<String, long[]> counts = new HashMap<String, long[]>();
+		for (QueryStats.Template template : _esql.queryStats().snapshot()) {
+			if (!template.getSql().equals(sequence)) {
+				counts.put(template.getSql(), new long[] {template.getLatency().getCount(), template.getStatements()});
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * This class feeds the scripted lines to the menu and stops it when it
+	 * asks for more.
+	 *
+	 */
+	private static final class ScriptedInput extends BufferedReader {
+		private final List<String> _lines;
+		private int _next = 0;
+
+		ScriptedInput(String... lines) {
+			super(new StringReader(""));
+			this._lines = Arrays.asList(lines);
+		}
+
+		@Override
+		public String readLine() {
+			if (_next >= _lines.size()) {
+				throw new ScriptExhausted("asked for more input than " + _lines);
+			}
+			return _lines.get(_next++);
+		}
+	}
+
+	//an Error, so the retry loops of the menu do not catch it
+	private static final class ScriptExhausted extends Error {
+		private static final long serialVersionUID = 1L;
+
+		ScriptExhausted(String message) {
+			super(message);
+		}
+	}
+}
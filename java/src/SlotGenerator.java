@@ -0,0 +1,269 @@
+import java.io.PrintStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class generates the available appointments of the coming days
+ * from request_maintenance.  Every row asks for the doctor to see
+ * patient_per_hour patients during time_slot, with the staff member sid;
+ * the window is cut into slots of 60 / patient_per_hour minutes, rounded
+ * up so an hour never holds more patients than asked for.  Monday to
+ * Friday, each slot becomes an AV appointment of the doctor
+ * scheduled with the staff member (Appointment, has_appointment and
+ * schedules rows).  Slots overlapping an appointment the doctor already
+ * has, or a slot of another row of the doctor, are skipped, so running
+ * the generator twice over the same days adds nothing.  Time slots are
+ * whole minutes: a rate above 60 per hour cannot be honored and its row is
+ * reported and skipped.
+ *
+ * Departments are generated in parallel, slots.threads at a time but at
+ * most half the connection pool, so the menu and the change listener keep
+ * connections.  The slots of a doctor are written in one transaction holding the doctor row
+ * lock, like HospitalService.addAppointment, with one multi-row INSERT
+ * per table and chunk of batch.chunkSize slots.  The transactions do not
+ * notify each row (migration 006); a single reload notice is sent at the
+ * end instead.
+ *
+ * Usage: java -cp lib/*:bin/ SlotGenerator <dbname> <port> <user> [days] [firstDate]
+ *
+ */
+
+public class SlotGenerator {
+	//a quarter
+	static final int DEFAULT_DAYS = 91;
+	//departments generated at once
+	static final int THREADS = Integer.getInteger("slots.threads", 8);
+
+	private final DBproject _esql;
+	private final PrintStream _out;
+	private final int _chunkSize;
+	private final AtomicLong _generated = new AtomicLong();
+	private final AtomicLong _overlapping = new AtomicLong();
+	private final AtomicLong _invalid = new AtomicLong();
+	private final AtomicLong _tooFast = new AtomicLong();
+
+	public SlotGenerator(DBproject esql, PrintStream out) {
+		this(esql, out, BatchRunner.DEFAULT_CHUNK_SIZE);
+	}
+
+	public SlotGenerator(DBproject esql, PrintStream out, int chunkSize) {
+		this._esql = esql;
+		this._out = out;
+		this._chunkSize = chunkSize;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + SlotGenerator.class.getName() +
+				" <dbname> <port> <user> [days] [firstDate]");
+			return;
+		}
+		int days = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_DAYS;
+		LocalDate from = args.length > 4 ? LocalDate.parse(args[4]) : LocalDate.now().plusDays(1);
+		//a transaction per generating thread, as many connections again for everything else
+		if (System.getProperty("pool.maxSize") == null) {
+			System.setProperty("pool.maxSize", Integer.toString(2 * THREADS + 2));
+		}
+		Class.forName("org.postgresql.Driver");
+		DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			new SlotGenerator(esql, System.out).generate(from, days);
+		}finally {
+			esql.cleanup();
+		}
+	}
+
+	/**
+	 * Method to generate the slots of every maintenance request.
+	 *
+	 * @param from the first day
+	 * @param days the number of days
+	 * @return the number of appointments added
+	 * @throws java.sql.SQLException when the slots of a doctor could not be written
+	 */
+	public long generate(LocalDate from, int days) throws SQLException {
+		LocalDate to = from.plusDays(days - 1);
+		long start = System.nanoTime();
+		_generated.set(0);
+		_overlapping.set(0);
+		_invalid.set(0);
+		_tooFast.set(0);
+
+		//department -> doctor -> requests
+		Map<Integer, Map<Integer, List<Request>>> departments = new LinkedHashMap<Integer, Map<Integer, List<Request>>>();
+		QueryResult rows = _esql.executeQueryForResult(Queries.MAINTENANCE_REQUESTS);
+		for (int row = 0; row < rows.size(); row++) {
+			departments.computeIfAbsent(rows.getInt(row, "dept_ID"), id -> new LinkedHashMap<Integer, List<Request>>())
+				.computeIfAbsent(rows.getInt(row, "doctor_ID"), id -> new ArrayList<Request>())
+				.add(new Request(rows.getInt(row, "sid"), rows.getInt(row, "patient_per_hour"), rows.getString(row, "time_slot")));
+		}
+
+		//months without a partition would fill the default one
+		PartitionMaintenance partitions = new PartitionMaintenance(_esql, _out);
+		if (partitions.isPartitioned()) {
+			partitions.createAhead(from, (int) ChronoUnit.MONTHS.between(from.withDayOfMonth(1), to.withDayOfMonth(1)));
+		}
+
+		int threads = Math.min(THREADS, Math.min(departments.size(), _esql.getConnectionPool().getMaxSize() / 2));
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Long>> futures = new ArrayList<Future<Long>>();
+			for (Map<Integer, List<Request>> doctors : departments.values()) {
+				futures.add(pool.submit(() -> {
+					long generated = 0;
+					for (Map.Entry<Integer, List<Request>> doctor : doctors.entrySet()) {
+						generated += generateDoctor(doctor.getKey(), doctor.getValue(), from, to);
+					}
+					return generated;
+				}));
+			}
+			waitFor(futures);
+		}finally {
+			pool.shutdownNow();
+			//whatever was committed is visible, tell every session at once
+			_esql.availability().invalidate();
+			_esql.executeQueryForResult(Queries.NOTIFY, ChangeListener.CHANNEL, "{\"table\": \"*\", \"op\": \"GENERATE\"}");
+			_esql.waitlist().offerAvailable();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		_out.printf("Generated %,d appointments for %d departments from %s to %s in %.1f s (%,.0f rows/s)%n",
+			_generated.get(), departments.size(), from, to, seconds, 3 * _generated.get() / seconds);
+		_out.printf("  %,d slots skipped as overlapping, %,d requests with an unusable time slot or rate, " +
+			"%,d above 60 patients per hour%n", _overlapping.get(), _invalid.get(), _tooFast.get());
+		return _generated.get();
+	}
+
+	/*
+	 * Writes the slots of one doctor in one transaction, holding the doctor
+	 * row so no appointment is added meanwhile.
+	 */
+	private long generateDoctor(int doctorID, List<Request> requests, LocalDate from, LocalDate to) throws SQLException {
+		return _esql.executeInTransaction(conn -> {
+			conn.prepare(Queries.QUIET_CHANGE_FEED).execute();
+			conn.prepare(Queries.LOCK_DOCTOR, doctorID).execute();
+
+			//epoch day -> slots taken
+			Map<Long, List<TimeSlot>> taken = new HashMap<Long, List<TimeSlot>>();
+			ResultSet rs = conn.prepare(Queries.SLOTS_OF_DOCTOR_IN_RANGE, doctorID, from, to).executeQuery();
+			try {
+				while (rs.next()) {
+					TimeSlot slot = TimeSlot.parse(rs.getString(2));
+					if (slot != null) {
+						taken.computeIfAbsent(rs.getDate(1).toLocalDate().toEpochDay(), day -> new ArrayList<TimeSlot>()).add(slot);
+					}
+				}
+			}finally {
+				rs.close();
+			}
+
+			List<Integer> ids = new ArrayList<Integer>();
+			List<String> dates = new ArrayList<String>();
+			List<String> slots = new ArrayList<String>();
+			List<Integer> staff = new ArrayList<Integer>();
+			for (Request request : requests) {
+				TimeSlot window = TimeSlot.parse(request.timeSlot);
+				if (window == null || request.patientsPerHour <= 0) {
+					_invalid.incrementAndGet();
+					continue;
+				}
+				if (request.patientsPerHour > 60) {
+					_tooFast.incrementAndGet();
+					_out.println("  Doctor " + doctorID + ", staff " + request.staffID + ": " + request.patientsPerHour +
+						" patients per hour do not fit one-minute slots, skipped");
+					continue;
+				}
+				//rounded up, 23 per hour gives 3-minute slots, 20 an hour
+				int minutes = (60 + request.patientsPerHour - 1) / request.patientsPerHour;
+				for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+					if (date.getDayOfWeek() == DayOfWeek.SATURDAY || date.getDayOfWeek() == DayOfWeek.SUNDAY) {
+						continue;
+					}
+					List<TimeSlot> day = taken.computeIfAbsent(date.toEpochDay(), d -> new ArrayList<TimeSlot>());
+					for (LocalTime time = window.getStart(); !time.plusMinutes(minutes).isAfter(window.getEnd())
+							&& time.plusMinutes(minutes).isAfter(time); time = time.plusMinutes(minutes)) {
+						TimeSlot slot = new TimeSlot(time, time.plusMinutes(minutes));
+						if (overlapsAny(slot, day)) {
+							_overlapping.incrementAndGet();
+							continue;
+						}
+						day.add(slot);
+						//on the connection of this transaction, the pool may have none left
+						ids.add(_esql.appointmentIds().nextId(conn));
+						dates.add(date.toString());
+						slots.add(slot.toString());
+						staff.add(request.staffID);
+					}
+				}
+			}
+
+			for (int first = 0; first < ids.size(); first += _chunkSize) {
+				int last = Math.min(ids.size(), first + _chunkSize);
+				Object chunk = conn.getConnection().createArrayOf("integer", ids.subList(first, last).toArray());
+				conn.prepare(Queries.INSERT_AVAILABLE_APPOINTMENTS, doctorID, chunk,
+					conn.getConnection().createArrayOf("text", dates.subList(first, last).toArray()),
+					conn.getConnection().createArrayOf("text", slots.subList(first, last).toArray())).executeUpdate();
+				conn.prepare(Queries.INSERT_HAS_APPOINTMENTS_OF_DOCTOR, doctorID, chunk).executeUpdate();
+				conn.prepare(Queries.INSERT_SCHEDULES, chunk,
+					conn.getConnection().createArrayOf("integer", staff.subList(first, last).toArray())).executeUpdate();
+			}
+			_generated.addAndGet(ids.size());
+			return (long) ids.size();
+		});
+	}
+
+	private static boolean overlapsAny(TimeSlot slot, List<TimeSlot> taken) {
+		for (TimeSlot other : taken) {
+			if (slot.overlaps(other)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void waitFor(List<Future<Long>> futures) throws SQLException {
+		for (Future<Long> future : futures) {
+			try {
+				future.get();
+			}catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted during slot generation");
+			}catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof SQLException) {
+					throw (SQLException) cause;
+				}
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
+	/**
+	 * A row of request_maintenance.
+	 */
+	static class Request {
+		final int staffID;
+		final int patientsPerHour;
+		final String timeSlot;
+
+		Request(int staffID, int patientsPerHour, String timeSlot) {
+			this.staffID = staffID;
+			this.patientsPerHour = patientsPerHour;
+			this.timeSlot = timeSlot;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps a least-recently-used cache of prepared statements for one
+ * physical connection.  Statements are keyed by their SQL template, so the
+ * same lookup reuses the same PreparedStatement (and, once the driver
+ * switches to server-side prepares, the same plan).
+ *
+ */
+
+public class StatementCache {
+	//connection the cached statements belong to
+	private final Connection _connection;
+	private final int _capacity;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+
+	public StatementCache(Connection connection, int capacity) {
+		this._connection = connection;
+		this._capacity = capacity;
+		//access ordered map, the eldest entry is the least recently used one
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= _capacity) {
+					return false;
+				}
+				_evictions++;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Method to fetch the prepared statement for a SQL template, preparing it
+	 * on the connection if it is not cached yet.
+	 *
+	 * @param sql the SQL template with '?' placeholders
+	 * @return the cached prepared statement
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this._statements.get(sql);
+		if (stmt != null && !stmt.isClosed()) {
+			_hits++;
+			return stmt;
+		}
+		_misses++;
+		stmt = this._connection.prepareStatement(sql);
+		this._statements.put(sql, stmt);
+		return stmt;
+	}
+
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	public synchronized long getEvictions() {
+		return _evictions;
+	}
+
+	public synchronized int size() {
+		return this._statements.size();
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public synchronized void clear() {
+		for (PreparedStatement stmt : this._statements.values()) {
+			closeQuietly(stmt);
+		}
+		this._statements.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		long total = _hits + _misses;
+		double hitRate = total == 0 ? 0.0 : (100.0 * _hits) / total;
+		return String.format("statements=%d hits=%d misses=%d evictions=%d hit-rate=%.1f%%",
+			this._statements.size(), _hits, _misses, _evictions, hitRate);
+	}
+
+	private static void closeQuietly(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		}catch (SQLException e) {
+			// ignored.
+		}
+	}
+}
@@ -0,0 +1,106 @@
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is the time slot of an appointment, a start and an end time
+ * within one day, written as in the time_slot column: H:MM-H:MM, e.g.
+ * 8:00-10:30.  The database keeps the two times in the slot_start and
+ * slot_end columns (migration 004); a slot on a date is the half-open
+ * interval [date + start, date + end).
+ *
+ */
+
+public final class TimeSlot {
+	//the slots offered by the hospitals, as listed by option 3
+	public static final List<TimeSlot> OFFERED = Collections.unmodifiableList(Arrays.asList(
+		parse("8:00-10:00"), parse("8:00-10:30"), parse("8:00-10:50"), parse("8:00-17:00"),
+		parse("10:00-15:00"), parse("10:00-17:00"), parse("13:00-15:00"), parse("14:00-16:00")));
+
+	private final LocalTime _start;
+	private final LocalTime _end;
+
+	public TimeSlot(LocalTime start, LocalTime end) {
+		if (!start.isBefore(end)) {
+			throw new IllegalArgumentException("A time slot must end after it starts: " + start + "-" + end);
+		}
+		this._start = start;
+		this._end = end;
+	}
+
+	/**
+	 * Method to parse a time slot written as H:MM-H:MM.
+	 *
+	 * @param text the time slot
+	 * @return the time slot, or null when the text is not a valid time slot
+	 */
+	public static TimeSlot parse(String text) {
+		try {
+			String[] times = text.trim().split("-");
+			if (times.length != 2) {
+				return null;
+			}
+			return new TimeSlot(parseTime(times[0]), parseTime(times[1]));
+		}catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static LocalTime parseTime(String text) {
+		String[] parts = text.trim().split(":");
+		if (parts.length != 2 || parts[1].length() != 2) {
+			throw new IllegalArgumentException("Not a time: " + text);
+		}
+		return LocalTime.of(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+	}
+
+	public LocalTime getStart() {
+		return _start;
+	}
+
+	public LocalTime getEnd() {
+		return _end;
+	}
+
+	public LocalDateTime startOn(LocalDate date) {
+		return date.atTime(_start);
+	}
+
+	public LocalDateTime endOn(LocalDate date) {
+		return date.atTime(_end);
+	}
+
+	/**
+	 * @param other another slot of the same day
+	 * @return true when the two slots share some time
+	 */
+	public boolean overlaps(TimeSlot other) {
+		return _start.isBefore(other._end) && other._start.isBefore(_end);
+	}
+
+	public boolean isOffered() {
+		return OFFERED.contains(this);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof TimeSlot && ((TimeSlot) other)._start.equals(_start) && ((TimeSlot) other)._end.equals(_end);
+	}
+
+	@Override
+	public int hashCode() {
+		return _start.hashCode() * 31 + _end.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return format(_start) + "-" + format(_end);
+	}
+
+	private static String format(LocalTime time) {
+		return time.getHour() + ":" + (time.getMinute() < 10 ? "0" : "") + time.getMinute();
+	}
+}
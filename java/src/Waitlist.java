@@ -0,0 +1,397 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class promotes the waiting requests of the waitlist (migration 005)
+ * when an appointment becomes available.  The requests of a department
+ * wait in priority queues, one for the requests naming a doctor of the
+ * department and one for any doctor; the head is the highest priority,
+ * then the oldest request.  When an appointment becomes available
+ * (HospitalService.addAppointment, or another session through
+ * ChangeListener), it is booked for the head request that can take it,
+ * through HospitalService.promoteWaitlisted.
+ *
+ * Departments are spread over waitlist.shards single-threaded shards, so
+ * the queues of a department are only touched by the thread of its shard
+ * and need no lock; promotions of different departments run in parallel,
+ * bounded by the connection pool.  A request withdrawn in the database
+ * stays queued until its turn comes and the promotion finds it gone.
+ *
+ */
+
+public class Waitlist {
+	//shards, each promoting the departments it owns one at a time
+	static final int SHARDS = Integer.getInteger("waitlist.shards", Runtime.getRuntime().availableProcessors());
+	static final long STOP_TIMEOUT_MS = 5000;
+	//doctor of a request taking any doctor of its department
+	public static final int ANY_DOCTOR = -1;
+
+	private final DBproject _esql;
+	private Shard[] _shards;
+	private volatile boolean _running = false;
+
+	//requests queued in the shards
+	private final AtomicInteger _waiting = new AtomicInteger();
+	private final AtomicLong _offered = new AtomicLong();
+	private final AtomicLong _promoted = new AtomicLong();
+	private final AtomicLong _unclaimed = new AtomicLong();
+	private final AtomicLong _errors = new AtomicLong();
+	//from the offer of an appointment to its promotion
+	private final LatencyHistogram _latency = new LatencyHistogram();
+
+	public Waitlist(DBproject esql) {
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to read the waiting requests and start promoting.  The
+	 * appointments already available are offered to the departments that
+	 * have waiting requests.
+	 *
+	 * @throws java.sql.SQLException when the requests could not be read
+	 */
+	public synchronized void start() throws SQLException {
+		if (_running) {
+			return;
+		}
+		QueryResult requests = _esql.executeQueryForResult(Queries.WAITING_REQUESTS);
+		_shards = new Shard[Math.max(1, SHARDS)];
+		for (int i = 0; i < _shards.length; i++) {
+			_shards[i] = new Shard(i);
+		}
+		Set<Integer> departments = new HashSet<Integer>();
+		for (int row = 0; row < requests.size(); row++) {
+			Request request = new Request(requests.getInt(row, "request_ID"), requests.getInt(row, "pid"),
+				requests.getInt(row, "hid"), requests.getInt(row, "dept_ID"),
+				requests.isNull(row, requests.findColumn("doctor_ID")) ? ANY_DOCTOR : requests.getInt(row, "doctor_ID"),
+				requests.getInt(row, "priority"));
+			shardOf(request.departmentID).queue(request.departmentID).add(request);
+			_waiting.incrementAndGet();
+			departments.add(request.departmentID);
+		}
+		_running = true;
+		for (int departmentID : departments) {
+			Shard shard = shardOf(departmentID);
+			shard.executor.execute(() -> shard.sweep(departmentID));
+		}
+	}
+
+	/**
+	 * Method to stop promoting, the requests stay in the database.
+	 */
+	public synchronized void stop() {
+		if (!_running) {
+			return;
+		}
+		_running = false;
+		for (Shard shard : _shards) {
+			shard.executor.shutdown();
+		}
+		try {
+			for (Shard shard : _shards) {
+				shard.executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			}
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		_waiting.set(0);
+	}
+
+	public boolean isRunning() {
+		return _running;
+	}
+
+	/**
+	 * Method to add a request to the waitlist.  It is promoted right away
+	 * when an appointment it can take is available.
+	 *
+	 * @param patientID the patient waiting
+	 * @param hospitalID the hospital of the department
+	 * @param departmentID the department
+	 * @param doctorID the doctor, or ANY_DOCTOR
+	 * @param priority higher is promoted first
+	 * @return the ID of the request
+	 * @throws java.sql.SQLException when the request could not be stored
+	 */
+	public int add(int patientID, int hospitalID, int departmentID, int doctorID, int priority) throws SQLException {
+		int requestID = _esql.executeQueryForResult(Queries.INSERT_WAITLIST_REQUEST, patientID, hospitalID, departmentID,
+			doctorID == ANY_DOCTOR ? null : doctorID, priority).getInt(0, 0);
+		if (_running) {
+			Request request = new Request(requestID, patientID, hospitalID, departmentID, doctorID, priority);
+			Shard shard = shardOf(departmentID);
+			_waiting.incrementAndGet();
+			shard.executor.execute(() -> {
+				shard.queue(departmentID).add(request);
+				shard.sweep(departmentID);
+			});
+		}
+		return requestID;
+	}
+
+	/**
+	 * Method to withdraw a request that is still waiting.
+	 *
+	 * @param requestID the request
+	 * @return true when the request was waiting
+	 * @throws java.sql.SQLException when the request could not be deleted
+	 */
+	public boolean withdraw(int requestID) throws SQLException {
+		return _esql.executeUpdate(Queries.WITHDRAW_WAITLIST_REQUEST, requestID) == 1;
+	}
+
+	/**
+	 * Method to offer an appointment that became available to the waiting
+	 * requests of its department.  The promotion runs on the shard of the
+	 * department; nothing happens while no request is waiting.
+	 *
+	 * @param appointmentID the appointment
+	 */
+	public void offer(int appointmentID) {
+		if (!_running || _waiting.get() == 0) {
+			return;
+		}
+		long offeredNanos = System.nanoTime();
+		int[] located;
+		try {
+			located = _esql.availability().locateAvailable(appointmentID);
+		}catch (SQLException e) {
+			_errors.incrementAndGet();
+			System.err.println("Waitlist: " + e.getMessage());
+			return;
+		}
+		//a past appointment is not booked, however available
+		if (located == null || located[2] < LocalDate.now().toEpochDay()) {
+			return;
+		}
+		_offered.incrementAndGet();
+		Shard shard = shardOf(located[1]);
+		shard.executor.execute(() -> shard.promote(located[1], located[0], appointmentID, offeredNanos));
+	}
+
+	/**
+	 * Method to offer the available appointments to every department with
+	 * waiting requests, e.g. after many were added at once without a
+	 * notification each.
+	 */
+	public void offerAvailable() {
+		if (!_running || _waiting.get() == 0) {
+			return;
+		}
+		for (Shard shard : _shards) {
+			shard.executor.execute(() -> {
+				for (int departmentID : new ArrayList<Integer>(shard.departments.keySet())) {
+					shard.sweep(departmentID);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Method to wait until the shards ran every promotion offered so far.
+	 *
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 */
+	public void awaitIdle() throws InterruptedException {
+		if (!_running) {
+			return;
+		}
+		List<Future<?>> barriers = new ArrayList<Future<?>>();
+		for (Shard shard : _shards) {
+			barriers.add(shard.executor.submit(() -> { }));
+		}
+		try {
+			for (Future<?> barrier : barriers) {
+				barrier.get();
+			}
+		}catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	public int getWaiting() {
+		return _waiting.get();
+	}
+
+	public long getPromoted() {
+		return _promoted.get();
+	}
+
+	/**
+	 * @return the time from the offer of an appointment to its promotion
+	 */
+	public LatencyHistogram getLatency() {
+		return _latency;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("waitlist: waiting=%d offered=%d promoted=%d unclaimed=%d errors=%d latency %s",
+			_waiting.get(), _offered.get(), _promoted.get(), _unclaimed.get(), _errors.get(), _latency);
+	}
+
+	private Shard shardOf(int departmentID) {
+		return _shards[Math.floorMod(departmentID, _shards.length)];
+	}
+
+	/*
+	 * The departments of one shard, only touched by its thread.
+	 */
+	private final class Shard {
+		final ExecutorService executor;
+		final Map<Integer, DepartmentQueue> departments = new HashMap<Integer, DepartmentQueue>();
+
+		Shard(int index) {
+			this.executor = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "waitlist-" + index);
+				t.setDaemon(true);
+				return t;
+			});
+		}
+
+		DepartmentQueue queue(int departmentID) {
+			return departments.computeIfAbsent(departmentID, id -> new DepartmentQueue());
+		}
+
+		/*
+		 * Books the appointment for the head request that can take it,
+		 * skipping the requests gone from the database.
+		 */
+		void promote(int departmentID, int doctorID, int appointmentID, long offeredNanos) {
+			DepartmentQueue queue = departments.get(departmentID);
+			while (true) {
+				Request head = queue == null ? null : queue.head(doctorID);
+				if (head == null) {
+					_unclaimed.incrementAndGet();
+					return;
+				}
+				int outcome;
+				try {
+					outcome = HospitalService.promoteWaitlisted(_esql, head.id, head.patientID, doctorID, appointmentID,
+						head.hospitalID);
+				}catch (SQLException e) {
+					_errors.incrementAndGet();
+					System.err.println("Waitlist: request " + head.id + ", appointment " + appointmentID + ": " + e.getMessage());
+					return;
+				}
+				if (outcome == HospitalService.SLOT_TAKEN) {
+					return;
+				}
+				queue.remove(head);
+				_waiting.decrementAndGet();
+				if (outcome == HospitalService.PROMOTED) {
+					_promoted.incrementAndGet();
+					_latency.record(System.nanoTime() - offeredNanos);
+					return;
+				}
+			}
+		}
+
+		/*
+		 * Offers the available appointments of the department to its
+		 * requests, e.g. after they were read or one was added.
+		 */
+		void sweep(int departmentID) {
+			DepartmentQueue queue = departments.get(departmentID);
+			if (queue == null || queue.isEmpty()) {
+				return;
+			}
+			LocalDate today = LocalDate.now();
+			try {
+				for (LocalDate date : _esql.availability().datesOfDepartment(departmentID)) {
+					if (date.isBefore(today)) {
+						continue;
+					}
+					for (int[] appointment : _esql.availability().appointmentsOfDepartment(departmentID, date)) {
+						if (queue.isEmpty()) {
+							return;
+						}
+						_offered.incrementAndGet();
+						promote(departmentID, appointment[1], appointment[0], System.nanoTime());
+					}
+				}
+			}catch (SQLException e) {
+				_errors.incrementAndGet();
+				System.err.println("Waitlist: department " + departmentID + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * The waiting requests of one department.
+	 */
+	private static final class DepartmentQueue {
+		private static final Comparator<Request> ORDER =
+			Comparator.comparingInt((Request r) -> r.priority).reversed().thenComparingInt(r -> r.id);
+
+		final PriorityQueue<Request> anyDoctor = new PriorityQueue<Request>(ORDER);
+		final Map<Integer, PriorityQueue<Request>> byDoctor = new HashMap<Integer, PriorityQueue<Request>>();
+
+		void add(Request request) {
+			if (request.doctorID == ANY_DOCTOR) {
+				anyDoctor.add(request);
+			}else {
+				byDoctor.computeIfAbsent(request.doctorID, id -> new PriorityQueue<Request>(ORDER)).add(request);
+			}
+		}
+
+		//the first request that can take an appointment of the doctor
+		Request head(int doctorID) {
+			PriorityQueue<Request> ofDoctor = byDoctor.get(doctorID);
+			Request named = ofDoctor == null ? null : ofDoctor.peek();
+			Request any = anyDoctor.peek();
+			if (named == null || (any != null && ORDER.compare(any, named) < 0)) {
+				return any;
+			}
+			return named;
+		}
+
+		void remove(Request head) {
+			if (head.doctorID == ANY_DOCTOR) {
+				anyDoctor.poll();
+			}else {
+				PriorityQueue<Request> ofDoctor = byDoctor.get(head.doctorID);
+				ofDoctor.poll();
+				if (ofDoctor.isEmpty()) {
+					byDoctor.remove(head.doctorID);
+				}
+			}
+		}
+
+		boolean isEmpty() {
+			return anyDoctor.isEmpty() && byDoctor.isEmpty();
+		}
+	}
+
+	private static final class Request {
+		final int id;
+		final int patientID;
+		final int hospitalID;
+		final int departmentID;
+		final int doctorID;
+		final int priority;
+
+		Request(int id, int patientID, int hospitalID, int departmentID, int doctorID, int priority) {
+			this.id = id;
+			this.patientID = patientID;
+			this.hospitalID = hospitalID;
+			this.departmentID = departmentID;
+			this.doctorID = doctorID;
+			this.priority = priority;
+		}
+	}
+}
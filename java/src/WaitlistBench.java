@@ -0,0 +1,257 @@
+import java.sql.Array;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class benchmarks the waitlist promoter under concurrent cancel and
+ * book load against a live database.  For each of a number of departments
+ * it creates a fixture of active appointments booked by patients and as
+ * many waiting requests, then cancels the appointments from several
+ * threads (HospitalService.cancelAppointment: back to AV, offered to the
+ * Waitlist) while other threads try to book the same appointments
+ * directly, for patients drawn from the loaded ones.  Every
+ * cancelled slot must end up active, either promoted to exactly one
+ * request or booked; promotions per second and the latency from
+ * cancellation to promotion are reported.  The rows it created are
+ * removed at the end.
+ *
+ * Usage: java -cp lib/*:bin/ WaitlistBench <dbname> <port> <user> [departments] [slots] [threads]
+ *
+ */
+
+public class WaitlistBench {
+	static final LocalDate FIXTURE_DATE = LocalDate.of(2099, 1, 1);
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] " + WaitlistBench.class.getName() +
+				" <dbname> <port> <user> [departments] [slots] [threads]");
+			return;
+		}
+		final int departmentCount = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+		final int slots = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+		final int threads = args.length > 5 ? Integer.parseInt(args[5]) : 8;
+		//cancellers, bookers and the shards of the promoter
+		System.setProperty("pool.maxSize", Integer.toString(2 * threads + Waitlist.SHARDS + 2));
+
+		Class.forName("org.postgresql.Driver");
+		final DBproject esql = new DBproject(args[0], args[1], args[2], "");
+		try {
+			if (!esql.waitlist().isRunning()) {
+				throw new SQLException("The waitlist promoter is not running, apply sql/migrations/005_waitlist.sql");
+			}
+			QueryResult departments = esql.executeQueryForResult(
+				"SELECT D.did, Dep.hid, MIN(D.doctor_ID) FROM Doctor D, Department Dep WHERE D.did = Dep.dept_ID " +
+				"GROUP BY D.did, Dep.hid ORDER BY D.did LIMIT ?", departmentCount);
+			final int total = departments.size() * slots;
+			//different patients, a booking locks the row of its patient
+			final QueryResult patients = esql.executeQueryForResult("SELECT patient_ID FROM Patient ORDER BY patient_ID LIMIT ?", total);
+
+			//fixture: active appointments of patients, slots per department, and as many waiting requests
+			final int[] ids = new int[total];
+			final int[] patientIDs = new int[total];
+			final int[] departmentIDs = new int[total];
+			final int[] doctorIDs = new int[total];
+			final int[] hospitalIDs = new int[total];
+			for (int i = 0; i < total; i++) {
+				int row = i / slots;
+				ids[i] = esql.appointmentIds().nextId();
+				departmentIDs[i] = departments.getInt(row, 0);
+				hospitalIDs[i] = departments.getInt(row, 1);
+				doctorIDs[i] = departments.getInt(row, 2);
+				patientIDs[i] = patients.getInt(i % patients.size(), 0);
+			}
+			esql.executeInTransaction(conn -> {
+				Array appointments = conn.getConnection().createArrayOf("integer", boxed(ids));
+				Array doctors = conn.getConnection().createArrayOf("integer", boxed(doctorIDs));
+				conn.prepare("INSERT INTO Appointment (appnt_ID, adate, time_slot, status, doctor_id) " +
+					"SELECT S.id, CAST(? AS DATE), '8:00-10:00', 'AC', S.doctor_id FROM unnest(?, ?) AS S(id, doctor_id)",
+					FIXTURE_DATE, appointments, doctors).executeUpdate();
+				conn.prepare("INSERT INTO has_appointment (appt_id, doctor_id) SELECT * FROM unnest(?, ?)",
+					appointments, doctors).executeUpdate();
+				conn.prepare("INSERT INTO searches (hid, pid, aid) SELECT * FROM unnest(?, ?, ?)",
+					conn.getConnection().createArrayOf("integer", boxed(hospitalIDs)),
+					conn.getConnection().createArrayOf("integer", boxed(patientIDs)), appointments).executeUpdate();
+				conn.prepare("UPDATE Patient P SET number_of_appts = COALESCE(P.number_of_appts, 0) + S.n " +
+					"FROM (SELECT pid, COUNT(*) AS n FROM searches WHERE aid = ANY(?) GROUP BY pid) S " +
+					"WHERE P.patient_ID = S.pid", appointments).executeUpdate();
+				return null;
+			});
+			final Set<Integer> requests = new HashSet<Integer>();
+			for (int i = 0; i < total; i++) {
+				//half of the requests name the doctor, priorities 0 to 3
+				requests.add(esql.waitlist().add(patients.getInt(i % patients.size(), 0), hospitalIDs[i], departmentIDs[i],
+					i % 2 == 0 ? Waitlist.ANY_DOCTOR : doctorIDs[i], ThreadLocalRandom.current().nextInt(4)));
+			}
+			esql.waitlist().awaitIdle();
+			long promotedBefore = esql.waitlist().getPromoted();
+			esql.waitlist().getLatency().reset();
+
+			final AtomicInteger nextCancel = new AtomicInteger();
+			final AtomicBoolean cancelling = new AtomicBoolean(true);
+			final AtomicLong cancelled = new AtomicLong();
+			final AtomicLong booked = new AtomicLong();
+			final AtomicLong errors = new AtomicLong();
+			final Set<Integer> bookedIDs = ConcurrentHashMap.newKeySet();
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch cancellers = new CountDownLatch(threads);
+			final CountDownLatch bookers = new CountDownLatch(threads);
+			for (int t = 0; t < threads; t++) {
+				new Thread(() -> {
+					try {
+						start.await();
+						for (int i = nextCancel.getAndIncrement(); i < total; i = nextCancel.getAndIncrement()) {
+							try {
+								if (HospitalService.cancelAppointment(esql, patientIDs[i], ids[i])) {
+									cancelled.incrementAndGet();
+								}
+							}catch (SQLException e) {
+								errors.incrementAndGet();
+							}
+						}
+					}catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}finally {
+						cancellers.countDown();
+					}
+				}, "canceller-" + t).start();
+				new Thread(() -> {
+					try {
+						start.await();
+						while (cancelling.get()) {
+							//the slots cancelled last are the likeliest to be free
+							int upTo = Math.min(nextCancel.get(), total);
+							if (upTo == 0) {
+								continue;
+							}
+							int i = Math.max(0, upTo - 1 - ThreadLocalRandom.current().nextInt(Math.min(upTo, threads * 4)));
+							try {
+								int patientID = patients.getInt(ThreadLocalRandom.current().nextInt(patients.size()), 0);
+								if (HospitalService.bookAppointment(esql, patientID, doctorIDs[i], ids[i], hospitalIDs[i])) {
+									booked.incrementAndGet();
+									bookedIDs.add(ids[i]);
+								}
+							}catch (SQLException e) {
+								errors.incrementAndGet();
+							}
+						}
+					}catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}finally {
+						bookers.countDown();
+					}
+				}, "booker-" + t).start();
+			}
+
+			long begin = System.nanoTime();
+			start.countDown();
+			cancellers.await();
+			cancelling.set(false);
+			bookers.await();
+			esql.waitlist().awaitIdle();
+			double seconds = (System.nanoTime() - begin) / 1e9;
+			long promoted = esql.waitlist().getPromoted() - promotedBefore;
+
+			//every slot active, promoted at most once, never both promoted and booked
+			final Set<Integer> fixture = new HashSet<Integer>();
+			for (int id : ids) {
+				fixture.add(id);
+			}
+			int notActive = 0;
+			QueryResult statuses = esql.executeQueryForResult(
+				"SELECT appnt_ID, status FROM Appointment WHERE appnt_ID BETWEEN ? AND ?", min(ids), max(ids));
+			for (int row = 0; row < statuses.size(); row++) {
+				if (fixture.contains(statuses.getInt(row, 0)) && !"AC".equals(statuses.getString(row, 1))) {
+					notActive++;
+				}
+			}
+			int promotedInDb = 0;
+			int promotedTwice = 0;
+			int promotedAndBooked = 0;
+			Set<Integer> promotedIDs = new HashSet<Integer>();
+			QueryResult promotions = esql.executeQueryForResult(
+				"SELECT request_ID, aid FROM waitlist WHERE aid BETWEEN ? AND ?", min(ids), max(ids));
+			for (int row = 0; row < promotions.size(); row++) {
+				if (!requests.contains(promotions.getInt(row, 0))) {
+					continue;
+				}
+				promotedInDb++;
+				int aid = promotions.getInt(row, 1);
+				if (!promotedIDs.add(aid)) {
+					promotedTwice++;
+				}
+				if (bookedIDs.contains(aid)) {
+					promotedAndBooked++;
+				}
+			}
+
+			System.out.printf("departments=%d slots=%d threads=%d shards=%d time=%.2f s%n",
+				departments.size(), slots, threads, Waitlist.SHARDS, seconds);
+			System.out.printf("cancelled=%d promoted=%d booked=%d errors=%d%n", cancelled.get(), promoted, booked.get(), errors.get());
+			System.out.printf("throughput: %.0f cancellations/s, %.0f promotions/s%n", cancelled.get() / seconds, promoted / seconds);
+			System.out.println("cancellation to promotion: " + esql.waitlist().getLatency());
+			System.out.printf("not-active-in-db=%d promoted-in-db=%d promoted-twice=%d promoted-and-booked=%d%n",
+				notActive, promotedInDb, promotedTwice, promotedAndBooked);
+			System.out.println(esql.getConnectionPool());
+			boolean ok = notActive == 0 && promotedTwice == 0 && promotedAndBooked == 0 && errors.get() == 0
+				&& promotedInDb == promoted && promoted + booked.get() == cancelled.get() && cancelled.get() == total;
+			System.out.println(ok ? "PASS" : "FAIL");
+
+			//remove the fixture and the requests
+			final int[] requestIDs = new int[requests.size()];
+			int r = 0;
+			for (int id : requests) {
+				requestIDs[r++] = id;
+			}
+			esql.executeInTransaction(conn -> {
+				Array appointments = conn.getConnection().createArrayOf("integer", boxed(ids));
+				conn.prepare("DELETE FROM waitlist WHERE request_ID = ANY(?)",
+					conn.getConnection().createArrayOf("integer", boxed(requestIDs))).executeUpdate();
+				conn.prepare("UPDATE Patient P SET number_of_appts = P.number_of_appts - S.n " +
+					"FROM (SELECT pid, COUNT(*) AS n FROM searches WHERE aid = ANY(?) GROUP BY pid) S " +
+					"WHERE P.patient_ID = S.pid", appointments).executeUpdate();
+				conn.prepare("DELETE FROM searches WHERE aid = ANY(?)", appointments).executeUpdate();
+				conn.prepare("DELETE FROM has_appointment WHERE appt_id = ANY(?)", appointments).executeUpdate();
+				conn.prepare("DELETE FROM Appointment WHERE appnt_ID = ANY(?)", appointments).executeUpdate();
+				return null;
+			});
+			if (!ok) {
+				System.exit(1);
+			}
+		}finally {
+			esql.cleanup();
+		}
+	}
+
+	private static Integer[] boxed(int[] values) {
+		Integer[] boxed = new Integer[values.length];
+		for (int i = 0; i < values.length; i++) {
+			boxed[i] = values[i];
+		}
+		return boxed;
+	}
+
+	private static int min(int[] values) {
+		int min = Integer.MAX_VALUE;
+		for (int value : values) {
+			min = Math.min(min, value);
+		}
+		return min;
+	}
+
+	private static int max(int[] values) {
+		int max = Integer.MIN_VALUE;
+		for (int value : values) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+}
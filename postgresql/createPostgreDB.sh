@@ -9,4 +9,9 @@ cp ../data/*.csv /tmp/$USER/myDB/data/.
 
 echo "Initializing tables .. "
 sleep 1
-psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
\ No newline at end of file
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
+
+echo "Applying migrations .. "
+for migration in ../sql/migrations/*.sql; do
+	psql -h localhost -p $PGPORT $USER"_DB" < $migration
+done
\ No newline at end of file
@@ -8,6 +8,13 @@ DROP TABLE IF EXISTS has_appointment CASCADE;--OK
 DROP TABLE IF EXISTS request_maintenance CASCADE;--OK
 DROP TABLE IF EXISTS searches CASCADE;--OK
 DROP TABLE IF EXISTS schedules CASCADE;--OK
+DROP TABLE IF EXISTS doctor_status_counts CASCADE;--OK
+DROP TABLE IF EXISTS waitlist CASCADE;--OK
+DROP TABLE IF EXISTS appointment_ids CASCADE;--OK
+DROP SCHEMA IF EXISTS archive CASCADE;--OK
+DROP SEQUENCE IF EXISTS patient_id_seq;--OK
+DROP SEQUENCE IF EXISTS doctor_id_seq;--OK
+DROP SEQUENCE IF EXISTS appointment_id_seq;--OK
 
 
 -------------
@@ -221,3 +228,57 @@ COPY has_appointment (
 FROM 'has_appointment.csv'
 WITH DELIMITER ',';
 
+
+---------------
+---SEQUENCES---
+---------------
+-- New IDs come from these sequences, seeded past the loaded data. Each
+-- nextval reserves a block of 100 IDs for the client (see IdAllocator.java),
+-- so INCREMENT BY must match IdAllocator.BLOCK_SIZE.
+CREATE SEQUENCE patient_id_seq INCREMENT BY 100 MINVALUE 0;
+CREATE SEQUENCE doctor_id_seq INCREMENT BY 100 MINVALUE 0;
+CREATE SEQUENCE appointment_id_seq INCREMENT BY 100 MINVALUE 0;
+
+SELECT setval('patient_id_seq', (SELECT COALESCE(MAX(patient_ID) + 1, 0) FROM Patient), false);
+SELECT setval('doctor_id_seq', (SELECT COALESCE(MAX(doctor_ID) + 1, 0) FROM Doctor), false);
+SELECT setval('appointment_id_seq', (SELECT COALESCE(MAX(appnt_ID) + 1, 0) FROM Appointment), false);
+
+
+--------------
+---TRIGGERS---
+--------------
+-- Every insert or update of the tables cached by the Java client is
+-- published on the hospital_changes channel, so each running client can
+-- drop or refresh what it holds (see ChangeListener.java).  The payload is
+-- a JSON object: {"table", "op", "ts" (ms since epoch), "row" (the keys)}.
+-- The triggers are created after the COPY loads above, and BulkLoader
+-- disables them while it loads.
+CREATE OR REPLACE FUNCTION notify_change() RETURNS trigger AS $$
+DECLARE
+	payload json;
+BEGIN
+	IF TG_TABLE_NAME = 'appointment' THEN
+		payload := json_build_object('id', NEW.appnt_ID, 'status', NEW.status);
+	ELSIF TG_TABLE_NAME = 'has_appointment' THEN
+		payload := json_build_object('id', NEW.appt_id, 'doctor', NEW.doctor_id);
+	ELSIF TG_TABLE_NAME = 'doctor' THEN
+		payload := json_build_object('doctor', NEW.doctor_ID, 'did', NEW.did);
+	ELSIF TG_OP = 'UPDATE' THEN
+		payload := json_build_object('did', NEW.dept_ID, 'hid', NEW.hid, 'old_hid', OLD.hid);
+	ELSE
+		payload := json_build_object('did', NEW.dept_ID, 'hid', NEW.hid);
+	END IF;
+	PERFORM pg_notify('hospital_changes', json_build_object('table', TG_TABLE_NAME, 'op', TG_OP,
+		'ts', floor(extract(epoch FROM clock_timestamp()) * 1000), 'row', payload)::text);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER appointment_changes AFTER INSERT OR UPDATE ON Appointment
+	FOR EACH ROW EXECUTE PROCEDURE notify_change();
+CREATE TRIGGER has_appointment_changes AFTER INSERT OR UPDATE ON has_appointment
+	FOR EACH ROW EXECUTE PROCEDURE notify_change();
+CREATE TRIGGER doctor_changes AFTER INSERT OR UPDATE ON Doctor
+	FOR EACH ROW EXECUTE PROCEDURE notify_change();
+CREATE TRIGGER department_changes AFTER INSERT OR UPDATE ON Department
+	FOR EACH ROW EXECUTE PROCEDURE notify_change();
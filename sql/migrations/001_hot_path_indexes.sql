@@ -0,0 +1,37 @@
+------------------------------------------
+-- MIGRATION 001: indexes for the menu queries
+------------------------------------------
+-- Applied in file-name order after create.sql by createPostgreDB.sh.
+-- create.sql only defines primary keys.  These indexes back the joins and
+-- filters of the menu operations; IndexCheck.java runs EXPLAIN on every
+-- menu query to verify they are used.  Safe to run more than once.
+
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+-- has_appointment is joined on doctor_id (options 4, 5, 6, 7, 8); the PK
+-- starts with appt_id and cannot serve that lookup
+CREATE INDEX IF NOT EXISTS has_appointment_doctor_idx ON has_appointment (doctor_id, appt_id);
+
+-- bookable slots by date (options 4 and 6)
+CREATE INDEX IF NOT EXISTS appointment_available_adate_idx ON Appointment (adate) WHERE status = 'AV';
+
+-- status filter of the reports (option 8) and the date range of option 5
+CREATE INDEX IF NOT EXISTS appointment_status_idx ON Appointment (status, appnt_ID);
+CREATE INDEX IF NOT EXISTS appointment_adate_idx ON Appointment (adate);
+
+-- departments of a hospital, doctors of a department
+CREATE INDEX IF NOT EXISTS department_hid_idx ON Department (hid);
+CREATE INDEX IF NOT EXISTS doctor_did_idx ON Doctor (did);
+
+-- LOWER(name) LIKE LOWER('%...%') lookups
+CREATE INDEX IF NOT EXISTS hospital_name_trgm_idx ON Hospital USING gin (LOWER(name) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS department_name_trgm_idx ON Department USING gin (LOWER(name) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS doctor_specialty_trgm_idx ON Doctor USING gin (LOWER(specialty) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS patient_name_trgm_idx ON Patient USING gin (LOWER(name) gin_trgm_ops);
+
+ANALYZE Appointment;
+ANALYZE has_appointment;
+ANALYZE Department;
+ANALYZE Doctor;
+ANALYZE Hospital;
+ANALYZE Patient;
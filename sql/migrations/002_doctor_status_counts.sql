@@ -0,0 +1,76 @@
+------------------------------------------
+-- MIGRATION 002: per-doctor status counters for the reports
+------------------------------------------
+-- Options 7 and 8 count the appointments of every doctor by status.
+-- Instead of joining Appointment and has_appointment each time, the counts
+-- are kept in doctor_status_counts by the triggers below, on every insert,
+-- update and delete of has_appointment and every status change of an
+-- Appointment.  Rows are never removed, a count drops to 0 instead; the
+-- reports skip those.  Appointments with a NULL status are not counted.
+--
+-- BulkLoader disables the triggers while it loads and calls
+-- rebuild_doctor_status_counts() afterwards.  Safe to run more than once.
+
+CREATE TABLE IF NOT EXISTS doctor_status_counts
+(
+	doctor_id INTEGER NOT NULL,
+	status _STATUS NOT NULL,
+	cnt INTEGER NOT NULL,
+	PRIMARY KEY (doctor_id, status)
+);
+
+-- Moves one appointment of a doctor from old_status to new_status, either
+-- may be NULL.  The two rows are always updated in status order, so two
+-- opposite transitions of the same doctor cannot deadlock.
+CREATE OR REPLACE FUNCTION count_status_change(doctor INTEGER, old_status VARCHAR, new_status VARCHAR) RETURNS void AS $$
+	INSERT INTO doctor_status_counts (doctor_id, status, cnt)
+	SELECT doctor, C.status, SUM(C.delta) FROM (VALUES (old_status, -1), (new_status, 1)) AS C (status, delta)
+	WHERE C.status IS NOT NULL
+	GROUP BY C.status ORDER BY C.status
+	ON CONFLICT (doctor_id, status) DO UPDATE SET cnt = doctor_status_counts.cnt + EXCLUDED.cnt;
+$$ LANGUAGE sql;
+
+CREATE OR REPLACE FUNCTION maintain_status_counts() RETURNS trigger AS $$
+BEGIN
+	IF TG_TABLE_NAME = 'appointment' THEN
+		PERFORM count_status_change(H.doctor_id, OLD.status, NEW.status)
+		FROM has_appointment H WHERE H.appt_id = NEW.appnt_ID;
+		RETURN NULL;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM count_status_change(OLD.doctor_id, A.status, NULL)
+		FROM Appointment A WHERE A.appnt_ID = OLD.appt_id;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM count_status_change(NEW.doctor_id, NULL, A.status)
+		FROM Appointment A WHERE A.appnt_ID = NEW.appt_id;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Recounts everything, writers of both tables wait meanwhile.
+CREATE OR REPLACE FUNCTION rebuild_doctor_status_counts() RETURNS integer AS $$
+DECLARE
+	counted integer;
+BEGIN
+	LOCK TABLE has_appointment, Appointment IN SHARE MODE;
+	DELETE FROM doctor_status_counts;
+	INSERT INTO doctor_status_counts (doctor_id, status, cnt)
+	SELECT H.doctor_id, A.status, COUNT(*) FROM has_appointment H, Appointment A
+	WHERE H.appt_id = A.appnt_ID AND A.status IS NOT NULL
+	GROUP BY H.doctor_id, A.status;
+	GET DIAGNOSTICS counted = ROW_COUNT;
+	RETURN counted;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS appointment_status_counts ON Appointment;
+CREATE TRIGGER appointment_status_counts AFTER UPDATE OF status ON Appointment
+	FOR EACH ROW WHEN (OLD.status IS DISTINCT FROM NEW.status) EXECUTE PROCEDURE maintain_status_counts();
+DROP TRIGGER IF EXISTS has_appointment_status_counts ON has_appointment;
+CREATE TRIGGER has_appointment_status_counts AFTER INSERT OR UPDATE OR DELETE ON has_appointment
+	FOR EACH ROW EXECUTE PROCEDURE maintain_status_counts();
+
+SELECT rebuild_doctor_status_counts();
+ANALYZE doctor_status_counts;
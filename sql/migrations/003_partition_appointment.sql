@@ -0,0 +1,164 @@
+------------------------------------------
+-- MIGRATION 003: monthly partitions of Appointment
+------------------------------------------
+-- Appointment is range partitioned by month on adate, so the date range
+-- queries (options 5 and 6) only read the partitions of the dates asked
+-- for, and old months can be detached and archived as history grows.
+-- Partitions are named appointment_YYYY_MM; rows of months without a
+-- partition go to appointment_default.  PartitionMaintenance.java splits
+-- the default partition, creates the months ahead and archives old ones.
+--
+-- A primary key of a partitioned table must contain the partition key, so
+-- it becomes (appnt_ID, adate), and a foreign key cannot reference
+-- appnt_ID alone.  Every query still treats appnt_ID as unique, so the
+-- non-partitioned table appointment_ids keeps that guarantee: a trigger
+-- registers the ID of every appointment inserted, failing on a duplicate,
+-- and has_appointment, searches and schedules reference it instead of
+-- Appointment.  IDs stay registered when their partition is archived, so
+-- they are never reused.  A row inserted straight into a partition that is
+-- not attached yet (create_appointment_partition moving rows out of the
+-- default one) is not registered again; an UPDATE moving a row to another
+-- month is refused as a duplicate, nothing changes adate.  BulkLoader,
+-- which loads with the triggers off, calls register_appointment_ids().
+--
+-- Requires PostgreSQL 11 or later.  Safe to run more than once.
+
+-- Creates the partition of the month of the given date, moving its rows
+-- out of the default partition.  Returns false when it already exists.
+CREATE OR REPLACE FUNCTION create_appointment_partition(month date) RETURNS boolean AS $$
+DECLARE
+	first_day date := date_trunc('month', month)::date;
+	next_month date := (date_trunc('month', month) + interval '1 month')::date;
+	partition text := 'appointment_' || to_char(month, 'YYYY_MM');
+BEGIN
+	IF to_regclass(partition) IS NOT NULL THEN
+		RETURN false;
+	END IF;
+	EXECUTE format('CREATE TABLE %I (LIKE Appointment INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', partition);
+	EXECUTE format('WITH moved AS (DELETE FROM appointment_default WHERE adate >= $1 AND adate < $2 RETURNING *) ' ||
+		'INSERT INTO %I SELECT * FROM moved', partition) USING first_day, next_month;
+	EXECUTE format('ALTER TABLE Appointment ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+		partition, first_day, next_month);
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Detaches a partition into the archive schema, together with the
+-- has_appointment rows of its appointments (which leave the per-doctor
+-- counters of migration 002 through its trigger).  Returns the number of
+-- has_appointment rows moved.
+CREATE OR REPLACE FUNCTION archive_appointment_partition(partition text) RETURNS integer AS $$
+DECLARE
+	moved integer;
+BEGIN
+	CREATE SCHEMA IF NOT EXISTS archive;
+	CREATE TABLE IF NOT EXISTS archive.has_appointment (LIKE has_appointment);
+	EXECUTE format('WITH moved AS (DELETE FROM has_appointment H USING %I A WHERE H.appt_id = A.appnt_ID RETURNING H.*) ' ||
+		'INSERT INTO archive.has_appointment SELECT * FROM moved', partition);
+	GET DIAGNOSTICS moved = ROW_COUNT;
+	EXECUTE format('ALTER TABLE Appointment DETACH PARTITION %I', partition);
+	EXECUTE format('ALTER TABLE %I SET SCHEMA archive', partition);
+	RETURN moved;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Registers the ID of an inserted appointment, a duplicate fails on the
+-- primary key of appointment_ids.
+CREATE OR REPLACE FUNCTION register_appointment_id() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO appointment_ids (appnt_ID) VALUES (NEW.appnt_ID);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Registers the IDs of the appointments inserted with the triggers off.
+-- Fails when an ID is used by more than one appointment.  Returns the
+-- number of IDs registered.
+CREATE OR REPLACE FUNCTION register_appointment_ids() RETURNS integer AS $$
+DECLARE
+	duplicate integer;
+	registered integer;
+BEGIN
+	SELECT appnt_ID INTO duplicate FROM Appointment GROUP BY appnt_ID HAVING COUNT(*) > 1 LIMIT 1;
+	IF FOUND THEN
+		RAISE EXCEPTION 'appnt_ID % is used by more than one appointment', duplicate USING ERRCODE = 'unique_violation';
+	END IF;
+	INSERT INTO appointment_ids (appnt_ID)
+	SELECT A.appnt_ID FROM Appointment A
+	WHERE NOT EXISTS (SELECT 1 FROM appointment_ids R WHERE R.appnt_ID = A.appnt_ID);
+	GET DIAGNOSTICS registered = ROW_COUNT;
+	RETURN registered;
+END;
+$$ LANGUAGE plpgsql;
+
+DO $$
+BEGIN
+	IF EXISTS (SELECT 1 FROM pg_partitioned_table WHERE partrelid = 'appointment'::regclass) THEN
+		RETURN;
+	END IF;
+	ALTER TABLE has_appointment DROP CONSTRAINT IF EXISTS has_appointment_appt_id_fkey;
+	ALTER TABLE searches DROP CONSTRAINT IF EXISTS searches_aid_fkey;
+	ALTER TABLE schedules DROP CONSTRAINT IF EXISTS schedules_appt_id_fkey;
+	ALTER TABLE Appointment RENAME TO appointment_unpartitioned;
+	ALTER TABLE appointment_unpartitioned RENAME CONSTRAINT appointment_pkey TO appointment_unpartitioned_pkey;
+
+	CREATE TABLE Appointment
+	(
+		appnt_ID INTEGER NOT NULL,
+		adate DATE NOT NULL,
+		time_slot VARCHAR(11),
+		status _STATUS,
+		PRIMARY KEY (appnt_ID, adate)
+	) PARTITION BY RANGE (adate);
+	CREATE TABLE appointment_default PARTITION OF Appointment DEFAULT;
+
+	PERFORM create_appointment_partition(M.month)
+	FROM (SELECT DISTINCT date_trunc('month', adate)::date AS month FROM appointment_unpartitioned) M;
+	INSERT INTO Appointment SELECT appnt_ID, adate, time_slot, status FROM appointment_unpartitioned;
+	-- drops the triggers of the old table too
+	DROP TABLE appointment_unpartitioned;
+
+	CREATE TRIGGER appointment_changes AFTER INSERT OR UPDATE ON Appointment
+		FOR EACH ROW EXECUTE PROCEDURE notify_change();
+	CREATE TRIGGER appointment_status_counts AFTER UPDATE OF status ON Appointment
+		FOR EACH ROW WHEN (OLD.status IS DISTINCT FROM NEW.status) EXECUTE PROCEDURE maintain_status_counts();
+END;
+$$;
+
+-- appnt_ID unique across partitions, see above
+CREATE TABLE IF NOT EXISTS appointment_ids
+(
+	appnt_ID INTEGER NOT NULL,
+	PRIMARY KEY (appnt_ID)
+);
+
+DO $$
+BEGIN
+	-- registering from now on first, so no insert falls between the two
+	IF NOT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'appointment_registry' AND tgrelid = 'appointment'::regclass) THEN
+		CREATE TRIGGER appointment_registry AFTER INSERT ON Appointment
+			FOR EACH ROW EXECUTE PROCEDURE register_appointment_id();
+	END IF;
+	PERFORM register_appointment_ids();
+
+	IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'has_appointment_appt_id_fkey') THEN
+		ALTER TABLE has_appointment ADD CONSTRAINT has_appointment_appt_id_fkey
+			FOREIGN KEY (appt_id) REFERENCES appointment_ids (appnt_ID);
+	END IF;
+	IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'searches_aid_fkey') THEN
+		ALTER TABLE searches ADD CONSTRAINT searches_aid_fkey
+			FOREIGN KEY (aid) REFERENCES appointment_ids (appnt_ID);
+	END IF;
+	IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'schedules_appt_id_fkey') THEN
+		ALTER TABLE schedules ADD CONSTRAINT schedules_appt_id_fkey
+			FOREIGN KEY (appt_id) REFERENCES appointment_ids (appnt_ID);
+	END IF;
+END;
+$$;
+
+-- the indexes of migration 001, now on every partition
+CREATE INDEX IF NOT EXISTS appointment_available_adate_idx ON Appointment (adate) WHERE status = 'AV';
+CREATE INDEX IF NOT EXISTS appointment_status_idx ON Appointment (status, appnt_ID);
+CREATE INDEX IF NOT EXISTS appointment_adate_idx ON Appointment (adate);
+
+ANALYZE Appointment;
@@ -0,0 +1,87 @@
+------------------------------------------
+-- MIGRATION 004: typed time slots of Appointment
+------------------------------------------
+-- time_slot stays the text typed at the menu and found in the CSV files
+-- (H:MM-H:MM).  Its start and end times are kept next to it as TIME
+-- columns generated from it, so every writer, COPY included, fills them.
+-- The slot of an appointment is the interval [adate + slot_start,
+-- adate + slot_end).
+--
+-- The doctor of an appointment is copied from has_appointment into
+-- Appointment.doctor_id, so a single GiST index over (doctor_id, slot)
+-- answers "appointments of a doctor overlapping an interval"
+-- (Queries.APPOINTMENTS_OF_DOCTOR_OVERLAPPING), used by
+-- HospitalService.addAppointment to refuse overlapping slots.  Every
+-- writer sets doctor_id with the has_appointment row; BulkLoader fills it
+-- after a COPY.  The check still runs under a lock of the doctor row: an
+-- exclusion constraint on a partitioned table needs PostgreSQL 17.
+--
+-- Requires PostgreSQL 13 or later (generated columns, btree_gist as a
+-- trusted extension).  Safe to run more than once.
+
+-- H:MM to TIME without the text to time cast, which is not immutable
+-- ('now' is a valid time); NULL for anything else.
+CREATE OR REPLACE FUNCTION slot_time(slot_part text) RETURNS time AS $$
+	SELECT CASE WHEN slot_part ~ '^\s*\d{1,2}:\d{2}\s*$'
+		THEN make_time(split_part(slot_part, ':', 1)::int, split_part(slot_part, ':', 2)::int, 0) END;
+$$ LANGUAGE sql IMMUTABLE;
+
+ALTER TABLE Appointment ADD COLUMN IF NOT EXISTS slot_start TIME
+	GENERATED ALWAYS AS (slot_time(split_part(time_slot, '-', 1))) STORED;
+ALTER TABLE Appointment ADD COLUMN IF NOT EXISTS slot_end TIME
+	GENERATED ALWAYS AS (slot_time(split_part(time_slot, '-', 2))) STORED;
+
+ALTER TABLE Appointment ADD COLUMN IF NOT EXISTS doctor_id INTEGER;
+
+-- no change notification per row: the quiet flag of migration 006 is not
+-- there yet on a fresh database, so the change trigger is off meanwhile
+BEGIN;
+DO $$
+BEGIN
+	IF EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'appointment_changes' AND tgrelid = 'appointment'::regclass) THEN
+		ALTER TABLE Appointment DISABLE TRIGGER appointment_changes;
+	END IF;
+END;
+$$;
+UPDATE Appointment A SET doctor_id = H.doctor_id
+FROM has_appointment H WHERE H.appt_id = A.appnt_ID AND A.doctor_id IS NULL;
+DO $$
+BEGIN
+	IF EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = 'appointment_changes' AND tgrelid = 'appointment'::regclass) THEN
+		ALTER TABLE Appointment ENABLE TRIGGER appointment_changes;
+	END IF;
+END;
+$$;
+COMMIT;
+
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+-- a time_slot that does not parse has NULL times, and tsrange(NULL, NULL)
+-- is unbounded: it would overlap every interval, so it is left out here
+-- and in the query
+DROP INDEX IF EXISTS appointment_slot_gist_idx;
+DROP INDEX IF EXISTS appointment_doctor_slot_gist_idx;
+CREATE INDEX IF NOT EXISTS appointment_doctor_valid_slot_gist_idx ON Appointment
+	USING gist (doctor_id, tsrange(adate + slot_start, adate + slot_end))
+	WHERE slot_start IS NOT NULL AND slot_end IS NOT NULL;
+
+-- new partitions must carry the generated columns and the doctor too,
+-- replaces the function of migration 003
+CREATE OR REPLACE FUNCTION create_appointment_partition(month date) RETURNS boolean AS $$
+DECLARE
+	first_day date := date_trunc('month', month)::date;
+	next_month date := (date_trunc('month', month) + interval '1 month')::date;
+	partition text := 'appointment_' || to_char(month, 'YYYY_MM');
+BEGIN
+	IF to_regclass(partition) IS NOT NULL THEN
+		RETURN false;
+	END IF;
+	EXECUTE format('CREATE TABLE %I (LIKE Appointment INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING GENERATED)', partition);
+	EXECUTE format('WITH moved AS (DELETE FROM appointment_default WHERE adate >= $1 AND adate < $2 RETURNING appnt_ID, adate, time_slot, status, doctor_id) ' ||
+		'INSERT INTO %I (appnt_ID, adate, time_slot, status, doctor_id) SELECT * FROM moved', partition) USING first_day, next_month;
+	EXECUTE format('ALTER TABLE Appointment ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+		partition, first_day, next_month);
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
+ANALYZE Appointment;
@@ -0,0 +1,47 @@
+------------------------------------------
+-- MIGRATION 005: waitlist of patients
+------------------------------------------
+-- A patient waiting for a slot of a department, or of one doctor of it
+-- (doctor_ID set).  Waiting requests have no aid; Waitlist.java keeps them
+-- in memory and, when an appointment of the department becomes available,
+-- books it for the request of highest priority, oldest first, setting aid
+-- and promoted in the same transaction (HospitalService.promoteWaitlisted).
+--
+-- The WL rows of Appointment carry no patient (has_appointment only links
+-- the doctor), so they cannot be promoted and are left as they are.
+--
+-- aid references appointment_ids, the registry of the appointment IDs
+-- kept by migration 003 for the partitioned Appointment.  Safe to run
+-- more than once.
+
+CREATE TABLE IF NOT EXISTS waitlist
+(
+	request_ID SERIAL NOT NULL,
+	pid INTEGER NOT NULL,
+	hid INTEGER NOT NULL,
+	dept_ID INTEGER NOT NULL,
+	doctor_ID INTEGER,
+	priority INTEGER NOT NULL DEFAULT 0,
+	requested TIMESTAMP NOT NULL DEFAULT now(),
+	aid INTEGER,
+	promoted TIMESTAMP,
+	PRIMARY KEY (request_ID),
+	FOREIGN KEY (pid) REFERENCES Patient(patient_ID),
+	FOREIGN KEY (hid) REFERENCES Hospital(hospital_ID),
+	FOREIGN KEY (dept_ID) REFERENCES Department(dept_ID),
+	FOREIGN KEY (doctor_ID) REFERENCES Doctor(doctor_ID)
+);
+
+DO $$
+BEGIN
+	IF to_regclass('appointment_ids') IS NOT NULL
+			AND NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'waitlist_aid_fkey') THEN
+		ALTER TABLE waitlist ADD CONSTRAINT waitlist_aid_fkey FOREIGN KEY (aid) REFERENCES appointment_ids (appnt_ID);
+	END IF;
+END;
+$$;
+
+-- the waiting requests, read when the promoter starts
+CREATE INDEX IF NOT EXISTS waitlist_waiting_idx ON waitlist (dept_ID, priority DESC, request_ID) WHERE aid IS NULL;
+-- an appointment is given to one request at most
+CREATE UNIQUE INDEX IF NOT EXISTS waitlist_aid_idx ON waitlist (aid);
@@ -0,0 +1,33 @@
+------------------------------------------
+-- MIGRATION 006: bulk writes without a notification per row
+------------------------------------------
+-- notify_change() of create.sql sends one notification per changed row,
+-- each making every ChangeListener re-read the row.  A transaction that
+-- writes thousands of rows (SlotGenerator) sets hospital.quiet for itself
+-- (Queries.QUIET_CHANGE_FEED) and sends a single reload notice when it
+-- is done, as BulkLoader does.  The other triggers, e.g. the status
+-- counters of migration 002, still run.  Safe to run more than once.
+
+CREATE OR REPLACE FUNCTION notify_change() RETURNS trigger AS $$
+DECLARE
+	payload json;
+BEGIN
+	IF current_setting('hospital.quiet', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_TABLE_NAME = 'appointment' THEN
+		payload := json_build_object('id', NEW.appnt_ID, 'status', NEW.status);
+	ELSIF TG_TABLE_NAME = 'has_appointment' THEN
+		payload := json_build_object('id', NEW.appt_id, 'doctor', NEW.doctor_id);
+	ELSIF TG_TABLE_NAME = 'doctor' THEN
+		payload := json_build_object('doctor', NEW.doctor_ID, 'did', NEW.did);
+	ELSIF TG_OP = 'UPDATE' THEN
+		payload := json_build_object('did', NEW.dept_ID, 'hid', NEW.hid, 'old_hid', OLD.hid);
+	ELSE
+		payload := json_build_object('did', NEW.dept_ID, 'hid', NEW.hid);
+	END IF;
+	PERFORM pg_notify('hospital_changes', json_build_object('table', TG_TABLE_NAME, 'op', TG_OP,
+		'ts', floor(extract(epoch FROM clock_timestamp()) * 1000), 'row', payload)::text);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
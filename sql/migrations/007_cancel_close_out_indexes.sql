@@ -0,0 +1,20 @@
+------------------------------------------
+-- MIGRATION 007: indexes for cancellation and the close-out of past days
+------------------------------------------
+-- Cancelling and rescheduling (options 17, 18) look up the appointments
+-- of a patient in searches, whose primary key starts with hid.
+--
+-- DayCloseOut flips the AC appointments of past days to PA, a chunk at a
+-- time.  Every chunk looks for the active appointments before a date;
+-- without the partial index it would scan past the rows already closed
+-- and the past AV slots, which are most of the table.  Once closed a row
+-- leaves the index.  Safe to run more than once.
+
+CREATE INDEX IF NOT EXISTS searches_pid_idx ON searches (pid, aid);
+
+-- past AV slots are never closed, they would stay in the index for good
+DROP INDEX IF EXISTS appointment_open_adate_idx;
+CREATE INDEX IF NOT EXISTS appointment_active_adate_idx ON Appointment (adate) WHERE status = 'AC';
+
+ANALYZE searches;
+ANALYZE Appointment;
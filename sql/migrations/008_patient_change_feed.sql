@@ -0,0 +1,38 @@
+------------------------------------------
+-- MIGRATION 008: patients on the change feed
+------------------------------------------
+-- PatientIndex keeps the names and addresses of the patients in memory.
+-- A new patient, or a new name or address, is published on
+-- hospital_changes with the new texts, so every client indexes it
+-- without reading the row back.  Bookings only change number_of_appts
+-- and are not published.  Safe to run more than once.
+
+CREATE OR REPLACE FUNCTION notify_change() RETURNS trigger AS $$
+DECLARE
+	payload json;
+BEGIN
+	IF current_setting('hospital.quiet', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_TABLE_NAME = 'appointment' THEN
+		payload := json_build_object('id', NEW.appnt_ID, 'status', NEW.status);
+	ELSIF TG_TABLE_NAME = 'has_appointment' THEN
+		payload := json_build_object('id', NEW.appt_id, 'doctor', NEW.doctor_id);
+	ELSIF TG_TABLE_NAME = 'doctor' THEN
+		payload := json_build_object('doctor', NEW.doctor_ID, 'did', NEW.did);
+	ELSIF TG_TABLE_NAME = 'patient' THEN
+		payload := json_build_object('patient', NEW.patient_ID, 'name', NEW.name, 'address', NEW.address);
+	ELSIF TG_OP = 'UPDATE' THEN
+		payload := json_build_object('did', NEW.dept_ID, 'hid', NEW.hid, 'old_hid', OLD.hid);
+	ELSE
+		payload := json_build_object('did', NEW.dept_ID, 'hid', NEW.hid);
+	END IF;
+	PERFORM pg_notify('hospital_changes', json_build_object('table', TG_TABLE_NAME, 'op', TG_OP,
+		'ts', floor(extract(epoch FROM clock_timestamp()) * 1000), 'row', payload)::text);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS patient_changes ON Patient;
+CREATE TRIGGER patient_changes AFTER INSERT OR UPDATE OF name, address ON Patient
+	FOR EACH ROW EXECUTE PROCEDURE notify_change();